@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Result of {@link Repository#publishAll(List)}
+ *
+ * @param <R> result type
+ */
+public class BatchPublication<R> {
+    /**
+     * Futures of every published command, in the order of publishing
+     */
+    @Getter
+    private final List<CompletableFuture<R>> futures;
+    /**
+     * Completes with results of all commands (in the order of publishing) once all of them
+     * are completed, or exceptionally if any of them completed exceptionally.
+     */
+    @Getter
+    private final CompletableFuture<List<R>> completed;
+
+    public BatchPublication(List<CompletableFuture<R>> futures) {
+        this.futures = Collections.unmodifiableList(futures);
+        this.completed = CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]))
+                                          .thenApply(v -> futures.stream().map(CompletableFuture::join)
+                                                                 .collect(Collectors.toList()));
+    }
+}
@@ -54,4 +54,17 @@ public interface Command<S, R> extends Entity<Command<S, R>> {
     default R result(S state, Repository repository, LockProvider lockProvider) {
         return null;
     }
+
+    /**
+     * Returns a key (for example, an aggregate identifier) used to partition commands when
+     * they are processed in parallel. Commands with equal keys are always processed in the order
+     * they were published, commands with different keys might be processed concurrently.
+     * <p>
+     * By default, returns <code>null</code>, which places all such commands into the same partition.
+     *
+     * @return partition key
+     */
+    default Object partitionKey() {
+        return null;
+    }
 }
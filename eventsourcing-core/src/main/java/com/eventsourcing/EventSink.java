@@ -0,0 +1,22 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing;
+
+/**
+ * Receiver of events pushed to it, one at a time (see {@link EventStream#drainTo(EventSink)})
+ */
+@FunctionalInterface
+public interface EventSink {
+
+    /**
+     * Receives an event
+     *
+     * @param event event
+     */
+    void accept(Event event);
+}
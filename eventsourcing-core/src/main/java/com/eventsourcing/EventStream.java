@@ -7,9 +7,17 @@
  */
 package com.eventsourcing;
 
+import com.eventsourcing.hlc.HybridTimestamp;
+import com.eventsourcing.repository.Journal;
 import com.eventsourcing.repository.LockProvider;
 import lombok.Getter;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 /**
@@ -19,30 +27,130 @@ import java.util.stream.Stream;
  * It is used for event generation and passing of state from {@link Command#events(Repository, LockProvider)}
  * to {@link Command#result(Object, Repository, LockProvider)}
  *
+ * Event streams created with {@link #builder(Object)} or from individual events are backed
+ * by an array, which can be pushed to an {@link EventSink} (see {@link #drainTo(EventSink)})
+ * without going through {@link Stream}. Either way, an event stream can only be consumed once.
+ *
  * @param <S> state type
  */
 public class EventStream<S> {
-    @Getter
+    private static final Event[] NO_EVENTS = new Event[0];
+
     private Stream<? extends Event> stream;
+    private Event[] events;
+    private int size;
     @Getter
     private S state;
+    private Map<Object, Optional<HybridTimestamp>> expectedVersions;
 
     EventStream(S state, Stream<? extends Event> stream) {
         this.state = state;
         this.stream = stream;
     }
 
-    public static class Builder<S>  {
+    EventStream(S state, Event[] events, int size) {
+        this.state = state;
+        this.events = events;
+        this.size = size;
+    }
+
+    /**
+     * @return stream of events
+     */
+    public Stream<? extends Event> getStream() {
+        if (stream == null) {
+            if (events == null) {
+                throw new IllegalStateException("event stream has already been consumed");
+            }
+            stream = Arrays.stream(events, 0, size);
+            events = null;
+        }
+        return stream;
+    }
+
+    /**
+     * Pushes all events to a sink, in order. Array-backed event streams are iterated
+     * directly, without creating a {@link Stream}.
+     *
+     * @param sink event sink
+     * @return number of events pushed
+     */
+    public long drainTo(EventSink sink) {
+        if (stream != null) {
+            long count = 0;
+            Iterator<? extends Event> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                sink.accept(iterator.next());
+                count++;
+            }
+            return count;
+        }
+        if (events == null) {
+            throw new IllegalStateException("event stream has already been consumed");
+        }
+        Event[] events = this.events;
+        this.events = null;
+        for (int i = 0; i < size; i++) {
+            sink.accept(events[i]);
+        }
+        return size;
+    }
+
+    /**
+     * Declares that the events were generated based on a specific version of the key
+     * (for example, an aggregate identifier), as returned by {@link Journal#getVersion(Object)}.
+     * <p>
+     * This enables optimistic concurrency control for the command: when journalling,
+     * the journal checks that the key is still at the expected version and, if it isn't
+     * (another command with events has declared the same key since), generates the events
+     * again (up to {@link Journal.BatchEntry#MAX_ATTEMPTS} times). Once journalled, if the
+     * command has produced any events, the version of every key it has declared is set to
+     * its timestamp.
+     * <p>
+     * Commands relying on optimistic concurrency control should not acquire locks, as
+     * their events might be generated more than once.
+     *
+     * @param key     key
+     * @param version version of the key, or empty {@link Optional} if the key has no version yet
+     * @return this event stream
+     */
+    public EventStream<S> expectVersion(Object key, Optional<HybridTimestamp> version) {
+        if (expectedVersions == null) {
+            expectedVersions = new HashMap<>();
+        }
+        expectedVersions.put(key, version);
+        return this;
+    }
+
+    /**
+     * @return versions of keys the events were generated based on (see {@link #expectVersion(Object, Optional)})
+     */
+    public Map<Object, Optional<HybridTimestamp>> getExpectedVersions() {
+        return expectedVersions == null ? Collections.emptyMap() : Collections.unmodifiableMap(expectedVersions);
+    }
+
+    /**
+     * Collects events into an array. Once an event stream is built, the builder
+     * starts over and can be reused for the next one.
+     *
+     * @param <S> state type
+     */
+    public static class Builder<S> implements EventSink {
 
         private final S state;
-        private final Stream.Builder<Event> builder = Stream.builder();
+        private Event[] events = NO_EVENTS;
+        private int size;
 
         public Builder(S state) {
             this.state = state;
         }
 
+        @Override
         public void accept(Event event) {
-            builder.accept(event);
+            if (size == events.length) {
+                events = Arrays.copyOf(events, Math.max(8, size * 2));
+            }
+            events[size++] = event;
         }
 
         public Builder<S> add(Event event) {
@@ -51,7 +159,10 @@ public class EventStream<S> {
         }
 
         public EventStream<S> build() {
-            return new EventStream<>(state, builder.build());
+            EventStream<S> eventStream = new EventStream<>(state, events, size);
+            events = NO_EVENTS;
+            size = 0;
+            return eventStream;
         }
     }
 
@@ -81,7 +192,7 @@ public class EventStream<S> {
      * @return empty event stream with state set to <code>null</code>
      */
     public static <S> EventStream<S> empty() {
-        return new EventStream<>(null, Stream.empty());
+        return new EventStream<>(null, NO_EVENTS, 0);
     }
 
     /**
@@ -90,7 +201,7 @@ public class EventStream<S> {
      * @return empty event stream with a state
      */
     public static <S> EventStream<S> empty(S state) {
-        return new EventStream<>(state, Stream.empty());
+        return new EventStream<>(state, NO_EVENTS, 0);
     }
 
     /**
@@ -119,7 +230,7 @@ public class EventStream<S> {
      * @return event stream with a state and a stream of one event
      */
     public static <S> EventStream<S> ofWithState(S state, Event event) {
-        return new EventStream<>(state, Stream.of(event));
+        return new EventStream<>(state, new Event[]{event}, 1);
     }
 
     /**
@@ -128,7 +239,7 @@ public class EventStream<S> {
      * @return event stream with a state set to <code>null</code> and a stream of one event
      */
     public static <S> EventStream<S> of(Event event) {
-        return new EventStream<>(null, Stream.of(event));
+        return new EventStream<>(null, new Event[]{event}, 1);
     }
 
     /**
@@ -138,7 +249,7 @@ public class EventStream<S> {
      * @return event stream with a state and a stream of multiple events
      */
     public static <S> EventStream<S> ofWithState(S state, Event ...events) {
-        return new EventStream<>(state, Stream.of(events));
+        return new EventStream<>(state, events, events.length);
     }
 
     /**
@@ -148,7 +259,7 @@ public class EventStream<S> {
      * @return event stream with a state set to <code>null</code> and a stream of multiple events
      */
     public static <S> EventStream<S> of(Event ...events) {
-        return new EventStream<>(null, Stream.of(events));
+        return new EventStream<>(null, events, events.length);
     }
 
 }
@@ -8,18 +8,23 @@
 package com.eventsourcing;
 
 import com.eventsourcing.hlc.HybridTimestamp;
-import com.eventsourcing.hlc.NTPServerTimeProvider;
 import com.eventsourcing.hlc.PhysicalTimeProvider;
+import com.eventsourcing.hlc.SystemTimeProvider;
 import com.eventsourcing.index.IndexEngine;
+import com.eventsourcing.index.Prefetch;
+import com.eventsourcing.index.PrefetchingResultSet;
 import com.eventsourcing.repository.*;
 import com.google.common.util.concurrent.Service;
 import com.googlecode.cqengine.query.Query;
 import com.googlecode.cqengine.query.QueryFactory;
 import com.googlecode.cqengine.query.option.QueryOptions;
 import com.googlecode.cqengine.resultset.ResultSet;
+import lombok.Getter;
 
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static com.googlecode.cqengine.query.QueryFactory.noQueryOptions;
 
@@ -35,7 +40,7 @@ public interface Repository extends Service {
      * Default setup:
      * <p>
      * <ul>
-     * <li>Default {@link NTPServerTimeProvider} is set with {@link #setPhysicalTimeProvider(PhysicalTimeProvider)}</li>
+     * <li>Default {@link SystemTimeProvider} is set with {@link #setPhysicalTimeProvider(PhysicalTimeProvider)}</li>
      * <li>Default {@link LocalLockProvider} is set with {@link #setLockProvider(LockProvider)}</li>
      * </ul>
      *
@@ -43,7 +48,7 @@ public interface Repository extends Service {
      */
     static Repository create() throws Exception {
         RepositoryImpl repository = new RepositoryImpl();
-        PhysicalTimeProvider timeProvider = new NTPServerTimeProvider(new String[]{"localhost"});
+        PhysicalTimeProvider timeProvider = new SystemTimeProvider();
         repository.setPhysicalTimeProvider(timeProvider);
         LockProvider lockProvider = new LocalLockProvider();
         repository.setLockProvider(lockProvider);
@@ -183,6 +188,73 @@ public interface Repository extends Service {
      */
     <T extends Command<?, C>, C> CompletableFuture<C> publish(T command);
 
+    /**
+     * Publishes command asynchronously, waiting no longer than the specified timeout for
+     * space in the command queue to become available. Unlike {@link #publish(Command)}, it will not block
+     * indefinitely when the queue is full.
+     *
+     * @param command
+     * @param timeout maximum time to wait
+     * @param unit    time unit of the timeout
+     * @param <T>     Command class
+     * @param <C>     Result class
+     * @return {@link CompletableFuture} with command's result, or completed exceptionally with
+     * {@link CommandRejectedException} if the command was not published within the timeout
+     */
+    <T extends Command<?, C>, C> CompletableFuture<C> publish(T command, long timeout, TimeUnit unit);
+
+    /**
+     * Publishes command asynchronously only if there is space available in the command queue.
+     *
+     * @param command
+     * @param <T>     Command class
+     * @param <C>     Result class
+     * @return {@link CompletableFuture} with command's result, or completed exceptionally with
+     * {@link CommandRejectedException} if the command queue is full
+     */
+    default <T extends Command<?, C>, C> CompletableFuture<C> tryPublish(T command) {
+        return publish(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Signals that a command was not published because the command queue was full
+     */
+    class CommandRejectedException extends RuntimeException {
+        @Getter
+        private final Command<?, ?> command;
+
+        public CommandRejectedException(Command<?, ?> command) {
+            super("Command queue is full, " + command.getClass().getName() + " was rejected");
+            this.command = command;
+        }
+    }
+
+    /**
+     * Signals that a command was not processed because a command with the same UUID
+     * has already been journalled and its result is no longer known (see
+     * {@link com.eventsourcing.repository.CommandConsumerConfiguration#getDeduplicationCacheSize()})
+     */
+    class DuplicateCommandException extends RuntimeException {
+        @Getter
+        private final Command<?, ?> command;
+
+        public DuplicateCommandException(Command<?, ?> command) {
+            super(command.getClass().getName() + " " + command.uuid() + " has already been journalled");
+            this.command = command;
+        }
+    }
+
+    /**
+     * Publishes a batch of commands asynchronously. Commands are processed in the order
+     * they are listed in. This is more efficient than publishing them one by one,
+     * as the underlying command queue is claimed for the whole batch at once.
+     *
+     * @param commands
+     * @param <C>      Result class
+     * @return {@link BatchPublication} with a future for every command and an aggregate future
+     */
+    <C> BatchPublication<C> publishAll(List<? extends Command<?, ? extends C>> commands);
+
     /**
      * Shortcut method for accessing index retrieval (see {@link #query(Class, Query, QueryOptions)} with
      * {@link QueryFactory#noQueryOptions()} specified as {@link QueryOptions}
@@ -213,7 +285,9 @@ public interface Repository extends Service {
      */
     default <E extends Entity> ResultSet<EntityHandle<E>> query(Class<E> klass, Query<EntityHandle<E>> query,
                                                                         QueryOptions queryOptions) {
-        return getIndexEngine().getIndexedCollection(klass).retrieve(query, queryOptions);
+        ResultSet<EntityHandle<E>> resultSet = getIndexEngine().getIndexedCollection(klass).retrieve(query, queryOptions);
+        Prefetch prefetch = queryOptions.get(Prefetch.class);
+        return prefetch == null ? resultSet : new PrefetchingResultSet<>(getJournal(), resultSet, prefetch.getSize());
     }
 
 }
@@ -10,25 +10,31 @@ package com.eventsourcing;
 import com.eventsourcing.hlc.HybridTimestamp;
 
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingDeque;
 
 /**
- * Standard {@link Entity} implementation. Will generate UUID if one is not provided.
+ * Standard {@link Entity} implementation. Will generate UUID if one is not provided
+ * (see {@link #setUUIDGenerator(UUIDGenerator)}).
  * @param <E>
  */
 public abstract class StandardEntity<E extends Entity> implements Entity<E> {
 
-    private static LinkedBlockingDeque<UUID> uuids = new LinkedBlockingDeque<>(10_000);
+    private static volatile UUIDGenerator uuidGenerator = new TimeOrderedUUIDGenerator();
 
-    static {
-        new Thread(() -> {
-            while (true) {
-                try {
-                    uuids.put(UUID.randomUUID());
-                } catch (InterruptedException e) {
-                }
-            }
-        }).start();
+    /**
+     * Sets the strategy for generating UUIDs of new entities.
+     * {@link TimeOrderedUUIDGenerator} by default.
+     *
+     * @param generator UUID generator
+     */
+    public static void setUUIDGenerator(UUIDGenerator generator) {
+        uuidGenerator = generator;
+    }
+
+    /**
+     * @return current strategy for generating UUIDs of new entities
+     */
+    public static UUIDGenerator getUUIDGenerator() {
+        return uuidGenerator;
     }
 
     private UUID uuid;
@@ -40,11 +46,8 @@ public abstract class StandardEntity<E extends Entity> implements Entity<E> {
      */
     @Override
     public UUID uuid() {
-        while (uuid == null) {
-            try {
-                uuid = uuids.take();
-            } catch (InterruptedException e) {
-            }
+        if (uuid == null) {
+            uuid = uuidGenerator.generate();
         }
         return uuid;
     }
@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates time-ordered UUIDs, laid out as version 7 UUIDs: 48 bits of the Unix time in milliseconds,
+ * followed by a 12-bit sequence number and 62 random bits. UUIDs generated later sort after
+ * the earlier ones (both by {@link UUID#compareTo(UUID)} and bytewise), which makes inserting
+ * them into ordered indices (such as B-trees) append-friendly.
+ * <p>
+ * Every thread keeps its own sequence, so there is no contention between threads. UUIDs generated by
+ * the same thread are strictly increasing: within the same millisecond, the sequence number is
+ * incremented and, should it overflow, the time is moved forward. Random bits come from
+ * {@link ThreadLocalRandom}, so, unlike {@link UUIDGenerator#RANDOM}, the UUIDs are not unpredictable.
+ */
+public class TimeOrderedUUIDGenerator implements UUIDGenerator {
+
+    private static final int SEQUENCE_BITS = 12;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long VERSION = 7L << SEQUENCE_BITS;
+    private static final long VARIANT = 0x8000000000000000L;
+    private static final long RANDOM_MASK = 0x3FFFFFFFFFFFFFFFL;
+
+    private final ThreadLocal<Sequence> sequences = ThreadLocal.withInitial(Sequence::new);
+
+    @Override
+    public UUID generate() {
+        Sequence sequence = sequences.get();
+        long time = System.currentTimeMillis();
+        if (time > sequence.time) {
+            sequence.time = time;
+            sequence.value = 0;
+        } else if (++sequence.value > SEQUENCE_MASK) {
+            sequence.time++;
+            sequence.value = 0;
+        }
+        long mostSigBits = sequence.time << 16 | VERSION | sequence.value;
+        long leastSigBits = VARIANT | ThreadLocalRandom.current().nextLong() & RANDOM_MASK;
+        return new UUID(mostSigBits, leastSigBits);
+    }
+
+    private static class Sequence {
+        private long time;
+        private long value;
+    }
+}
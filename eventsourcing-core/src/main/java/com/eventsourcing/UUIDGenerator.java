@@ -0,0 +1,29 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing;
+
+import java.util.UUID;
+
+/**
+ * Strategy for generating UUIDs of new entities (see {@link StandardEntity#setUUIDGenerator(UUIDGenerator)})
+ */
+@FunctionalInterface
+public interface UUIDGenerator {
+
+    /**
+     * Random (version 4) UUIDs, generated with {@link UUID#randomUUID()}
+     */
+    UUIDGenerator RANDOM = UUID::randomUUID;
+
+    /**
+     * Generates a new UUID. Must be safe to call from multiple threads.
+     *
+     * @return new UUID
+     */
+    UUID generate();
+}
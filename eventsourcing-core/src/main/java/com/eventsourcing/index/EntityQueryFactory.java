@@ -93,4 +93,15 @@ public class EntityQueryFactory {
         return new All<>(objectType);
     }
 
+    /**
+     * Creates a query option that makes the repository retrieve entities of the result set
+     * from the journal in chunks (see {@link Prefetch})
+     *
+     * @param size number of entities retrieved at once
+     * @return query option
+     */
+    public static Prefetch prefetch(int size) {
+        return new Prefetch(size);
+    }
+
 }
@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.index;
+
+import com.eventsourcing.Repository;
+import com.eventsourcing.repository.Journal;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import lombok.Getter;
+
+import java.util.Collection;
+
+/**
+ * Query option that makes {@link Repository#query(Class, Query, QueryOptions)} retrieve entities
+ * of the result set from the journal in chunks, with {@link Journal#getAll(Collection)}, as the
+ * result set is iterated (see {@link PrefetchingResultSet})
+ */
+public class Prefetch {
+    /**
+     * Number of entities retrieved at once
+     */
+    @Getter
+    private final int size;
+
+    public Prefetch(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size < 1");
+        }
+        this.size = size;
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.index;
+
+import com.eventsourcing.Entity;
+import com.eventsourcing.EntityHandle;
+import com.eventsourcing.repository.Journal;
+import com.eventsourcing.repository.JournalEntityHandle;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.util.*;
+
+/**
+ * Result set that retrieves entities of the handles it iterates over from the journal in chunks
+ * (see {@link Journal#getAll(Collection)}), rather than one by one, as they are accessed.
+ * Handles of entities retrieved are replaced with ones holding the entities.
+ *
+ * @param <O> entity type
+ */
+public class PrefetchingResultSet<O extends Entity> extends ResultSet<EntityHandle<O>> {
+
+    private final Journal journal;
+    private final ResultSet<EntityHandle<O>> resultSet;
+    private final int size;
+
+    /**
+     * @param journal   journal to retrieve entities from
+     * @param resultSet result set to iterate over
+     * @param size      number of entities retrieved at once
+     */
+    public PrefetchingResultSet(Journal journal, ResultSet<EntityHandle<O>> resultSet, int size) {
+        this.journal = journal;
+        this.resultSet = resultSet;
+        this.size = size;
+    }
+
+    @Override
+    public Iterator<EntityHandle<O>> iterator() {
+        Iterator<EntityHandle<O>> iterator = resultSet.iterator();
+        return new Iterator<EntityHandle<O>>() {
+            private final List<EntityHandle<O>> chunk = new ArrayList<>();
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < chunk.size() || iterator.hasNext();
+            }
+
+            @Override
+            public EntityHandle<O> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (index == chunk.size()) {
+                    prefetch();
+                }
+                return chunk.get(index++);
+            }
+
+            private void prefetch() {
+                chunk.clear();
+                index = 0;
+                List<UUID> uuids = new ArrayList<>(size);
+                while (chunk.size() < size && iterator.hasNext()) {
+                    EntityHandle<O> handle = iterator.next();
+                    chunk.add(handle);
+                    uuids.add(handle.uuid());
+                }
+                Map<UUID, O> entities = journal.getAll(uuids);
+                for (int i = 0; i < chunk.size(); i++) {
+                    UUID uuid = chunk.get(i).uuid();
+                    O entity = entities.get(uuid);
+                    if (entity != null) {
+                        chunk.set(i, new JournalEntityHandle<>(journal, uuid, entity));
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean contains(EntityHandle<O> object) {
+        return resultSet.contains(object);
+    }
+
+    @Override
+    public boolean matches(EntityHandle<O> object) {
+        return resultSet.matches(object);
+    }
+
+    @Override
+    public Query<EntityHandle<O>> getQuery() {
+        return resultSet.getQuery();
+    }
+
+    @Override
+    public QueryOptions getQueryOptions() {
+        return resultSet.getQueryOptions();
+    }
+
+    @Override
+    public int getRetrievalCost() {
+        return resultSet.getRetrievalCost();
+    }
+
+    @Override
+    public int getMergeCost() {
+        return resultSet.getMergeCost();
+    }
+
+    @Override
+    public int size() {
+        return resultSet.size();
+    }
+
+    @Override
+    public void close() {
+        resultSet.close();
+    }
+}
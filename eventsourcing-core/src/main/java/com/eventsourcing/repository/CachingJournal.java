@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.repository;
+
+import com.eventsourcing.*;
+import com.eventsourcing.hlc.HybridTimestamp;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.util.concurrent.AbstractService;
+import com.googlecode.cqengine.index.support.CloseableIterator;
+import lombok.Getter;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Reference;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Journal decorator that caches entities retrieved from the journal it decorates. Entities
+ * never change once journalled, so cached entities are never invalidated, other than when the journal
+ * is cleared.
+ * <p>
+ * The cache is bounded by the number of entities it holds. To keep entities that are retrieved
+ * only once (during a full scan, for example) from evicting frequently retrieved ones, an entity is
+ * admitted into the cache only when it is retrieved for the second time within the admission window.
+ * The window is tracked with a Bloom filter that is reset after every {@link #ADMISSION_WINDOW}
+ * times <code>maximumSize</code> retrievals that were not admitted.
+ * <p>
+ * Handles retrieved through this journal retrieve their entities through it as well.
+ * <p>
+ * As an OSGi component, it decorates the journal selected by <code>Journal.target</code> and is bounded
+ * by <code>maximumSize</code>; its cache statistics are exposed over JMX as
+ * <code>com.eventsourcing:type=journal,name=CachingJournal</code>. Otherwise, it can be registered with
+ * an MBean server directly (see {@link CachingJournalMBean}).
+ */
+@Component(configurationPolicy = ConfigurationPolicy.REQUIRE,
+           property = {"Journal.target=", "type=CachingJournal",
+                       "jmx.objectname=com.eventsourcing:type=journal,name=CachingJournal"})
+public class CachingJournal extends AbstractService implements Journal, CachingJournalMBean {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 10_000;
+    /**
+     * Size of the admission window, relative to the maximum cache size
+     */
+    public static final int ADMISSION_WINDOW = 10;
+
+    private static final Funnel<UUID> UUID_FUNNEL = (uuid, into) -> into.putLong(uuid.getMostSignificantBits())
+                                                                        .putLong(uuid.getLeastSignificantBits());
+
+    /**
+     * Journal being decorated
+     */
+    @Getter
+    private Journal journal;
+    private long maximumSize;
+    private long admissionWindow;
+    private Cache<UUID, Entity> cache;
+
+    // UUIDs of entities retrieved once within the admission window
+    private BloomFilter<UUID> doorkeeper;
+    private long doorkeeperSize;
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Creates a caching journal with no journal to decorate yet (see {@link #setJournal(Journal)})
+     */
+    public CachingJournal() {
+        this(null, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public CachingJournal(Journal journal) {
+        this(journal, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * @param journal     journal to decorate
+     * @param maximumSize maximum number of entities cached
+     */
+    public CachingJournal(Journal journal, long maximumSize) {
+        this.journal = journal;
+        setMaximumSize(maximumSize);
+    }
+
+    @Activate
+    protected void activate(ComponentContext ctx) {
+        Object maximumSize = ctx.getProperties().get("maximumSize");
+        if (maximumSize != null) {
+            setMaximumSize(Long.parseLong(maximumSize.toString().trim()));
+        }
+    }
+
+    private void setMaximumSize(long maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximumSize < 0");
+        }
+        this.maximumSize = maximumSize;
+        this.admissionWindow = Math.max(maximumSize * ADMISSION_WINDOW, 1);
+        cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+        resetDoorkeeper();
+    }
+
+    /**
+     * @param journal journal to decorate
+     * @throws IllegalStateException if the caching journal is running
+     */
+    @Reference
+    public void setJournal(Journal journal) throws IllegalStateException {
+        if (isRunning()) {
+            throw new IllegalStateException();
+        }
+        this.journal = journal;
+    }
+
+    private void resetDoorkeeper() {
+        doorkeeper = BloomFilter.create(UUID_FUNNEL, admissionWindow, 0.01);
+        doorkeeperSize = 0;
+    }
+
+    /**
+     * Admits an entity into the cache if it was retrieved within the admission window already
+     */
+    private void admit(Entity entity) {
+        synchronized (this) {
+            if (!doorkeeper.mightContain(entity.uuid())) {
+                doorkeeper.put(entity.uuid());
+                if (++doorkeeperSize >= admissionWindow) {
+                    resetDoorkeeper();
+                }
+                rejections.increment();
+                return;
+            }
+        }
+        cache.put(entity.uuid(), entity);
+    }
+
+    @Override
+    protected void doStart() {
+        journal.startAsync().awaitRunning();
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        journal.stopAsync().awaitTerminated();
+        notifyStopped();
+    }
+
+    @Override
+    public void onCommandsAdded(Set<Class<? extends Command>> commands) {
+        journal.onCommandsAdded(commands);
+    }
+
+    @Override
+    public void onEventsAdded(Set<Class<? extends Event>> events) {
+        journal.onEventsAdded(events);
+    }
+
+    @Override
+    public void setRepository(Repository repository) {
+        journal.setRepository(repository);
+    }
+
+    @Override
+    public long journal(Command<?, ?> command, Journal.Listener listener, LockProvider lockProvider) throws Exception {
+        return journal.journal(command, listener, lockProvider);
+    }
+
+    @Override
+    public void journal(List<? extends BatchEntry> batch) {
+        journal.journal(batch);
+    }
+
+    @Override @SuppressWarnings("unchecked")
+    public <T extends Entity> Optional<T> get(UUID uuid) {
+        Entity entity = cache.getIfPresent(uuid);
+        if (entity != null) {
+            return Optional.of((T) entity);
+        }
+        Optional<T> result = journal.get(uuid);
+        if (result.isPresent()) {
+            admit(result.get());
+        }
+        return result;
+    }
+
+    @Override @SuppressWarnings("unchecked")
+    public <T extends Entity> Map<UUID, T> getAll(Collection<UUID> uuids) {
+        Map<UUID, T> entities = new HashMap<>();
+        List<UUID> missing = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            Entity entity = cache.getIfPresent(uuid);
+            if (entity == null) {
+                missing.add(uuid);
+            } else {
+                entities.put(uuid, (T) entity);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<UUID, T> retrieved = journal.getAll(missing);
+            retrieved.values().forEach(this::admit);
+            entities.putAll(retrieved);
+        }
+        return entities;
+    }
+
+    @Override
+    public boolean contains(UUID uuid) {
+        // not a retrieval, so it is not counted as a cache hit or miss
+        return cache.asMap().containsKey(uuid) || journal.contains(uuid);
+    }
+
+    @Override
+    public Optional<HybridTimestamp> getVersion(Object key) {
+        return journal.getVersion(key);
+    }
+
+    @Override
+    public <T extends Command<?, ?>> CloseableIterator<EntityHandle<T>> commandIterator(Class<T> klass) {
+        return new EntityHandleIterator<>(journal.commandIterator(klass));
+    }
+
+    @Override
+    public <T extends Event> CloseableIterator<EntityHandle<T>> eventIterator(Class<T> klass) {
+        return new EntityHandleIterator<>(journal.eventIterator(klass));
+    }
+
+    @Override
+    public <T extends Event> CloseableIterator<EntityHandle<T>> eventIterator(Class<T> klass, HybridTimestamp from,
+                                                                               HybridTimestamp to) {
+        return new EntityHandleIterator<>(journal.eventIterator(klass, from, to));
+    }
+
+    @Override
+    public CloseableIterator<EntityHandle<Entity>> iterator(Position from) {
+        return new EntityHandleIterator<>(journal.iterator(from));
+    }
+
+    @Override
+    public void clear() {
+        journal.clear();
+        cache.invalidateAll();
+        synchronized (this) {
+            resetDoorkeeper();
+        }
+    }
+
+    @Override
+    public <T extends Entity> long size(Class<T> klass) {
+        return journal.size(klass);
+    }
+
+    @Override
+    public <T extends Entity> boolean isEmpty(Class<T> klass) {
+        return journal.isEmpty(klass);
+    }
+
+    @Override
+    public long getCacheSize() {
+        return cache.size();
+    }
+
+    @Override
+    public long getHits() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMisses() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    @Override
+    public long getEvictions() {
+        return cache.stats().evictionCount();
+    }
+
+    @Override
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    private class EntityHandleIterator<T extends Entity> implements CloseableIterator<EntityHandle<T>> {
+
+        private final CloseableIterator<EntityHandle<T>> iterator;
+
+        private EntityHandleIterator(CloseableIterator<EntityHandle<T>> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public EntityHandle<T> next() {
+            return new JournalEntityHandle<>(CachingJournal.this, iterator.next().uuid());
+        }
+
+        @Override
+        public void close() {
+            iterator.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.repository;
+
+/**
+ * Cache statistics of {@link CachingJournal}. Registered by the OSGi JMX whiteboard when the caching
+ * journal is an OSGi component, otherwise it can be registered explicitly, for example:
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer()
+ *                  .registerMBean(cachingJournal, new ObjectName("com.eventsourcing:type=journal,name=CachingJournal"));
+ * </pre>
+ */
+public interface CachingJournalMBean {
+    /**
+     * @return number of entities currently cached
+     */
+    long getCacheSize();
+
+    /**
+     * @return number of entities retrieved from the cache
+     */
+    long getHits();
+
+    /**
+     * @return number of entities not found in the cache and retrieved from the journal
+     */
+    long getMisses();
+
+    /**
+     * @return ratio of hits to all retrievals (1.0 if there were none)
+     */
+    double getHitRate();
+
+    /**
+     * @return number of entities evicted from the cache
+     */
+    long getEvictions();
+
+    /**
+     * @return number of entities retrieved from the journal and not admitted into the cache,
+     * as they were not retrieved recently enough
+     */
+    long getRejections();
+}
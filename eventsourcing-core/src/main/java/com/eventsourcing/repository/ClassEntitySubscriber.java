@@ -22,6 +22,13 @@ public class ClassEntitySubscriber<T extends Entity> implements EntitySubscriber
         this.klass = klass;
     }
 
+    /**
+     * @return class of entities this subscriber is interested in
+     */
+    public Class<T> getEntityClass() {
+        return klass;
+    }
+
     @Override public boolean matches(T entity) {
         return klass.isAssignableFrom(entity.getClass());
     }
@@ -8,18 +8,42 @@
 package com.eventsourcing.repository;
 
 import com.eventsourcing.Command;
+import com.eventsourcing.Repository;
 import com.eventsourcing.hlc.HybridTimestamp;
 import com.google.common.util.concurrent.Service;
 
-import java.util.Collection;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public interface CommandConsumer extends Service {
-    default <T, C extends Command<?, T>> CompletableFuture<T> publish(C command) {
-        return publish(command, Collections.emptyList());
+    <T, C extends Command<?, T>> CompletableFuture<T> publish(C command);
+
+    /**
+     * Publishes a command, waiting no longer than the specified timeout for space in the
+     * queue to become available.
+     *
+     * @return command's future, or a future completed exceptionally with
+     * {@link Repository.CommandRejectedException} if the command was not published in time
+     */
+    <T, C extends Command<?, T>> CompletableFuture<T> publish(C command, long timeout, TimeUnit unit);
+
+    /**
+     * @return number of commands that can be published without waiting
+     */
+    long remainingCapacity();
+
+    default <T> List<CompletableFuture<T>> publishAll(List<? extends Command<?, ? extends T>> commands) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(commands.size());
+        for (Command<?, ? extends T> command : commands) {
+            futures.add(publish((Command<?, T>) command));
+        }
+        return futures;
     }
-    <T, C extends Command<?, T>> CompletableFuture<T> publish(C command, Collection<EntitySubscriber> subscribers);
 
+    /**
+     * @return clock commands are timestamped with
+     */
     HybridTimestamp getTimestamp();
 }
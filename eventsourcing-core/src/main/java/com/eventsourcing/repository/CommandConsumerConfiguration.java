@@ -0,0 +1,300 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.repository;
+
+import com.eventsourcing.Command;
+import com.lmax.disruptor.*;
+import com.lmax.disruptor.dsl.ProducerType;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Dictionary;
+import java.util.function.Supplier;
+
+/**
+ * Configuration of the command processing pipeline of {@link RepositoryImpl}
+ *
+ * When used in an OSGi container, it is read from the component's configuration
+ * (see {@link #fromProperties(Dictionary)}).
+ */
+@ToString
+public class CommandConsumerConfiguration {
+
+    public static final int DEFAULT_RING_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_SUBSCRIBER_QUEUE_SIZE = 16384;
+    public static final int DEFAULT_SUBSCRIBER_BATCH_SIZE = 256;
+
+    public enum WaitStrategyType {
+        /**
+         * Uses a lock and condition variable. Slowest, but the most CPU-friendly.
+         */
+        BLOCKING(BlockingWaitStrategy::new),
+        /**
+         * Spins, then yields, then parks. A good compromise between latency and CPU usage.
+         */
+        SLEEPING(SleepingWaitStrategy::new),
+        /**
+         * Spins, then yields. Low latency, but will keep CPU cores busy.
+         */
+        YIELDING(YieldingWaitStrategy::new),
+        /**
+         * Spins. Lowest latency, should only be used when there are more
+         * CPU cores than command processing threads.
+         */
+        BUSY_SPIN(BusySpinWaitStrategy::new);
+
+        private final Supplier<WaitStrategy> supplier;
+
+        WaitStrategyType(Supplier<WaitStrategy> supplier) {
+            this.supplier = supplier;
+        }
+
+        public WaitStrategy create() {
+            return supplier.get();
+        }
+    }
+
+    /**
+     * Size of the command queue (per partition), has to be a power of 2.
+     * <p>
+     * {@value #DEFAULT_RING_BUFFER_SIZE} by default.
+     */
+    @Getter
+    private final int ringBufferSize;
+
+    /**
+     * Strategy used by command processing threads to wait for new commands.
+     * <p>
+     * {@link WaitStrategyType#BLOCKING} by default.
+     */
+    @Getter
+    private final WaitStrategyType waitStrategy;
+
+    /**
+     * {@link ProducerType#SINGLE} can only be used if commands are only ever published
+     * from one thread.
+     * <p>
+     * {@link ProducerType#MULTI} by default.
+     */
+    @Getter
+    private final ProducerType producerType;
+
+    /**
+     * Number of threads journalling commands (per partition). Note that with more than one
+     * journalling thread, commands are no longer journalled in the order of their timestamps,
+     * and commands acquiring the same locks might deadlock if a later command acquires
+     * a lock before an earlier one does.
+     * <p>
+     * 1 by default.
+     */
+    @Getter
+    private final int journalWorkers;
+
+    /**
+     * Number of threads completing journalled commands (per partition)
+     * <p>
+     * 1 by default.
+     */
+    @Getter
+    private final int completionWorkers;
+
+    /**
+     * When enabled, commands are journalled in groups (as many as are available to the
+     * journalling stage at once), each group in one journal transaction. This amortizes
+     * the cost of a transaction commit over bursts of commands. Note that commands in the same
+     * group will not be able to retrieve entities of the commands preceding them from
+     * the journal until the group is committed.
+     * <p>
+     * Disabled by default.
+     */
+    @Getter
+    private final boolean groupCommit;
+
+    /**
+     * Number of independent command processing partitions. Commands are assigned to
+     * partitions by {@link Command#partitionKey()}, so commands with different keys
+     * can be timestamped and journalled in parallel.
+     * <p>
+     * 1 by default.
+     */
+    @Getter
+    private final int partitions;
+
+    /**
+     * Maximum number of entity handles queued for delivery to an {@link EntitySubscriber}.
+     * Once reached, journalling will wait for the subscriber to catch up.
+     * <p>
+     * {@value #DEFAULT_SUBSCRIBER_QUEUE_SIZE} by default.
+     */
+    @Getter
+    private final int subscriberQueueSize;
+
+    /**
+     * Maximum number of entity handles delivered to an {@link EntitySubscriber} at once
+     * <p>
+     * {@value #DEFAULT_SUBSCRIBER_BATCH_SIZE} by default.
+     */
+    @Getter
+    private final int subscriberBatchSize;
+
+    /**
+     * Number of threads generating commands' events ({@link Command#events(Repository, LockProvider)})
+     * concurrently, ahead of the journalling stage (per partition). Commands are still
+     * journalled and timestamped in order, one at a time, but their (potentially blocking)
+     * event generation no longer holds up the commands behind them. Note that, since
+     * events of a command are generated before its predecessors are journalled, the command
+     * will not be able to retrieve entities of the commands still in flight from the journal.
+     * A command acquiring a lock waits for all preceding commands to finish generating
+     * their events first.
+     * <p>
+     * 0 (disabled) by default. Can't be combined with {@link #isGroupCommit()}.
+     */
+    @Getter
+    private final int executorThreads;
+
+    /**
+     * When enabled, every command's events are generated on a new virtual thread
+     * (see {@link #getExecutorThreads()}). If the JVM doesn't support virtual threads,
+     * a pool of {@link #getExecutorThreads()} threads (or one per available processor,
+     * if not set) is used instead.
+     * <p>
+     * Disabled by default. Can't be combined with {@link #isGroupCommit()}.
+     */
+    @Getter
+    private final boolean virtualThreads;
+
+    /**
+     * Number of recently published command UUIDs remembered (per partition). When enabled,
+     * publishing a command with the same UUID as a remembered one (for example, when a client
+     * retries) returns the original command's result future instead of processing it again.
+     * Commands that are no longer remembered are looked up in the journal before being
+     * journalled (see {@link Journal#contains(java.util.UUID)}) and, if found, are completed with
+     * {@link com.eventsourcing.Repository.DuplicateCommandException}. Commands that have failed
+     * are forgotten, so they can be retried. Should be larger than {@link #getRingBufferSize()}.
+     * <p>
+     * 0 (disabled) by default.
+     */
+    @Getter
+    private final int deduplicationCacheSize;
+
+    @Builder
+    public CommandConsumerConfiguration(Integer ringBufferSize, WaitStrategyType waitStrategy,
+                                        ProducerType producerType, Integer journalWorkers,
+                                        Integer completionWorkers, Boolean groupCommit, Integer partitions,
+                                        Integer subscriberQueueSize, Integer subscriberBatchSize,
+                                        Integer executorThreads, Boolean virtualThreads,
+                                        Integer deduplicationCacheSize) {
+        this.ringBufferSize = ringBufferSize == null ? DEFAULT_RING_BUFFER_SIZE : ringBufferSize;
+        this.waitStrategy = waitStrategy == null ? WaitStrategyType.BLOCKING : waitStrategy;
+        this.producerType = producerType == null ? ProducerType.MULTI : producerType;
+        this.journalWorkers = journalWorkers == null ? 1 : journalWorkers;
+        this.completionWorkers = completionWorkers == null ? 1 : completionWorkers;
+        this.groupCommit = groupCommit == null ? false : groupCommit;
+        this.partitions = partitions == null ? 1 : partitions;
+        this.subscriberQueueSize = subscriberQueueSize == null ? DEFAULT_SUBSCRIBER_QUEUE_SIZE : subscriberQueueSize;
+        this.subscriberBatchSize = subscriberBatchSize == null ? DEFAULT_SUBSCRIBER_BATCH_SIZE : subscriberBatchSize;
+        this.executorThreads = executorThreads == null ? 0 : executorThreads;
+        this.virtualThreads = virtualThreads == null ? false : virtualThreads;
+        this.deduplicationCacheSize = deduplicationCacheSize == null ? 0 : deduplicationCacheSize;
+        if (this.ringBufferSize < 1 || Integer.bitCount(this.ringBufferSize) != 1) {
+            throw new IllegalArgumentException("ringBufferSize must be a power of 2");
+        }
+        if (this.journalWorkers < 1) {
+            throw new IllegalArgumentException("journalWorkers < 1");
+        }
+        if (this.completionWorkers < 1) {
+            throw new IllegalArgumentException("completionWorkers < 1");
+        }
+        if (this.partitions < 1) {
+            throw new IllegalArgumentException("partitions < 1");
+        }
+        if (this.subscriberQueueSize < 1) {
+            throw new IllegalArgumentException("subscriberQueueSize < 1");
+        }
+        if (this.subscriberBatchSize < 1) {
+            throw new IllegalArgumentException("subscriberBatchSize < 1");
+        }
+        if (this.executorThreads < 0) {
+            throw new IllegalArgumentException("executorThreads < 0");
+        }
+        if (this.deduplicationCacheSize < 0) {
+            throw new IllegalArgumentException("deduplicationCacheSize < 0");
+        }
+        if (this.groupCommit && isConcurrentExecution()) {
+            throw new IllegalArgumentException("groupCommit can't be combined with executorThreads or virtualThreads");
+        }
+    }
+
+    /**
+     * @return true if commands' events are generated concurrently
+     * (see {@link #getExecutorThreads()} and {@link #isVirtualThreads()})
+     */
+    public boolean isConcurrentExecution() {
+        return executorThreads > 0 || virtualThreads;
+    }
+
+    /**
+     * Reads configuration from (OSGi component) properties. Recognized properties are
+     * <code>ringBufferSize</code>, <code>waitStrategy</code> (see {@link WaitStrategyType}),
+     * <code>producerType</code> (see {@link ProducerType}), <code>journalWorkers</code>,
+     * <code>completionWorkers</code>, <code>groupCommit</code>, <code>partitions</code>,
+     * <code>subscriberQueueSize</code>, <code>subscriberBatchSize</code>, <code>executorThreads</code>,
+     * <code>virtualThreads</code> and <code>deduplicationCacheSize</code>.
+     * Missing properties are set to their defaults.
+     *
+     * @param properties
+     * @return configuration
+     */
+    public static CommandConsumerConfiguration fromProperties(Dictionary<String, ?> properties) {
+        CommandConsumerConfigurationBuilder builder = builder();
+        String value;
+        if ((value = getProperty(properties, "ringBufferSize")) != null) {
+            builder.ringBufferSize(Integer.parseInt(value));
+        }
+        if ((value = getProperty(properties, "waitStrategy")) != null) {
+            builder.waitStrategy(WaitStrategyType.valueOf(value));
+        }
+        if ((value = getProperty(properties, "producerType")) != null) {
+            builder.producerType(ProducerType.valueOf(value));
+        }
+        if ((value = getProperty(properties, "journalWorkers")) != null) {
+            builder.journalWorkers(Integer.parseInt(value));
+        }
+        if ((value = getProperty(properties, "completionWorkers")) != null) {
+            builder.completionWorkers(Integer.parseInt(value));
+        }
+        if ((value = getProperty(properties, "groupCommit")) != null) {
+            builder.groupCommit(Boolean.parseBoolean(value));
+        }
+        if ((value = getProperty(properties, "partitions")) != null) {
+            builder.partitions(Integer.parseInt(value));
+        }
+        if ((value = getProperty(properties, "subscriberQueueSize")) != null) {
+            builder.subscriberQueueSize(Integer.parseInt(value));
+        }
+        if ((value = getProperty(properties, "subscriberBatchSize")) != null) {
+            builder.subscriberBatchSize(Integer.parseInt(value));
+        }
+        if ((value = getProperty(properties, "executorThreads")) != null) {
+            builder.executorThreads(Integer.parseInt(value));
+        }
+        if ((value = getProperty(properties, "virtualThreads")) != null) {
+            builder.virtualThreads(Boolean.parseBoolean(value));
+        }
+        if ((value = getProperty(properties, "deduplicationCacheSize")) != null) {
+            builder.deduplicationCacheSize(Integer.parseInt(value));
+        }
+        return builder.build();
+    }
+
+    private static String getProperty(Dictionary<String, ?> properties, String name) {
+        Object value = properties.get(name);
+        return value == null ? null : value.toString().trim();
+    }
+}
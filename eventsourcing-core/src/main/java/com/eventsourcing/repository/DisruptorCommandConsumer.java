@@ -9,17 +9,22 @@ package com.eventsourcing.repository;
 
 import com.eventsourcing.*;
 import com.eventsourcing.hlc.HybridTimestamp;
-import com.eventsourcing.hlc.PhysicalTimeProvider;
+import com.eventsourcing.hlc.InstrumentedHybridTimestamp;
 import com.eventsourcing.index.IndexEngine;
 import com.eventsourcing.layout.Layout;
 import com.eventsourcing.layout.ObjectDeserializer;
 import com.eventsourcing.layout.Serialization;
 import com.eventsourcing.layout.binary.BinarySerialization;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.util.concurrent.AbstractService;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.googlecode.cqengine.IndexedCollection;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorTwoArg;
 import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.WorkHandler;
 import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.EventHandlerGroup;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.SneakyThrows;
@@ -28,9 +33,13 @@ import lombok.extern.slf4j.Slf4j;
 import java.lang.reflect.Constructor;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Function;
-import java.util.stream.Stream;
 
 @Slf4j
 class DisruptorCommandConsumer extends AbstractService implements CommandConsumer {
@@ -40,22 +49,31 @@ class DisruptorCommandConsumer extends AbstractService implements CommandConsume
     private final Repository repository;
     private final Journal journal;
     private final IndexEngine indexEngine;
+    private final EntitySubscriberDispatcher dispatcher;
     private final LockProvider lockProvider;
+    private final CommandConsumerConfiguration configuration;
+    // Result futures of recently published commands (deduplication only)
+    private final ConcurrentMap<UUID, CompletableFuture<?>> recentCommands;
     private final Map<Class<? extends Command>, Layout> layouts = new HashMap<>();
     private final Map<Class<? extends Command>, ObjectDeserializer<?>> deserializers = new HashMap<>();
 
     private static class CommandEvent {
-        @Getter @Setter
-        Collection<EntitySubscriber> entitySubscribers = new ArrayList<>();
         Map<Class<? extends Command>, Command> commands = new HashMap<>();
-        TrackingLockProvider lockProvider;
+        final TrackingLockProvider lockProvider;
         CompletableFuture completed;
+        // Command's events, if they are generated ahead of journalling
+        CompletableFuture<EventStream<?>> events;
+        // Whether the command has been found to be journalled already, or null if it
+        // hasn't been looked up yet (deduplication only)
+        Boolean duplicate;
         @Getter @Setter
         Object state;
         private Class<? extends Command> commandClass;
 
         @SneakyThrows
-        public CommandEvent(Iterable<Class<? extends Command>> classes) {
+        public CommandEvent(Iterable<Class<? extends Command>> classes, LockProvider lockProvider) {
+            this.lockProvider = new TrackingLockProvider(lockProvider);
+            this.lockProvider.startAsync().awaitRunning();
             for (Class<? extends Command> cmd : classes) {
                 Layout<? extends Command> layout = Layout.forClass(cmd);
                 commands.put(cmd, layout.instantiate());
@@ -79,47 +97,70 @@ class DisruptorCommandConsumer extends AbstractService implements CommandConsume
         }
     }
 
-    public static final int RING_BUFFER_SIZE = 1024;
     private RingBuffer<CommandEvent> ringBuffer;
     private Disruptor<CommandEvent> disruptor;
+    private ExecutorService executor;
 
     @Getter
-    private HybridTimestamp timestamp;
+    private InstrumentedHybridTimestamp timestamp;
 
     private static class JournalListener implements Journal.Listener {
         private final CommandEvent disruptorEvent;
         private final IndexEngine indexEngine;
         private final Journal journal;
+        private final EntitySubscriberDispatcher dispatcher;
         private final Command<?, ?> command;
         private final HybridTimestamp timestamp;
         private HybridTimestamp lastTimestamp;
+        private boolean committed;
 
-        private final Map<EntitySubscriber, Set<UUID>> subscriptions = new HashMap<>();
+        // Entity handles to be dispatched to subscribers, allocated only if any of them matched
+        private Map<EntitySubscriber, List<EntityHandle>> subscriptions;
         
-        private JournalListener(CommandEvent event, IndexEngine indexEngine, Journal journal, Command<?, ?> command,
+        private JournalListener(CommandEvent event, IndexEngine indexEngine, Journal journal,
+                                EntitySubscriberDispatcher dispatcher, Command<?, ?> command,
                                 HybridTimestamp timestamp) {
             this.disruptorEvent = event;
             this.indexEngine = indexEngine;
             this.journal = journal;
+            this.dispatcher = dispatcher;
             this.command = command;
             this.timestamp = timestamp;
-            disruptorEvent.getEntitySubscribers().forEach(s -> subscriptions.put(s, new HashSet<>()));
-            lastTimestamp = command.timestamp().clone();
+            lastTimestamp = command.timestamp();
         }
 
         @Override public void onCommandStateReceived(Object state) {
             disruptorEvent.setState(state);
         }
 
+        @SuppressWarnings("unchecked")
+        private void route(Entity entity, EntityHandle handle) {
+            EntitySubscriberDispatcher.Route route = dispatcher.route(entity.getClass());
+            for (EntitySubscriber subscriber : route.getSubscribers()) {
+                subscribe(subscriber, handle);
+            }
+            for (EntitySubscriber subscriber : route.getConditionalSubscribers()) {
+                if (subscriber.matches(entity)) {
+                    subscribe(subscriber, handle);
+                }
+            }
+        }
+
+        private void subscribe(EntitySubscriber subscriber, EntityHandle handle) {
+            if (subscriptions == null) {
+                subscriptions = new HashMap<>();
+            }
+            subscriptions.computeIfAbsent(subscriber, s -> new ArrayList<>()).add(handle);
+        }
+
         @Override @SuppressWarnings("unchecked")
         public void onEvent(Event event) {
             IndexedCollection<EntityHandle<Event>> coll = indexEngine
                     .getIndexedCollection((Class<Event>) event.getClass());
-            coll.add(new JournalEntityHandle<>(journal, event.uuid()));
-            lastTimestamp = event.timestamp().clone();
-            disruptorEvent.getEntitySubscribers().stream()
-                    .filter(s -> s.matches(event))
-                    .forEach(s -> subscriptions.get(s).add(event.uuid()));
+            JournalEntityHandle<Event> handle = new JournalEntityHandle<>(journal, event.uuid());
+            coll.add(handle);
+            lastTimestamp = event.timestamp();
+            route(event, handle);
         }
 
         @Override @SuppressWarnings("unchecked")
@@ -128,43 +169,127 @@ class DisruptorCommandConsumer extends AbstractService implements CommandConsume
                     .getIndexedCollection((Class<Command<?, ?>>) command.getClass());
             EntityHandle<Command<?, ?>> commandHandle = new JournalEntityHandle<>(journal, command.uuid());
             coll.add(commandHandle);
-            subscriptions.entrySet().stream()
-                    .forEach(entry -> entry.getKey()
-                                           .accept(entry.getValue()
-                                                        .stream()
-                                                        .map(uuid -> new JournalEntityHandle<>(journal, uuid))));
-            disruptorEvent.getEntitySubscribers().stream()
-                    .filter(s -> s.matches(command))
-                    .forEach(s -> s.accept(Stream.of(commandHandle)));
+            route(command, commandHandle);
+            committed = true;
             timestamp.update(lastTimestamp);
         }
 
+        /**
+         * Dispatches the committed command's entities to subscribers. Called once the journal has
+         * returned rather than from {@link #onCommit()}, as journals can notify listeners while
+         * holding their locks and dispatching blocks until a lagging subscriber catches up (which
+         * it might never do if it reads the journal).
+         */
+        private void dispatch() {
+            if (committed && subscriptions != null) {
+                subscriptions.forEach(dispatcher::dispatch);
+            }
+        }
+
         @Override
         public void onAbort(Throwable throwable) {
 
         }
     }
 
+    /**
+     * Lock provider that keeps track of the locks taken by a command so that
+     * they can be released once the command is completed.
+     *
+     * One instance is owned by every ring buffer slot and is reused for every
+     * command published into it, so tracking doesn't allocate anything unless
+     * locks are actually taken.
+     */
     private static class TrackingLockProvider extends AbstractService implements LockProvider {
 
-        private final Set<Lock> locks = new HashSet<>();
+        private final List<TrackingLock> locks = new ArrayList<>(4);
         private final LockProvider lockProvider;
+        // Command the locks are taken by
+        private Command<?, ?> command;
+        // Events journalled in the same batch prior to this one (group commit only)
+        private List<CommandEvent> batch;
+        private int position;
+        // Completes once all commands preceding this one have generated
+        // their events (concurrent execution only)
+        private CompletableFuture<?> predecessors;
 
         private TrackingLockProvider(LockProvider lockProvider) {
             this.lockProvider = lockProvider;
         }
 
+        private void reset(Command<?, ?> command) {
+            this.command = command;
+            release();
+            batch(null, 0);
+            predecessors = null;
+        }
+
+        private void batch(List<CommandEvent> batch, int position) {
+            this.batch = batch;
+            this.position = position;
+        }
+
         private void release() {
-            for (Lock lock : locks) {
-                lock.unlock();
+            for (int i = 0; i < locks.size(); i++) {
+                locks.get(i).lock.unlock();
+            }
+            locks.clear();
+        }
+
+        /**
+         * @return true if the lock is held in a mode that conflicts with the requested one
+         */
+        private boolean holds(Object lock, boolean shared) {
+            for (int i = 0; i < locks.size(); i++) {
+                TrackingLock l = locks.get(i);
+                if (l.key.equals(lock) && !(shared && l.shared)) {
+                    return true;
+                }
             }
+            return false;
         }
 
         @Override
         public Lock lock(Object lock) {
-            Lock l = lockProvider.lock(lock);
+            await(lock, false);
+            return track(lock, false, lockProvider.lock(lock, command));
+        }
+
+        @Override
+        public Lock lockShared(Object lock) {
+            await(lock, true);
+            return track(lock, true, lockProvider.lockShared(lock, command));
+        }
+
+        @Override
+        public Optional<Lock> tryLock(Object lock, long timeout, TimeUnit unit) {
+            await(lock, false);
+            return lockProvider.tryLock(lock, command, timeout, unit).map(l -> track(lock, false, l));
+        }
+
+        private Lock track(Object key, boolean shared, Lock lock) {
+            TrackingLock l = new TrackingLock(key, shared, lock);
             locks.add(l);
-            return new TrackingLock(l);
+            return l;
+        }
+
+        private void await(Object lock, boolean shared) {
+            // When group-committing, commands preceding this one in the same batch
+            // will only release their locks after the batch is committed. Instead of
+            // waiting for them forever, split the batch.
+            for (int i = 0; i < position; i++) {
+                if (batch.get(i).lockProvider.holds(lock, shared)) {
+                    throw new Journal.BatchSplitException();
+                }
+            }
+            // When executing concurrently, a command acquiring a lock lets all
+            // commands preceding it acquire theirs first, so that locks are still
+            // taken in the order of commands (otherwise, a later command could take
+            // a lock an earlier one needs and then wait for the earlier one to be
+            // journalled forever)
+            if (predecessors != null) {
+                predecessors.join();
+            }
         }
 
         @Override
@@ -179,16 +304,20 @@ class DisruptorCommandConsumer extends AbstractService implements CommandConsume
 
         class TrackingLock implements Lock {
 
+            private final Object key;
+            private final boolean shared;
             private final Lock lock;
 
-            public TrackingLock(Lock lock) {
+            public TrackingLock(Object key, boolean shared, Lock lock) {
+                this.key = key;
+                this.shared = shared;
                 this.lock = lock;
             }
 
             @Override
             public void unlock() {
                 lock.unlock();
-                locks.remove(lock);
+                locks.remove(this);
             }
 
             @Override
@@ -200,17 +329,30 @@ class DisruptorCommandConsumer extends AbstractService implements CommandConsume
 
     private final static Serialization serialization = BinarySerialization.getInstance();
 
+    // Bounds of the time a publisher waiting for capacity parks for between attempts
+    private static final long MIN_PUBLISH_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_PUBLISH_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
     @SneakyThrows
     public DisruptorCommandConsumer(Iterable<Class<? extends Command>> commandClasses,
-                                    PhysicalTimeProvider timeProvider,
+                                    InstrumentedHybridTimestamp timestamp,
                                     Repository repository, Journal journal, IndexEngine indexEngine,
-                                    LockProvider lockProvider) {
+                                    EntitySubscriberDispatcher dispatcher, LockProvider lockProvider,
+                                    CommandConsumerConfiguration configuration) {
         this.commandClasses = commandClasses;
         this.repository = repository;
         this.journal = journal;
         this.indexEngine = indexEngine;
+        this.dispatcher = dispatcher;
         this.lockProvider = lockProvider;
-        this.timestamp = new HybridTimestamp(timeProvider);
+        this.configuration = configuration;
+        this.timestamp = timestamp;
+        if (configuration.getDeduplicationCacheSize() > 0) {
+            recentCommands = CacheBuilder.newBuilder().maximumSize(configuration.getDeduplicationCacheSize())
+                                         .<UUID, CompletableFuture<?>>build().asMap();
+        } else {
+            recentCommands = null;
+        }
         for (Class<? extends Command> cmd : commandClasses) {
             Layout<? extends Command> layout = Layout.forClass(cmd);
             layouts.put(cmd, layout);
@@ -221,66 +363,384 @@ class DisruptorCommandConsumer extends AbstractService implements CommandConsume
     private void timestamp(CommandEvent event, long sequence, boolean endOfBatch) throws Exception {
         Command command = event.getCommand();
         if (command.timestamp() == null) {
-            timestamp.update();
-            command.timestamp(timestamp.clone());
+            command.timestamp(timestamp.next());
         } else {
-            timestamp.update(timestamp.clone());
+            timestamp.update(command.timestamp());
         }
     }
 
+    /**
+     * Generates commands' events on the executor, ahead of journalling. Events are
+     * fully materialized there so that the journalling thread doesn't end up running
+     * any (potentially blocking) command code.
+     */
+    private class ExecutionHandler implements EventHandler<CommandEvent> {
+
+        // Completes once all commands handled so far have generated their events
+        private CompletableFuture<?> executed = CompletableFuture.completedFuture(null);
+
+        @Override
+        public void onEvent(CommandEvent event, long sequence, boolean endOfBatch) throws Exception {
+            // Don't generate events of a command that won't be journalled
+            if (duplicate(event)) {
+                return;
+            }
+            Command command = event.getCommand();
+            TrackingLockProvider lockProvider = event.lockProvider;
+            lockProvider.predecessors = executed;
+            CompletableFuture<EventStream<?>> events = new CompletableFuture<>();
+            executor.execute(() -> {
+                try {
+                    events.complete(execute(command, lockProvider));
+                } catch (Throwable e) {
+                    events.completeExceptionally(e);
+                }
+            });
+            event.events = events;
+            CompletableFuture<?> previous = executed;
+            executed = previous.isDone() ? events.handle((r, e) -> null)
+                                         : events.handle((r, e) -> null).thenCombine(previous, (r, p) -> null);
+        }
+    }
+
+    /**
+     * @throws Exception if the command has failed to generate its events, in which case the command's
+     *                   events complete exceptionally and the journal terminates the command with the
+     *                   exception (none of the events generated before the failure are journalled)
+     */
+    private EventStream<?> execute(Command<?, ?> command, LockProvider lockProvider) throws Exception {
+        EventStream<?> eventStream = command.events(repository, lockProvider);
+        EventStream.Builder<?> events = EventStream.builder(eventStream.getState());
+        eventStream.drainTo(events);
+        EventStream<?> result = events.build();
+        eventStream.getExpectedVersions().forEach(result::expectVersion);
+        return result;
+    }
+
+    /**
+     * Completes the command with {@link Repository.DuplicateCommandException} if a command
+     * with the same UUID has already been journalled (deduplication only). The journal is only
+     * looked up once per command: with concurrent execution, that is before the command's events
+     * are generated, and the journalling stage reuses the outcome.
+     *
+     * @return true if the command is a duplicate
+     */
+    private boolean duplicate(CommandEvent event) {
+        if (recentCommands == null) {
+            return false;
+        }
+        if (event.duplicate == null) {
+            Command command = event.getCommand();
+            event.duplicate = journal.contains(command.uuid());
+            if (event.duplicate) {
+                event.completed.completeExceptionally(new Repository.DuplicateCommandException(command));
+            }
+        }
+        return event.duplicate;
+    }
+
     private void journal(CommandEvent event) throws Exception {
+        if (duplicate(event)) {
+            return;
+        }
         Command command = event.getCommand();
-        event.lockProvider = new TrackingLockProvider(this.lockProvider);
-        event.lockProvider.startAsync().awaitRunning();
-        journal.journal(command, new JournalListener(event, indexEngine, journal, command, timestamp), event.lockProvider);
+        JournalListener listener = new JournalListener(event, indexEngine, journal, dispatcher, command, timestamp);
+        try {
+            if (event.events == null) {
+                journal.journal(command, listener, event.lockProvider);
+            } else {
+                new Journal.BatchEntry(command, listener, event.lockProvider, event.events).journal(journal);
+            }
+        } finally {
+            listener.dispatch();
+        }
+    }
+
+    /**
+     * Journals commands in groups. With more than one journalling thread, each of them
+     * handles its share of sequences (<code>sequence % count == index</code>).
+     */
+    private class GroupCommitHandler implements EventHandler<CommandEvent> {
+
+        private final List<CommandEvent> events = new ArrayList<>();
+        private final int index;
+        private final int count;
+
+        private GroupCommitHandler(int index, int count) {
+            this.index = index;
+            this.count = count;
+        }
+
+        @Override
+        public void onEvent(CommandEvent event, long sequence, boolean endOfBatch) throws Exception {
+            if (sequence % count == index && !duplicate(event)) {
+                events.add(event);
+            }
+            if (endOfBatch && !events.isEmpty()) {
+                try {
+                    journal(events);
+                } finally {
+                    events.clear();
+                }
+            }
+        }
+    }
+
+    private void journal(List<CommandEvent> events) throws Exception {
+        int offset = 0;
+        while (offset < events.size()) {
+            List<CommandEvent> batch = events.subList(offset, events.size());
+            List<Journal.BatchEntry> entries = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                CommandEvent event = batch.get(i);
+                Command command = event.getCommand();
+                event.lockProvider.batch(batch, i);
+                JournalListener listener = new JournalListener(event, indexEngine, journal, dispatcher, command,
+                                                               timestamp);
+                entries.add(new Journal.BatchEntry(command, listener, event.lockProvider));
+            }
+
+            try {
+                journal.journal(entries);
+            } catch (Exception e) {
+                entries.stream().filter(entry -> !entry.isJournalled()).forEach(entry -> {
+                    entry.setJournalled(true);
+                    entry.setException(e);
+                });
+            }
+            for (Journal.BatchEntry entry : entries) {
+                ((JournalListener) entry.getListener()).dispatch();
+            }
+
+            int journalled = 0;
+            for (Journal.BatchEntry entry : entries) {
+                if (!entry.isJournalled()) {
+                    break;
+                }
+                CommandEvent event = batch.get(journalled);
+                event.lockProvider.batch(null, 0);
+                if (entry.getException() != null) {
+                    event.lockProvider.release();
+                    event.completed.completeExceptionally(entry.getException());
+                }
+                journalled++;
+            }
+
+            if (journalled < batch.size()) {
+                // The batch was split because a command was waiting for the locks
+                // held by the commands journalled prior to it. Complete those now
+                // to release the locks and try again with the rest of the batch.
+                for (CommandEvent event : batch.subList(0, journalled)) {
+                    try {
+                        complete(event);
+                    } catch (Exception e) {
+                        event.lockProvider.release();
+                        event.completed.completeExceptionally(e);
+                    }
+                }
+                batch.get(journalled).lockProvider.release();
+            }
+
+            offset += journalled;
+        }
     }
 
     private void complete(CommandEvent event) throws Exception {
-        if (!event.completed.isCompletedExceptionally()) {
+        if (!event.completed.isDone()) {
             event.completed.complete(event.getCommand().result(event.getState(), repository, event.lockProvider));
-            event.lockProvider.release();
         }
+        event.lockProvider.release();
     }
 
     private <T, C extends Command<?, T>> void translate(CommandEvent event, long sequence, C command,
-                                                        Collection<EntitySubscriber> subscribers,
                                                         CompletableFuture<T> completed) {
-        event.setEntitySubscribers(subscribers);
         event.setCommandClass((Class<Command>) command.getClass());
         event.commands.put(command.getClass(), command);
         event.completed = completed;
+        event.events = null;
+        event.duplicate = null;
+        event.lockProvider.reset(command);
     }
 
-    @Override
-    public <T, C extends Command<?, T>> CompletableFuture<T> publish(C command, Collection<EntitySubscriber>
-            subscribers) {
+    /**
+     * Remembers the command's result future (deduplication only)
+     *
+     * @return result future of the command published earlier with the same UUID, if it is still remembered
+     */
+    private CompletableFuture<?> deduplicate(Command<?, ?> command, CompletableFuture<?> future) {
+        if (recentCommands == null) {
+            return null;
+        }
+        UUID uuid = command.uuid();
+        CompletableFuture<?> original = recentCommands.putIfAbsent(uuid, future);
+        if (original == null) {
+            // Failed commands can be retried
+            future.whenComplete((result, throwable) -> {
+                if (throwable != null) {
+                    recentCommands.remove(uuid, future);
+                }
+            });
+        }
+        return original;
+    }
+
+    @Override @SuppressWarnings("unchecked")
+    public <T, C extends Command<?, T>> CompletableFuture<T> publish(C command) {
         CompletableFuture<T> future = new CompletableFuture<>();
-        ringBuffer.publishEvent(this::translate, command, subscribers, future);
+        CompletableFuture<?> original = deduplicate(command, future);
+        if (original != null) {
+            return (CompletableFuture<T>) original;
+        }
+        ringBuffer.publishEvent(this::translate, command, future);
+        return future;
+    }
+
+    @Override @SuppressWarnings("unchecked")
+    public <T, C extends Command<?, T>> CompletableFuture<T> publish(C command, long timeout, TimeUnit unit) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        CompletableFuture<?> original = deduplicate(command, future);
+        if (original != null) {
+            return (CompletableFuture<T>) original;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // Back off exponentially so that publishers waiting out a sustained backpressure
+        // don't keep a core busy each
+        long park = MIN_PUBLISH_PARK_NANOS;
+        while (!ringBuffer.tryPublishEvent(this::translate, command, future)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                future.completeExceptionally(new Repository.CommandRejectedException(command));
+                break;
+            }
+            LockSupport.parkNanos(Math.min(park, remaining));
+            park = Math.min(park * 2, MAX_PUBLISH_PARK_NANOS);
+        }
         return future;
     }
 
+    @Override
+    public long remainingCapacity() {
+        return ringBuffer.remainingCapacity();
+    }
+
+    @Override @SuppressWarnings("unchecked")
+    public <T> List<CompletableFuture<T>> publishAll(List<? extends Command<?, ? extends T>> commands) {
+        Command[] batch = commands.toArray(new Command[commands.size()]);
+        CompletableFuture[] futures = new CompletableFuture[batch.length];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = new CompletableFuture<>();
+        }
+        CompletableFuture[] results = futures;
+        int count = batch.length;
+        if (recentCommands != null) {
+            // Leave out the commands that have been published already
+            results = futures.clone();
+            count = 0;
+            for (int i = 0; i < batch.length; i++) {
+                CompletableFuture<?> original = deduplicate(batch[i], futures[i]);
+                if (original == null) {
+                    batch[count] = batch[i];
+                    futures[count] = futures[i];
+                    count++;
+                } else {
+                    results[i] = original;
+                }
+            }
+        }
+        EventTranslatorTwoArg<CommandEvent, Command, CompletableFuture> translator = this::translate;
+        // A single claim can't exceed the size of the ring buffer
+        int bufferSize = ringBuffer.getBufferSize();
+        for (int offset = 0; offset < count; offset += bufferSize) {
+            int size = Math.min(bufferSize, count - offset);
+            ringBuffer.publishEvents(translator, offset, size, batch, futures);
+        }
+        return Arrays.asList((CompletableFuture<T>[]) results);
+    }
+
 
     @Override @SuppressWarnings("unchecked")
     protected void doStart() {
         log.info("Starting command consumer");
 
+        if (configuration.isConcurrentExecution() && !acceptsEventsGeneratedInAdvance(journal)) {
+            notifyFailed(new IllegalStateException(journal.getClass().getName() + " doesn't accept events " +
+                                                   "generated in advance, commands can't be executed concurrently"));
+            return;
+        }
+
         ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("eventsourcing-%d").setDaemon(true)
                                                                 .build();
 
-        disruptor = new Disruptor<>(() -> new CommandEvent(commandClasses), RING_BUFFER_SIZE, threadFactory);
+        disruptor = new Disruptor<>(() -> new CommandEvent(commandClasses, lockProvider),
+                                    configuration.getRingBufferSize(), threadFactory,
+                                    configuration.getProducerType(), configuration.getWaitStrategy().create());
         disruptor.setDefaultExceptionHandler(new CommandEventExceptionHandler());
 
-        disruptor.handleEventsWith(this::timestamp).thenHandleEventsWithWorkerPool(this::journal)
-                 .thenHandleEventsWithWorkerPool(this::complete);
+        EventHandlerGroup<CommandEvent> timestamping = disruptor.handleEventsWith(this::timestamp);
+        if (configuration.isConcurrentExecution()) {
+            executor = createExecutor();
+            timestamping = timestamping.then(new ExecutionHandler());
+        }
+
+        int journalWorkers = configuration.getJournalWorkers();
+        EventHandlerGroup<CommandEvent> journalling;
+        if (configuration.isGroupCommit()) {
+            EventHandler<CommandEvent>[] handlers = new EventHandler[journalWorkers];
+            for (int i = 0; i < journalWorkers; i++) {
+                handlers[i] = new GroupCommitHandler(i, journalWorkers);
+            }
+            journalling = timestamping.then(handlers);
+        } else {
+            WorkHandler<CommandEvent>[] handlers = new WorkHandler[journalWorkers];
+            Arrays.fill(handlers, (WorkHandler<CommandEvent>) this::journal);
+            journalling = timestamping.thenHandleEventsWithWorkerPool(handlers);
+        }
+
+        WorkHandler<CommandEvent>[] completionHandlers = new WorkHandler[configuration.getCompletionWorkers()];
+        Arrays.fill(completionHandlers, (WorkHandler<CommandEvent>) this::complete);
+        journalling.thenHandleEventsWithWorkerPool(completionHandlers);
 
         ringBuffer = disruptor.start();
 
         notifyStarted();
     }
 
+    /**
+     * @return true if the journal overrides {@link Journal#journal(List)} (the default implementation
+     * doesn't accept entries with events generated in advance)
+     */
+    private static boolean acceptsEventsGeneratedInAdvance(Journal journal) {
+        if (journal instanceof CachingJournal) {
+            return acceptsEventsGeneratedInAdvance(((CachingJournal) journal).getJournal());
+        }
+        try {
+            return journal.getClass().getMethod("journal", List.class).getDeclaringClass() != Journal.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private ExecutorService createExecutor() {
+        if (configuration.isVirtualThreads()) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads are not supported by this JVM, executing commands on a thread pool");
+            }
+        }
+        int threads = configuration.getExecutorThreads() > 0 ? configuration.getExecutorThreads()
+                                                            : Runtime.getRuntime().availableProcessors();
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("eventsourcing-executor-%d")
+                                                                .setDaemon(true).build();
+        return Executors.newFixedThreadPool(threads, threadFactory);
+    }
+
     @Override
     protected void doStop() {
         disruptor.shutdown();
+        if (executor != null) {
+            executor.shutdown();
+        }
         notifyStopped();
     }
 
@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.repository;
+
+import com.eventsourcing.Entity;
+import com.eventsourcing.EntityHandle;
+import com.google.common.util.concurrent.AbstractService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers entity handles to {@link EntitySubscriber}s asynchronously, so that
+ * commands don't have to wait for their subscribers to complete.
+ *
+ * Every subscriber has a bounded queue of entity handles to be delivered. Handles are
+ * delivered in the order they were dispatched in, in batches that can span multiple commands.
+ * Subscribers don't block each other, but if a subscriber falls behind enough for its
+ * queue to fill up, dispatching to it blocks until there is space in the queue.
+ *
+ * It also maintains a routing table of subscribers interested in every entity class
+ * (see {@link #route(Class)}), rebuilt every time a subscriber is registered or unregistered.
+ */
+@Slf4j
+class EntitySubscriberDispatcher extends AbstractService {
+
+    /**
+     * Time subscribers are given to catch up with their queues when the dispatcher is stopped
+     */
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+
+    private final int queueSize;
+    private final int batchSize;
+    private final Map<EntitySubscriber, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+    private volatile Routing routing = new Routing(Collections.emptyList());
+
+    EntitySubscriberDispatcher(int queueSize, int batchSize) {
+        this.queueSize = queueSize;
+        this.batchSize = batchSize;
+    }
+
+    public synchronized void register(EntitySubscriber subscriber) {
+        if (subscriptions.putIfAbsent(subscriber, new Subscription(subscriber)) == null) {
+            routing = new Routing(subscriptions.keySet());
+        }
+    }
+
+    public synchronized void unregister(EntitySubscriber subscriber) {
+        if (subscriptions.remove(subscriber) != null) {
+            routing = new Routing(subscriptions.keySet());
+        }
+    }
+
+    /**
+     * @param klass entity class
+     * @return subscribers interested in entities of the class
+     */
+    public Route route(Class<? extends Entity> klass) {
+        return routing.route(klass);
+    }
+
+    public Collection<Subscription> getSubscriptions() {
+        return subscriptions.values();
+    }
+
+    /**
+     * Queues entity handles for delivery to the subscriber. Does nothing if the subscriber
+     * is not registered (anymore). Blocks while the subscriber's queue is full, so it must
+     * not be called while holding anything the subscriber might need (such as a journal's lock).
+     *
+     * @param subscriber
+     * @param handles
+     */
+    public void dispatch(EntitySubscriber subscriber, Collection<? extends EntityHandle> handles) {
+        Subscription subscription = subscriptions.get(subscriber);
+        if (subscription != null && !handles.isEmpty()) {
+            subscription.dispatch(handles);
+        }
+    }
+
+    @Override
+    protected void doStart() {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("eventsourcing-subscriber-%d")
+                                                                .setDaemon(true).build();
+        executor = Executors.newCachedThreadPool(threadFactory);
+        notifyStarted();
+    }
+
+    @Override @SneakyThrows
+    protected void doStop() {
+        executor.shutdown();
+        if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            log.warn("Entity subscribers haven't caught up in {} seconds, interrupting them", STOP_TIMEOUT_SECONDS);
+            executor.shutdownNow();
+        }
+        notifyStopped();
+    }
+
+    public static class Route {
+        /**
+         * Subscribers that are interested in all entities of the class
+         */
+        @Getter
+        private final EntitySubscriber[] subscribers;
+        /**
+         * Subscribers that have to be asked about every entity (see {@link EntitySubscriber#matches(Entity)})
+         */
+        @Getter
+        private final EntitySubscriber[] conditionalSubscribers;
+
+        private Route(List<EntitySubscriber> subscribers, List<EntitySubscriber> conditionalSubscribers) {
+            this.subscribers = subscribers.toArray(new EntitySubscriber[subscribers.size()]);
+            this.conditionalSubscribers = conditionalSubscribers
+                    .toArray(new EntitySubscriber[conditionalSubscribers.size()]);
+        }
+    }
+
+    private static class Routing {
+        private final List<EntitySubscriber> subscribers;
+        private final Map<Class<? extends Entity>, Route> routes = new ConcurrentHashMap<>();
+
+        private Routing(Collection<EntitySubscriber> subscribers) {
+            this.subscribers = new ArrayList<>(subscribers);
+        }
+
+        private Route route(Class<? extends Entity> klass) {
+            Route route = routes.get(klass);
+            return route == null ? routes.computeIfAbsent(klass, this::build) : route;
+        }
+
+        private Route build(Class<? extends Entity> klass) {
+            List<EntitySubscriber> unconditional = new ArrayList<>();
+            List<EntitySubscriber> conditional = new ArrayList<>();
+            for (EntitySubscriber subscriber : subscribers) {
+                if (subscriber instanceof ClassEntitySubscriber) {
+                    if (!((ClassEntitySubscriber<?>) subscriber).getEntityClass().isAssignableFrom(klass)) {
+                        continue;
+                    }
+                    if (!overridesMatches(subscriber)) {
+                        unconditional.add(subscriber);
+                        continue;
+                    }
+                }
+                conditional.add(subscriber);
+            }
+            return new Route(unconditional, conditional);
+        }
+
+        private static boolean overridesMatches(EntitySubscriber subscriber) {
+            try {
+                return subscriber.getClass().getMethod("matches", Entity.class).getDeclaringClass() !=
+                        ClassEntitySubscriber.class;
+            } catch (NoSuchMethodException e) {
+                return true;
+            }
+        }
+    }
+
+    public class Subscription {
+        @Getter
+        private final EntitySubscriber subscriber;
+        private final BlockingQueue<EntityHandle> queue = new ArrayBlockingQueue<>(queueSize);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final LongAdder dispatched = new LongAdder();
+        private final LongAdder delivered = new LongAdder();
+
+        private Subscription(EntitySubscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * @return number of entity handles dispatched to the subscriber
+         */
+        public long getDispatched() {
+            return dispatched.sum();
+        }
+
+        /**
+         * @return number of entity handles delivered to the subscriber
+         */
+        public long getDelivered() {
+            return delivered.sum();
+        }
+
+        /**
+         * @return number of entity handles dispatched but not yet delivered to the subscriber
+         */
+        public long getPending() {
+            return getDispatched() - getDelivered();
+        }
+
+        @SneakyThrows
+        private void dispatch(Collection<? extends EntityHandle> handles) {
+            for (EntityHandle handle : handles) {
+                if (!queue.offer(handle)) {
+                    schedule();
+                    queue.put(handle);
+                }
+                dispatched.increment();
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::deliver);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void deliver() {
+            List<EntityHandle> batch = new ArrayList<>(Math.min(batchSize, queueSize));
+            do {
+                while (queue.drainTo(batch, batchSize) > 0) {
+                    try {
+                        subscriber.accept(batch.stream());
+                    } catch (Exception e) {
+                        log.error("Entity subscriber {} failed", subscriber, e);
+                    }
+                    delivered.add(batch.size());
+                    // the stream (and the list behind it) is the subscriber's now
+                    batch = new ArrayList<>(Math.min(batchSize, queueSize));
+                }
+                scheduled.set(false);
+                // something might have been queued after the queue was drained
+                // but before the delivery was marked as finished
+            } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+    }
+}
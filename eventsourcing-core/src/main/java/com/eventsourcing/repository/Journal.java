@@ -8,12 +8,28 @@
 package com.eventsourcing.repository;
 
 import com.eventsourcing.*;
+import com.eventsourcing.hlc.HybridTimestamp;
+import com.eventsourcing.utils.CloseableWrappingIterator;
+import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.Service;
 import com.googlecode.cqengine.index.support.CloseableIterator;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Journal is the storage of all events and commands registered
@@ -73,6 +89,46 @@ public interface Journal extends Service {
      */
     long journal(Command<?, ?> command, Listener listener, LockProvider lockProvider) throws Exception;
 
+    /**
+     * Journals a batch of commands. Implementations should persist the entire batch
+     * in one transaction ("group commit") and invoke {@link Listener#onCommit()} for every
+     * entry only once that transaction has been committed.
+     * <p>
+     * Every entry gets its own outcome: if a command's event generation fails, only
+     * that command is journalled with {@link com.eventsourcing.events.CommandTerminatedExceptionally}
+     * and the exception is recorded in {@link BatchEntry#getException()}, the rest of the batch
+     * is not affected.
+     * <p>
+     * If an entry throws {@link BatchSplitException}, the batch ends before that entry:
+     * the entries prior to it are committed and the remaining ones are left not journalled
+     * (see {@link BatchEntry#isJournalled()}) so that they can be submitted again.
+     * <p>
+     * Implementations should obtain commands' events through {@link BatchEntry#events(Repository)}
+     * as they might have been generated in advance.
+     * <p>
+     * Default implementation journals every entry separately with
+     * {@link #journal(Command, Listener, LockProvider)} and doesn't support entries
+     * with events generated in advance (command consumers executing commands concurrently
+     * refuse to start with a journal that doesn't override it).
+     *
+     * @param batch
+     */
+    default void journal(List<? extends BatchEntry> batch) {
+        for (BatchEntry entry : batch) {
+            try {
+                if (entry.getEvents() != null) {
+                    throw new UnsupportedOperationException("Events generated in advance are not supported");
+                }
+                entry.setCount(journal(entry.getCommand(), entry.getListener(), entry.getLockProvider()));
+            } catch (BatchSplitException e) {
+                return;
+            } catch (Exception e) {
+                entry.setException(e);
+            }
+            entry.setJournalled(true);
+        }
+    }
+
     /**
      * Retrieves a command or event by UUID
      *
@@ -82,6 +138,61 @@ public interface Journal extends Service {
      */
     <T extends Entity> Optional<T> get(UUID uuid);
 
+    /**
+     * Retrieves commands and/or events by UUIDs, in bulk. Implementations should
+     * retrieve them in fewer round-trips or lookups than retrieving them one by one would take.
+     * <p>
+     * Default implementation uses {@link #get(UUID)} for every UUID
+     *
+     * @param uuids
+     * @param <T>
+     * @return entities found, by their UUIDs (UUIDs of entities that are not found are left out)
+     */
+    default <T extends Entity> Map<UUID, T> getAll(Collection<UUID> uuids) {
+        Map<UUID, T> entities = new HashMap<>();
+        for (UUID uuid : uuids) {
+            Optional<T> entity = get(uuid);
+            if (entity.isPresent()) {
+                entities.put(uuid, entity.get());
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Checks whether a command or event is journalled, without retrieving it.
+     * <p>
+     * Default implementation uses {@link #get(UUID)}
+     *
+     * @param uuid
+     * @return true if either a command or an event is found by <code>uuid</code>
+     */
+    default boolean contains(UUID uuid) {
+        return get(uuid).isPresent();
+    }
+
+    /**
+     * Retrieves the version of a key used for optimistic concurrency control
+     * (see {@link EventStream#expectVersion(Object, Optional)}). Keys are compared
+     * by their string representation.
+     *
+     * @param key
+     * @return timestamp of the last command that has declared the key, or empty {@link Optional}
+     * if there is no such command
+     */
+    Optional<HybridTimestamp> getVersion(Object key);
+
+    /**
+     * Checks whether the version of a key matches the expected one
+     *
+     * @param expected expected version (see {@link EventStream#expectVersion(Object, Optional)})
+     * @param version  current version, or <code>null</code> if there is none
+     * @return true if versions match
+     */
+    static boolean isExpectedVersion(Optional<HybridTimestamp> expected, HybridTimestamp version) {
+        return expected.isPresent() ? version != null && expected.get().compareTo(version) == 0 : version == null;
+    }
+
     /**
      * Iterate over commands of a specific type (through {@code EntityHandler<T>})
      *
@@ -100,6 +211,53 @@ public interface Journal extends Service {
      */
     <T extends Event> CloseableIterator<EntityHandle<T>> eventIterator(Class<T> klass);
 
+    /**
+     * Iterate over events of a specific type timestamped within a time range, in the order
+     * of their timestamps (see {@link Position})
+     * <p>
+     * Default implementation retrieves all events of the type to select and sort them
+     *
+     * @param klass
+     * @param from  start of the range (inclusive), or <code>null</code> if unbounded
+     * @param to    end of the range (exclusive), or <code>null</code> if unbounded
+     * @param <T>
+     * @return iterator
+     */
+    default <T extends Event> CloseableIterator<EntityHandle<T>> eventIterator(Class<T> klass, HybridTimestamp from,
+                                                                               HybridTimestamp to) {
+        Position lower = from == null ? Position.START : Position.before(from);
+        Position upper = to == null ? null : Position.before(to);
+        SortedMap<Position, EntityHandle<T>> events = new TreeMap<>();
+        try (CloseableIterator<EntityHandle<T>> iterator = eventIterator(klass)) {
+            while (iterator.hasNext()) {
+                EntityHandle<T> handle = iterator.next();
+                Optional<T> event = handle.getOptional();
+                if (event.isPresent()) {
+                    Position position = Position.of(event.get());
+                    if (position.compareTo(lower) >= 0 && (upper == null || position.compareTo(upper) < 0)) {
+                        events.put(position, new JournalEntityHandle<>(this, handle.uuid(), event.get()));
+                    }
+                }
+            }
+        }
+        return new CloseableWrappingIterator<>(events.values().iterator());
+    }
+
+    /**
+     * Iterate over all commands and events after a position, in the order of their
+     * timestamps (see {@link Position}). Iteration can be resumed later on from the position
+     * of the last entity iterated over ({@link Position#of(Entity)}).
+     * <p>
+     * Entities only become visible once committed, so an entity with a timestamp behind the position
+     * iterated to might still appear later, if it was being journalled concurrently.
+     * Consumers that can't miss such entities should resume from a position somewhat behind
+     * ({@link Position#before(HybridTimestamp)}) and skip entities they have seen.
+     *
+     * @param from position to iterate after ({@link Position#START} to iterate over everything)
+     * @return iterator
+     */
+    CloseableIterator<EntityHandle<Entity>> iterator(Position from);
+
     /**
      * Removes everything from the journal.
      * <p>
@@ -125,6 +283,221 @@ public interface Journal extends Service {
      */
     <T extends Entity> boolean isEmpty(Class<T> klass);
 
+    /**
+     * Position in the global order of entities (see {@link #iterator(Position)}): entities are ordered
+     * by their timestamps and, if timestamps are equal, by their UUIDs.
+     * <p>
+     * Positions can be persisted in their string form ({@link #toString()}, {@link #parse(String)})
+     * to resume iteration from.
+     */
+    @EqualsAndHashCode
+    final class Position implements Comparable<Position> {
+        /**
+         * Position before all entities
+         */
+        public static final Position START = new Position(0, new UUID(0, 0));
+
+        /**
+         * 64-bit timestamp (see {@link HybridTimestamp#timestamp()})
+         */
+        @Getter
+        private final long timestamp;
+        @Getter
+        private final UUID uuid;
+
+        public Position(long timestamp, UUID uuid) {
+            this.timestamp = timestamp;
+            this.uuid = uuid;
+        }
+
+        /**
+         * @param entity
+         * @return position of the entity
+         */
+        public static Position of(Entity entity) {
+            return new Position(entity.timestamp().timestamp(), entity.uuid());
+        }
+
+        /**
+         * @param timestamp
+         * @return position before all entities timestamped at or after <code>timestamp</code>
+         */
+        public static Position before(HybridTimestamp timestamp) {
+            return new Position(timestamp.timestamp(), START.uuid);
+        }
+
+        /**
+         * Parses a position from its string form
+         *
+         * @param position string form of the position (see {@link #toString()})
+         * @return position
+         * @throws IllegalArgumentException if the string is not a position
+         */
+        public static Position parse(String position) {
+            if (position.length() != 48) {
+                throw new IllegalArgumentException("Invalid position " + position);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(BaseEncoding.base16().decode(position));
+            return new Position(buffer.getLong(), new UUID(buffer.getLong(), buffer.getLong()));
+        }
+
+        @Override
+        public int compareTo(Position o) {
+            int result = HybridTimestamp.compare(timestamp, o.timestamp);
+            if (result == 0) {
+                result = Long.compareUnsigned(uuid.getMostSignificantBits(), o.uuid.getMostSignificantBits());
+            }
+            if (result == 0) {
+                result = Long.compareUnsigned(uuid.getLeastSignificantBits(), o.uuid.getLeastSignificantBits());
+            }
+            return result;
+        }
+
+        /**
+         * @return string form of the position (see {@link #parse(String)})
+         */
+        @Override
+        public String toString() {
+            ByteBuffer buffer = ByteBuffer.allocate(24);
+            buffer.putLong(timestamp).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+            return BaseEncoding.base16().encode(buffer.array());
+        }
+    }
+
+    /**
+     * Command to be journalled as a part of a batch (see {@link #journal(List)})
+     */
+    class BatchEntry {
+        @Getter
+        private final Command<?, ?> command;
+        @Getter
+        private final Listener listener;
+        @Getter
+        private final LockProvider lockProvider;
+        /**
+         * Maximum number of times command's events are generated if the versions the
+         * command expects don't match (see {@link EventStream#expectVersion(Object, Optional)})
+         */
+        public static final int MAX_ATTEMPTS = 10;
+
+        /**
+         * Command's events, if they are generated in advance and not retrieved
+         * yet (otherwise <code>null</code>)
+         */
+        @Getter
+        private Future<EventStream<?>> events;
+        private int attempts;
+
+        /**
+         * True if the command was processed by the journal, either successfully
+         * or with an exception
+         */
+        @Getter @Setter
+        private boolean journalled;
+        /**
+         * Number of events processed
+         */
+        @Getter @Setter
+        private long count;
+        /**
+         * Exception the command has terminated with, if any
+         */
+        @Getter @Setter
+        private Exception exception;
+
+        public BatchEntry(Command<?, ?> command, Listener listener, LockProvider lockProvider) {
+            this(command, listener, lockProvider, null);
+        }
+
+        public BatchEntry(Command<?, ?> command, Listener listener, LockProvider lockProvider,
+                          Future<EventStream<?>> events) {
+            this.command = command;
+            this.listener = listener;
+            this.lockProvider = lockProvider;
+            this.events = events;
+        }
+
+        /**
+         * Generates command's events, or waits for them if they are generated in advance
+         *
+         * @param repository
+         * @return event stream
+         * @throws Exception if the event generation has failed
+         */
+        public EventStream<?> events(Repository repository) throws Exception {
+            attempts++;
+            if (events == null) {
+                return command.events(repository, lockProvider);
+            }
+            try {
+                return events.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            } finally {
+                events = null;
+            }
+        }
+
+        /**
+         * Generates command's events again, as the versions the command has expected didn't match
+         * (see {@link EventStream#expectVersion(Object, Optional)})
+         *
+         * @param repository
+         * @param key key which version didn't match
+         * @return event stream
+         * @throws ConcurrencyConflictException if the events were generated {@link #MAX_ATTEMPTS} times already
+         * @throws Exception if the event generation has failed
+         */
+        public EventStream<?> retry(Repository repository, Object key) throws Exception {
+            if (attempts >= MAX_ATTEMPTS) {
+                throw new ConcurrencyConflictException(key);
+            }
+            return events(repository);
+        }
+
+        /**
+         * Journals this entry as a batch of one with {@link Journal#journal(List)}
+         *
+         * @param journal
+         * @return number of events processed
+         * @throws Exception if the command has terminated exceptionally
+         */
+        public long journal(Journal journal) throws Exception {
+            journal.journal(Collections.singletonList(this));
+            if (exception != null) {
+                throw exception;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Signals that a command's events were generated based on a version of a key
+     * that is no longer current too many times in a row (see {@link EventStream#expectVersion(Object, Optional)})
+     */
+    class ConcurrencyConflictException extends RuntimeException {
+        @Getter
+        private final Object key;
+
+        public ConcurrencyConflictException(Object key) {
+            super("Version of " + key + " has changed");
+            this.key = key;
+        }
+    }
+
+    /**
+     * Thrown during command's event generation to split the batch
+     * it is being journalled in (see {@link #journal(List)})
+     */
+    class BatchSplitException extends RuntimeException {
+        public BatchSplitException() {
+            super(null, null, false, false);
+        }
+    }
+
     /**
      * Journalling listener. Useful for observing progress.
      */
@@ -23,13 +23,23 @@ public class JournalEntityHandle<T extends Entity> implements EntityHandle<T> {
     @Getter @Accessors(fluent = true)
     private final UUID uuid;
     private final Journal journal;
+    private final T entity;
 
     public JournalEntityHandle(Journal journal, UUID uuid) {
+        this(journal, uuid, null);
+    }
+
+    /**
+     * @param entity entity retrieved in advance (for example, with {@link Journal#getAll(java.util.Collection)}),
+     *               or <code>null</code>
+     */
+    public JournalEntityHandle(Journal journal, UUID uuid, T entity) {
         this.journal = journal;
         this.uuid = uuid;
+        this.entity = entity;
     }
 
     @Override public Optional<T> getOptional() {
-        return journal.get(uuid);
+        return entity == null ? journal.get(uuid) : Optional.of(entity);
     }
 }
@@ -7,27 +7,268 @@
  */
 package com.eventsourcing.repository;
 
+import com.eventsourcing.Command;
 import com.eventsourcing.Lock;
+import com.eventsourcing.hlc.HybridTimestamp;
 import com.google.common.util.concurrent.AbstractService;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Local, in-memory lock provider
+ * Local, in-memory lock provider.
+ * <p>
+ * By default, a lock is only kept while it is held or waited for: every lock entry counts
+ * its references and is dropped once the last one is gone, so the memory used is proportional
+ * to the number of locks in use rather than to the number of lock keys ever used.
+ * <p>
+ * Alternatively, a fixed number of lock stripes can be configured (see {@link #LocalLockProvider(int)},
+ * or the <code>stripes</code> component property), which bounds the memory used regardless
+ * of the number of locks in use. Keys are hashed to stripes, so different keys can end up sharing
+ * a lock. Note that a command acquiring multiple locks can therefore end up waiting for itself if two
+ * of its keys share a stripe (which is detected as a deadlock, see below), so the number of stripes
+ * should be much larger than the number of locks in use at any time.
+ * <p>
+ * Shared locks (see {@link #lockShared(Object)}) are granted in the order they were requested in
+ * along with exclusive ones, so a waiting exclusive lock is not starved by a stream of shared ones.
+ * <p>
+ * Commands waiting for locks (see {@link #lock(Object, Command)}) are checked for deadlocks
+ * periodically: if they are waiting for each other in a cycle, the youngest command in the cycle
+ * (the one with the latest timestamp) is aborted with {@link DeadlockException}.
  */
-@Component(property = {"type=LocalLockProvider"})
-public class LocalLockProvider extends AbstractService implements LockProvider {
-    private Map<Object, Semaphore> locks = new HashMap<>();
+@Component(property = {"type=LocalLockProvider",
+                       "jmx.objectname=com.eventsourcing:type=lockProvider,name=LocalLockProvider"})
+public class LocalLockProvider extends AbstractService implements LockProvider, LocalLockProviderMBean {
+
+    private static final long DEADLOCK_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+    // An exclusive lock takes all permits of the lock's semaphore, a shared one takes one
+    private static final int EXCLUSIVE = Integer.MAX_VALUE;
+
+    private final ConcurrentMap<Object, Entry> locks = new ConcurrentHashMap<>();
+    private Entry[] stripes;
+    // Locks commands are waiting for (wait-for graph)
+    private final ConcurrentMap<UUID, Entry> waiting = new ConcurrentHashMap<>();
+
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitTime = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+
+    public LocalLockProvider() {
+        this(0);
+    }
+
+    /**
+     * @param stripes number of lock stripes, or 0 to keep a lock for every key in use
+     */
+    public LocalLockProvider(int stripes) {
+        setStripes(stripes);
+    }
+
+    @Activate
+    protected void activate(ComponentContext ctx) {
+        Object stripes = ctx.getProperties().get("stripes");
+        if (stripes != null) {
+            setStripes(Integer.parseInt(stripes.toString().trim()));
+        }
+    }
+
+    private void setStripes(int stripes) {
+        if (stripes < 0) {
+            throw new IllegalArgumentException("stripes < 0");
+        }
+        if (stripes == 0) {
+            this.stripes = null;
+        } else {
+            this.stripes = new Entry[stripes];
+            for (int i = 0; i < stripes; i++) {
+                this.stripes[i] = new Entry();
+            }
+        }
+    }
+
+    @Override
+    public int getLockCount() {
+        return stripes == null ? locks.size() : stripes.length;
+    }
+
+    @Override
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    @Override
+    public long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTime.sum());
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getDeadlocks() {
+        return deadlocks.sum();
+    }
 
     @Override
     public Lock lock(Object lock) {
-        Semaphore semaphore = locks.containsKey(lock) ? locks.get(lock) : new Semaphore(1);
-        locks.put(lock, semaphore);
-        semaphore.acquireUninterruptibly();
-        return new LocalLock(semaphore);
+        return lock(lock, (Command<?, ?>) null);
+    }
+
+    @Override
+    public Lock lock(Object lock, Command<?, ?> command) {
+        return lock(lock, command, EXCLUSIVE, -1).get();
+    }
+
+    @Override
+    public Lock lockShared(Object lock) {
+        return lockShared(lock, null);
+    }
+
+    @Override
+    public Lock lockShared(Object lock, Command<?, ?> command) {
+        return lock(lock, command, 1, -1).get();
+    }
+
+    @Override
+    public Optional<Lock> tryLock(Object lock, long timeout, TimeUnit unit) {
+        return tryLock(lock, null, timeout, unit);
+    }
+
+    @Override
+    public Optional<Lock> tryLock(Object lock, Command<?, ?> command, long timeout, TimeUnit unit) {
+        return lock(lock, command, EXCLUSIVE, Math.max(0, unit.toNanos(timeout)));
+    }
+
+    /**
+     * @param permits {@link #EXCLUSIVE} for an exclusive lock, 1 for a shared one
+     * @param timeout timeout in nanoseconds, or a negative value to wait indefinitely
+     */
+    private Optional<Lock> lock(Object key, Command<?, ?> command, int permits, long timeout) {
+        Entry entry = reference(key);
+        boolean locked = false;
+        try {
+            // not using tryAcquire() as it would let shared locks barge ahead of waiting exclusive ones
+            locked = Uninterruptibles.tryAcquireUninterruptibly(entry.semaphore, permits, 0, TimeUnit.NANOSECONDS) ||
+                     await(key, entry, command, permits, timeout);
+        } finally {
+            if (!locked) {
+                release(key);
+            }
+        }
+        if (!locked) {
+            timeouts.increment();
+            return Optional.empty();
+        }
+        if (command != null) {
+            entry.holders.add(command);
+        }
+        return Optional.of(new LocalLock(key, entry, command, permits));
+    }
+
+    private boolean await(Object key, Entry entry, Command<?, ?> command, int permits, long timeout) {
+        waits.increment();
+        long start = System.nanoTime();
+        try {
+            if (command == null) {
+                if (timeout < 0) {
+                    entry.semaphore.acquireUninterruptibly(permits);
+                    return true;
+                }
+                return Uninterruptibles.tryAcquireUninterruptibly(entry.semaphore, permits, timeout,
+                                                                  TimeUnit.NANOSECONDS);
+            }
+            waiting.put(command.uuid(), entry);
+            try {
+                while (true) {
+                    long interval = DEADLOCK_CHECK_INTERVAL;
+                    if (timeout >= 0) {
+                        long remaining = timeout - (System.nanoTime() - start);
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        interval = Math.min(interval, remaining);
+                    }
+                    if (Uninterruptibles.tryAcquireUninterruptibly(entry.semaphore, permits, interval,
+                                                                   TimeUnit.NANOSECONDS)) {
+                        return true;
+                    }
+                    if (isDeadlockVictim(command, command, Collections.newSetFromMap(new IdentityHashMap<>()))) {
+                        deadlocks.increment();
+                        throw new DeadlockException(key);
+                    }
+                }
+            } finally {
+                waiting.remove(command.uuid());
+            }
+        } finally {
+            waitTime.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Follows the wait-for graph from a command: the command waits for the holders of the lock
+     * it is waiting for, which might be waiting for other locks, and so on. Only paths through commands
+     * older than the victim are followed, so that every cycle is resolved by its youngest command only.
+     *
+     * @param victim  command that is checked
+     * @param current command on the path followed
+     * @param visited commands visited so far
+     * @return true if there is a path from the current command back to the victim
+     */
+    private boolean isDeadlockVictim(Command<?, ?> victim, Command<?, ?> current, Set<Command<?, ?>> visited) {
+        Entry entry = waiting.get(current.uuid());
+        if (entry == null) {
+            return false;
+        }
+        for (Command<?, ?> holder : entry.holders) {
+            if (holder == victim) {
+                return true;
+            }
+            if (!isYounger(holder, victim) && visited.add(holder) && isDeadlockVictim(victim, holder, visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isYounger(Command<?, ?> command, Command<?, ?> other) {
+        HybridTimestamp timestamp = command.timestamp();
+        HybridTimestamp otherTimestamp = other.timestamp();
+        int comparison = timestamp == null || otherTimestamp == null ? 0 : timestamp.compareTo(otherTimestamp);
+        return comparison == 0 ? command.uuid().compareTo(other.uuid()) > 0 : comparison > 0;
+    }
+
+    private Entry reference(Object key) {
+        if (stripes != null) {
+            int hash = key.hashCode();
+            return stripes[Math.floorMod(hash ^ (hash >>> 16), stripes.length)];
+        }
+        return locks.compute(key, (k, entry) -> {
+            Entry e = entry == null ? new Entry() : entry;
+            e.references++;
+            return e;
+        });
+    }
+
+    private void release(Object key) {
+        if (stripes == null) {
+            locks.computeIfPresent(key, (k, entry) -> --entry.references == 0 ? null : entry);
+        }
     }
 
     @Override
@@ -40,24 +281,46 @@ public class LocalLockProvider extends AbstractService implements LockProvider {
         notifyStopped();
     }
 
-    static class LocalLock implements Lock {
-        private final Semaphore semaphore;
+    private static class Entry {
+        // Fair, so that waiting exclusive locks are not starved by shared ones
+        private final Semaphore semaphore = new Semaphore(EXCLUSIVE, true);
+        // Number of holders and waiters, only accessed when computing the entry in the map
+        private int references;
+        // Commands holding the lock, if known
+        private final Set<Command<?, ?>> holders = ConcurrentHashMap.newKeySet();
+    }
+
+    class LocalLock implements Lock {
+        private final Object key;
+        private final Entry entry;
+        private final Command<?, ?> command;
+        private final int permits;
+        private boolean released;
 
-        public LocalLock(Semaphore semaphore) {
-            this.semaphore = semaphore;
+        private LocalLock(Object key, Entry entry, Command<?, ?> command, int permits) {
+            this.key = key;
+            this.entry = entry;
+            this.command = command;
+            this.permits = permits;
         }
 
         @Override
         public void unlock() {
-            semaphore.release();
+            if (!released) {
+                released = true;
+                if (command != null) {
+                    entry.holders.remove(command);
+                }
+                entry.semaphore.release(permits);
+                release(key);
+            }
         }
 
         @Override
         public boolean isLocked() {
-            return semaphore.availablePermits() == 0;
+            return entry.semaphore.availablePermits() < EXCLUSIVE;
         }
 
     }
 
 }
-
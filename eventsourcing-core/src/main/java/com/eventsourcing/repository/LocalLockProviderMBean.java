@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.repository;
+
+public interface LocalLockProviderMBean {
+    /**
+     * @return number of locks currently kept (or the number of stripes, if configured)
+     */
+    int getLockCount();
+
+    /**
+     * @return number of times a lock was not available right away
+     */
+    long getWaits();
+
+    /**
+     * @return total time spent waiting for locks, in milliseconds
+     */
+    long getWaitTime();
+
+    /**
+     * @return number of times a lock was not acquired within the timeout
+     */
+    long getTimeouts();
+
+    /**
+     * @return number of commands aborted to resolve deadlocks
+     */
+    long getDeadlocks();
+}
@@ -7,9 +7,13 @@
  */
 package com.eventsourcing.repository;
 
+import com.eventsourcing.Command;
 import com.eventsourcing.Lock;
 import com.google.common.util.concurrent.Service;
+import lombok.Getter;
 
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 /**
@@ -25,10 +29,103 @@ public interface LockProvider extends Service {
      */
     Lock lock(Object lock);
 
+    /**
+     * Instantiates a new lock and locks it on behalf of a command. Lock providers
+     * that detect deadlocks use the command to find out which commands are waiting
+     * for each other and which one of them should be aborted (see {@link DeadlockException}).
+     * <p>
+     * By default, equivalent to {@link #lock(Object)}
+     *
+     * @param lock
+     * @param command command acquiring the lock
+     * @return new lock
+     * @throws DeadlockException if the command was aborted to resolve a deadlock
+     */
+    default Lock lock(Object lock, Command<?, ?> command) {
+        return lock(lock);
+    }
+
+    /**
+     * Instantiates a new shared lock and locks it. Any number of shared locks can be held
+     * at the same time, but not along with an exclusive one (see {@link #lock(Object)}).
+     * Useful for commands that only need to make sure the state they validate against
+     * doesn't change while they are processed.
+     * <p>
+     * By default, equivalent to {@link #lock(Object)}
+     *
+     * @param lock
+     * @return new lock
+     */
+    default Lock lockShared(Object lock) {
+        return lock(lock);
+    }
+
+    /**
+     * Same as {@link #lockShared(Object)}, on behalf of a command (see {@link #lock(Object, Command)})
+     * <p>
+     * By default, equivalent to {@link #lockShared(Object)}
+     *
+     * @param lock
+     * @param command command acquiring the lock
+     * @return new lock
+     * @throws DeadlockException if the command was aborted to resolve a deadlock
+     */
+    default Lock lockShared(Object lock, Command<?, ?> command) {
+        return lockShared(lock);
+    }
+
+    /**
+     * Instantiates a new lock and locks it, unless it can't be locked within the timeout.
+     * <p>
+     * By default, waits for the lock indefinitely (see {@link #lock(Object)})
+     *
+     * @param lock
+     * @param timeout maximum time to wait
+     * @param unit    time unit of the timeout
+     * @return new lock, or empty {@link Optional} if the timeout has elapsed
+     */
+    default Optional<Lock> tryLock(Object lock, long timeout, TimeUnit unit) {
+        return Optional.of(lock(lock));
+    }
+
+    /**
+     * Same as {@link #tryLock(Object, long, TimeUnit)}, on behalf of a command
+     * (see {@link #lock(Object, Command)})
+     * <p>
+     * By default, equivalent to {@link #tryLock(Object, long, TimeUnit)}
+     *
+     * @param lock
+     * @param command command acquiring the lock
+     * @param timeout maximum time to wait
+     * @param unit    time unit of the timeout
+     * @return new lock, or empty {@link Optional} if the timeout has elapsed
+     * @throws DeadlockException if the command was aborted to resolve a deadlock
+     */
+    default Optional<Lock> tryLock(Object lock, Command<?, ?> command, long timeout, TimeUnit unit) {
+        return tryLock(lock, timeout, unit);
+    }
+
     default <T> T withLock(Object lock, Supplier<T> supplier) {
         Lock l = lock(lock);
         T t = supplier.get();
         l.unlock();
         return t;
     }
+
+    /**
+     * Signals that a command waiting for a lock was aborted because it was the youngest
+     * command in a cycle of commands waiting for each other's locks. Thrown out of
+     * {@link Command#events(com.eventsourcing.Repository, LockProvider)}, it terminates the command
+     * (see {@link com.eventsourcing.events.CommandTerminatedExceptionally}), releasing its locks
+     * so that the older commands can proceed.
+     */
+    class DeadlockException extends RuntimeException {
+        @Getter
+        private final Object lock;
+
+        public DeadlockException(Object lock) {
+            super("Deadlock detected while waiting for lock " + lock);
+            this.lock = lock;
+        }
+    }
 }
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.repository;
+
+import com.eventsourcing.Command;
+import com.eventsourcing.hlc.HybridTimestamp;
+import com.google.common.util.concurrent.AbstractService;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Command consumer that distributes commands over a number of independent consumers
+ * (partitions) by {@link Command#partitionKey()}. Commands with equal partition keys
+ * end up in the same partition and are therefore processed in the order of publishing.
+ * Commands without a partition key are all placed into the first partition.
+ * Partitions are expected to share one clock (see {@link CommandConsumer#getTimestamp()}).
+ */
+@Slf4j
+class PartitionedCommandConsumer extends AbstractService implements CommandConsumer {
+
+    private final List<CommandConsumer> partitions;
+
+    PartitionedCommandConsumer(int partitions, IntFunction<CommandConsumer> factory) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions < 1");
+        }
+        this.partitions = IntStream.range(0, partitions).mapToObj(factory).collect(Collectors.toList());
+    }
+
+    private int getPartitionIndex(Command<?, ?> command) {
+        Object key = command.partitionKey();
+        if (key == null) {
+            return 0;
+        }
+        return Math.floorMod(key.hashCode(), partitions.size());
+    }
+
+    private CommandConsumer getPartition(Command<?, ?> command) {
+        return partitions.get(getPartitionIndex(command));
+    }
+
+    @Override
+    public <T, C extends Command<?, T>> CompletableFuture<T> publish(C command) {
+        return getPartition(command).publish(command);
+    }
+
+    @Override
+    public <T, C extends Command<?, T>> CompletableFuture<T> publish(C command, long timeout, TimeUnit unit) {
+        return getPartition(command).publish(command, timeout, unit);
+    }
+
+    /**
+     * @return remaining capacity of all partitions combined
+     */
+    @Override
+    public long remainingCapacity() {
+        return partitions.stream().mapToLong(CommandConsumer::remainingCapacity).sum();
+    }
+
+    /**
+     * Splits the batch into a batch per partition, preserving the order of commands
+     * within each of them.
+     */
+    @Override
+    public <T> List<CompletableFuture<T>> publishAll(List<? extends Command<?, ? extends T>> commands) {
+        List<List<Command<?, ? extends T>>> batches = new ArrayList<>(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            batches.add(new ArrayList<>());
+        }
+        int[] indices = new int[commands.size()];
+        for (int i = 0; i < indices.length; i++) {
+            Command<?, ? extends T> command = commands.get(i);
+            indices[i] = getPartitionIndex(command);
+            batches.get(indices[i]).add(command);
+        }
+        List<Iterator<CompletableFuture<T>>> futures = new ArrayList<>(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            List<Command<?, ? extends T>> batch = batches.get(i);
+            futures.add(batch.isEmpty() ? Collections.emptyIterator() :
+                                partitions.get(i).<T>publishAll(batch).iterator());
+        }
+        List<CompletableFuture<T>> result = new ArrayList<>(indices.length);
+        for (int index : indices) {
+            result.add(futures.get(index).next());
+        }
+        return result;
+    }
+
+    /**
+     * @return timestamp of the partitions (they are expected to share one clock, so that
+     * timestamps issued by different partitions are still causally ordered)
+     */
+    @Override
+    public HybridTimestamp getTimestamp() {
+        return partitions.get(0).getTimestamp();
+    }
+
+    @Override
+    protected void doStart() {
+        log.info("Starting {} command consumer partitions", partitions.size());
+        partitions.forEach(partition -> partition.startAsync().awaitRunning());
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        partitions.forEach(partition -> partition.stopAsync().awaitTerminated());
+        notifyStopped();
+    }
+}
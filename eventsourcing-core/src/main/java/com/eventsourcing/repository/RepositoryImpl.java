@@ -7,6 +7,7 @@
  */
 package com.eventsourcing.repository;
 
+import com.eventsourcing.BatchPublication;
 import com.eventsourcing.Command;
 import com.eventsourcing.Entity;
 import com.eventsourcing.Event;
@@ -14,18 +15,23 @@ import com.eventsourcing.Repository;
 import com.eventsourcing.events.CommandTerminatedExceptionally;
 import com.eventsourcing.events.EventCausalityEstablished;
 import com.eventsourcing.hlc.HybridTimestamp;
+import com.eventsourcing.hlc.InstrumentedHybridTimestamp;
 import com.eventsourcing.hlc.PhysicalTimeProvider;
 import com.eventsourcing.index.IndexEngine;
 import com.google.common.util.concurrent.AbstractService;
 import com.google.common.util.concurrent.Service;
 import com.google.common.util.concurrent.ServiceManager;
 import lombok.Getter;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.*;
 
+import javax.management.openmbean.*;
+
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 
@@ -49,14 +55,25 @@ public class RepositoryImpl extends AbstractService implements Repository, Repos
     @Getter
     private LockProvider lockProvider;
 
+    /**
+     * Configuration of the command processing pipeline. Defaults to
+     * <code>CommandConsumerConfiguration.builder().build()</code>
+     */
+    @Getter
+    private CommandConsumerConfiguration commandConsumerConfiguration = CommandConsumerConfiguration.builder().build();
+
     private ServiceManager services;
     private CommandConsumer commandConsumer;
+    // shared by all partitions, so that timestamps are causally ordered across them
+    private InstrumentedHybridTimestamp timestamp;
 
     private List<EntitySubscriber> entitySubscribers = new ArrayList<>();
+    private EntitySubscriberDispatcher subscriberDispatcher;
 
     @Activate
     protected void activate(ComponentContext ctx) {
         if (!isRunning()) {
+            setCommandConsumerConfiguration(CommandConsumerConfiguration.fromProperties(ctx.getProperties()));
             startAsync();
         }
     }
@@ -95,13 +112,28 @@ public class RepositoryImpl extends AbstractService implements Repository, Repos
         initialization.forEach(Runnable::run);
         initialization.clear();
 
-        commandConsumer = new DisruptorCommandConsumer(commands, physicalTimeProvider, this, journal, indexEngine,
-                                                       lockProvider);
+        subscriberDispatcher = new EntitySubscriberDispatcher(commandConsumerConfiguration.getSubscriberQueueSize(),
+                                                              commandConsumerConfiguration.getSubscriberBatchSize());
+        entitySubscribers.forEach(subscriberDispatcher::register);
+        subscriberDispatcher.startAsync().awaitRunning();
+
+        timestamp = new InstrumentedHybridTimestamp(physicalTimeProvider);
+        int partitions = commandConsumerConfiguration.getPartitions();
+        if (partitions == 1) {
+            commandConsumer = createCommandConsumer();
+        } else {
+            commandConsumer = new PartitionedCommandConsumer(partitions, i -> createCommandConsumer());
+        }
         commandConsumer.startAsync().awaitRunning();
 
         notifyStarted();
     }
 
+    private CommandConsumer createCommandConsumer() {
+        return new DisruptorCommandConsumer(commands, timestamp, this, journal, indexEngine,
+                                            subscriberDispatcher, lockProvider, commandConsumerConfiguration);
+    }
+
     private boolean configureIndices(Class<? extends Entity> klass) {
         try {
             indexEngine.getIndices(klass);
@@ -115,6 +147,7 @@ public class RepositoryImpl extends AbstractService implements Repository, Repos
     @Override
     protected void doStop() {
         commandConsumer.stopAsync().awaitTerminated();
+        subscriberDispatcher.stopAsync().awaitTerminated();
         services.stopAsync().awaitStopped();
         // Try stopping services that were started beforehand and didn't
         // make it into `services`
@@ -141,6 +174,22 @@ public class RepositoryImpl extends AbstractService implements Repository, Repos
         this.indexEngine = indexEngine;
     }
 
+    /**
+     * Configures the command processing pipeline.
+     * <p>
+     * Should be done before invoking {@link #startAsync()}
+     *
+     * @param configuration
+     * @throws IllegalStateException if called after the service is started
+     */
+    public void setCommandConsumerConfiguration(CommandConsumerConfiguration configuration)
+            throws IllegalStateException {
+        if (isRunning()) {
+            throw new IllegalStateException();
+        }
+        this.commandConsumerConfiguration = configuration;
+    }
+
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
     @Override
     public void addCommandSetProvider(CommandSetProvider provider) {
@@ -170,11 +219,17 @@ public class RepositoryImpl extends AbstractService implements Repository, Repos
     @Override
     public void addEntitySubscriber(EntitySubscriber subscriber) {
         entitySubscribers.add(subscriber);
+        if (subscriberDispatcher != null) {
+            subscriberDispatcher.register(subscriber);
+        }
     }
 
     @Override
     public void removeEntitySubscriber(EntitySubscriber subscriber) {
         entitySubscribers.remove(subscriber);
+        if (subscriberDispatcher != null) {
+            subscriberDispatcher.unregister(subscriber);
+        }
     }
 
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
@@ -222,7 +277,17 @@ public class RepositoryImpl extends AbstractService implements Repository, Repos
 
     @Override
     public <T extends Command<?, C>, C> CompletableFuture<C> publish(T command) {
-        return this.commandConsumer.publish(command, entitySubscribers);
+        return this.commandConsumer.publish(command);
+    }
+
+    @Override
+    public <T extends Command<?, C>, C> CompletableFuture<C> publish(T command, long timeout, TimeUnit unit) {
+        return this.commandConsumer.publish(command, timeout, unit);
+    }
+
+    @Override
+    public <C> BatchPublication<C> publishAll(List<? extends Command<?, ? extends C>> commands) {
+        return new BatchPublication<>(this.commandConsumer.publishAll(commands));
     }
 
     @Override public HybridTimestamp getTimestamp() {
@@ -239,4 +304,43 @@ public class RepositoryImpl extends AbstractService implements Repository, Repos
     public String[] getInstalledEvents() {
         return events.stream().map(Class::getName).toArray(String[]::new);
     }
+
+    @Override @SneakyThrows
+    public TabularData getEntitySubscribers() {
+        String[] names = new String[]{"Subscriber", "Dispatched", "Delivered", "Pending"};
+        CompositeType compositeType = new CompositeType("Subscription", "Entity subscription", names, names,
+                                                        new OpenType[]{SimpleType.STRING, SimpleType.LONG,
+                                                                       SimpleType.LONG, SimpleType.LONG});
+        TabularDataSupport tabular = new TabularDataSupport(
+                new TabularType("Subscription", "Entity subscriptions", compositeType, new String[]{"Subscriber"}));
+        if (subscriberDispatcher != null) {
+            for (EntitySubscriberDispatcher.Subscription subscription : subscriberDispatcher.getSubscriptions()) {
+                tabular.put(new CompositeDataSupport(compositeType, names, new Object[]{
+                        subscription.getSubscriber().toString(), subscription.getDispatched(),
+                        subscription.getDelivered(), subscription.getPending()}));
+            }
+        }
+        return tabular;
+    }
+
+    @Override @SneakyThrows
+    public CompositeData getClock() {
+        if (timestamp == null) {
+            return null;
+        }
+        String[] names = new String[]{"Updates", "LogicalUpdates", "MaxLogicalCounter", "Skew", "MaxSkew",
+                                      "FutureTimestamps", "SkewAlarms"};
+        OpenType<?>[] types = new OpenType[names.length];
+        Arrays.fill(types, SimpleType.LONG);
+        CompositeType compositeType = new CompositeType("Clock", "Hybrid logical clock health", names, names, types);
+        return new CompositeDataSupport(compositeType, names, new Object[]{
+                timestamp.getUpdates(), timestamp.getLogicalUpdates(), timestamp.getMaxLogicalCounter(),
+                timestamp.getSkew(), timestamp.getMaxSkew(), timestamp.getFutureTimestamps(),
+                timestamp.getSkewAlarms()});
+    }
+
+    @Override
+    public long getRemainingCapacity() {
+        return commandConsumer == null ? 0 : commandConsumer.remainingCapacity();
+    }
 }
@@ -7,10 +7,32 @@
  */
 package com.eventsourcing.repository;
 
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
 public interface RepositoryMBean {
     boolean isRunning();
 
     String[] getInstalledCommands();
 
     String[] getInstalledEvents();
+
+    /**
+     * @return number of commands that can be published without blocking
+     */
+    long getRemainingCapacity();
+
+    /**
+     * @return number of entity handles dispatched, delivered and pending delivery for every
+     * entity subscriber
+     */
+    TabularData getEntitySubscribers();
+
+    /**
+     * @return health of the repository's hybrid logical clock: number of updates, updates relying
+     * on the logical counter, highest logical counter, current and highest skew of the logical time
+     * ahead of the physical time (in milliseconds), number of received timestamps from the future and
+     * number of times the skew exceeded the threshold (see {@link com.eventsourcing.hlc.InstrumentedHybridTimestamp})
+     */
+    CompositeData getClock();
 }
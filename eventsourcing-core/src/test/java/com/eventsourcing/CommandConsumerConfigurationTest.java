@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing;
+
+import com.eventsourcing.repository.CommandConsumerConfiguration;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.testng.annotations.Test;
+
+import java.util.Hashtable;
+
+import static org.testng.Assert.*;
+
+public class CommandConsumerConfigurationTest {
+
+    @Test
+    public void defaults() {
+        CommandConsumerConfiguration configuration = CommandConsumerConfiguration.fromProperties(new Hashtable<>());
+        assertEquals(configuration.getRingBufferSize(), CommandConsumerConfiguration.DEFAULT_RING_BUFFER_SIZE);
+        assertEquals(configuration.getWaitStrategy(), CommandConsumerConfiguration.WaitStrategyType.BLOCKING);
+        assertEquals(configuration.getProducerType(), ProducerType.MULTI);
+        assertEquals(configuration.getJournalWorkers(), 1);
+        assertEquals(configuration.getCompletionWorkers(), 1);
+        assertFalse(configuration.isGroupCommit());
+        assertEquals(configuration.getPartitions(), 1);
+        assertEquals(configuration.getSubscriberQueueSize(), CommandConsumerConfiguration.DEFAULT_SUBSCRIBER_QUEUE_SIZE);
+        assertEquals(configuration.getSubscriberBatchSize(), CommandConsumerConfiguration.DEFAULT_SUBSCRIBER_BATCH_SIZE);
+        assertEquals(configuration.getExecutorThreads(), 0);
+        assertFalse(configuration.isVirtualThreads());
+        assertFalse(configuration.isConcurrentExecution());
+        assertEquals(configuration.getDeduplicationCacheSize(), 0);
+    }
+
+    @Test
+    public void properties() {
+        Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put("ringBufferSize", 4096);
+        properties.put("waitStrategy", "BUSY_SPIN");
+        properties.put("producerType", "SINGLE");
+        properties.put("journalWorkers", "4");
+        properties.put("completionWorkers", 2);
+        properties.put("groupCommit", true);
+        properties.put("partitions", "8");
+        properties.put("subscriberQueueSize", 100);
+        properties.put("subscriberBatchSize", "10");
+        CommandConsumerConfiguration configuration = CommandConsumerConfiguration.fromProperties(properties);
+        assertEquals(configuration.getRingBufferSize(), 4096);
+        assertEquals(configuration.getWaitStrategy(), CommandConsumerConfiguration.WaitStrategyType.BUSY_SPIN);
+        assertEquals(configuration.getProducerType(), ProducerType.SINGLE);
+        assertEquals(configuration.getJournalWorkers(), 4);
+        assertEquals(configuration.getCompletionWorkers(), 2);
+        assertTrue(configuration.isGroupCommit());
+        assertEquals(configuration.getPartitions(), 8);
+        assertEquals(configuration.getSubscriberQueueSize(), 100);
+        assertEquals(configuration.getSubscriberBatchSize(), 10);
+    }
+
+    @Test
+    public void optionalFeatureProperties() {
+        Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put("executorThreads", "16");
+        properties.put("virtualThreads", true);
+        properties.put("deduplicationCacheSize", 8192);
+        CommandConsumerConfiguration configuration = CommandConsumerConfiguration.fromProperties(properties);
+        assertEquals(configuration.getExecutorThreads(), 16);
+        assertTrue(configuration.isVirtualThreads());
+        assertTrue(configuration.isConcurrentExecution());
+        assertEquals(configuration.getDeduplicationCacheSize(), 8192);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void groupCommitWithExecutor() {
+        CommandConsumerConfiguration.builder().groupCommit(true).executorThreads(4).build();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void ringBufferSizePowerOfTwo() {
+        CommandConsumerConfiguration.builder().ringBufferSize(1000).build();
+    }
+
+}
@@ -10,6 +10,9 @@ package com.eventsourcing;
 import com.eventsourcing.events.EventCausalityEstablished;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -89,4 +92,51 @@ public class EventStreamTest {
         assertEquals(test.getStream().collect(Collectors.<Event>toSet()).size(), 2);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testDrainTo() throws Exception {
+        Event event1 = EventCausalityEstablished.builder().build();
+        Event event2 = EventCausalityEstablished.builder().build();
+        List<Event> events = new ArrayList<>();
+        assertEquals(EventStream.of(event1, event2).drainTo(events::add), 2);
+        assertEquals(events, Arrays.asList(event1, event2));
+    }
+
+    @Test
+    public void testDrainToStream() throws Exception {
+        Event event1 = EventCausalityEstablished.builder().build();
+        Event event2 = EventCausalityEstablished.builder().build();
+        List<Event> events = new ArrayList<>();
+        assertEquals(EventStream.of(Stream.of(event1, event2)).drainTo(events::add), 2);
+        assertEquals(events, Arrays.asList(event1, event2));
+    }
+
+    @Test
+    public void testDrainToEmpty() throws Exception {
+        assertEquals(EventStream.empty().drainTo(event -> fail()), 0);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testConsumedOnce() throws Exception {
+        EventStream<Object> test = EventStream.of(EventCausalityEstablished.builder().build());
+        test.drainTo(event -> {});
+        test.getStream();
+    }
+
+    @Test
+    public void testBuilderReuse() throws Exception {
+        EventStream.Builder<String> builder = EventStream.builder("test");
+        Event event1 = EventCausalityEstablished.builder().build();
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            builder.accept(event1);
+        }
+        EventStream<String> test = builder.build();
+        Event event2 = EventCausalityEstablished.builder().build();
+        EventStream<String> test1 = builder.add(event2).build();
+        assertEquals(test.drainTo(events::add), 100);
+        assertTrue(events.stream().allMatch(e -> e == event1));
+        assertEquals(test1.getState(), "test");
+        assertEquals(test1.getStream().collect(Collectors.toList()), Arrays.asList(event2));
+    }
+
+}
@@ -13,6 +13,7 @@ import com.eventsourcing.hlc.NTPServerTimeProvider;
 import com.eventsourcing.index.IndexEngine;
 import com.eventsourcing.index.MemoryIndexEngine;
 import com.eventsourcing.repository.*;
+import com.googlecode.cqengine.index.support.CloseableIterator;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
@@ -29,8 +30,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
-import static org.testng.Assert.assertEquals;
-import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.*;
 
 public abstract class JournalTest<T extends Journal> {
 
@@ -129,6 +129,32 @@ public abstract class JournalTest<T extends Journal> {
         assertEquals(journal.journal(TestCommand.builder().events(false).timestamp(timestamp).build()), 0);
     }
 
+    @Test
+    @SneakyThrows
+    public void journalSize() {
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        journal.journal(TestCommand.builder().events(true).timestamp(timestamp).build());
+        timestamp.update();
+        journal.journal(TestCommand.builder().events(false).timestamp(timestamp).build());
+        timestamp.update();
+        try {
+            journal.journal(ExceptionalTestCommand.builder().timestamp(timestamp).build());
+        } catch (Exception e) {
+            assertTrue(e instanceof IllegalStateException);
+        }
+
+        assertEquals(journal.size(TestCommand.class), 2);
+        assertEquals(journal.size(ExceptionalTestCommand.class), 1);
+        assertEquals(journal.size(TestEvent.class), 1);
+        assertFalse(journal.isEmpty(TestEvent.class));
+        assertTrue(journal.isEmpty(AnotherTestEvent.class));
+
+        journal.clear();
+        assertEquals(journal.size(TestCommand.class), 0);
+        assertTrue(journal.isEmpty(TestEvent.class));
+    }
+
     @Test
     @SneakyThrows
     public void journalListener() {
@@ -201,6 +227,31 @@ public abstract class JournalTest<T extends Journal> {
         assertEquals(event.uuid(), eventEntity.get().uuid());
     }
 
+    @Test
+    @SneakyThrows
+    public void journalRetrievingAll() {
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        List<Event> events = new ArrayList<>();
+        TestCommand command = TestCommand.builder().events(true).build();
+        journal.journal(command.timestamp(timestamp), new Journal.Listener() {
+            @Override
+            public void onEvent(Event event) {
+                events.add(event);
+            }
+        });
+
+        UUID missing = UUID.randomUUID();
+        Map<UUID, Entity> entities = journal.getAll(Arrays.asList(events.get(0).uuid(), missing, command.uuid()));
+        assertEquals(entities.size(), 2);
+        assertEquals(entities.get(command.uuid()).uuid(), command.uuid());
+        assertTrue(entities.get(command.uuid()) instanceof TestCommand);
+        assertEquals(entities.get(events.get(0).uuid()).uuid(), events.get(0).uuid());
+        assertFalse(entities.containsKey(missing));
+
+        assertTrue(journal.getAll(Collections.emptyList()).isEmpty());
+    }
+
     @Test
     @SneakyThrows
     public void journalIterating() {
@@ -245,4 +296,144 @@ public abstract class JournalTest<T extends Journal> {
                                                     .collect(Collectors.toList())));
     }
 
-}
\ No newline at end of file
+    @Test
+    @SneakyThrows
+    public void journalIteratingTimeRange() {
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        List<HybridTimestamp> timestamps = new ArrayList<>();
+        List<UUID> events = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            // ten seconds apart, so that commands' events are timestamped before the next command
+            HybridTimestamp commandTimestamp = new HybridTimestamp(timeProvider,
+                                                                   timestamp.timestamp() + ((i * 10L) << 32));
+            timestamps.add(commandTimestamp);
+            journal.journal(TestCommand.builder().events(true).timestamp(commandTimestamp).build(),
+                            new Journal.Listener() {
+                                @Override
+                                public void onEvent(Event event) {
+                                    if (event instanceof TestEvent) {
+                                        events.add(event.uuid());
+                                    }
+                                }
+                            });
+        }
+
+        assertEquals(uuids(journal.eventIterator(TestEvent.class, null, null)), events);
+        assertEquals(uuids(journal.eventIterator(TestEvent.class, timestamps.get(1), null)), events.subList(1, 3));
+        assertEquals(uuids(journal.eventIterator(TestEvent.class, null, timestamps.get(1))), events.subList(0, 1));
+        assertEquals(uuids(journal.eventIterator(TestEvent.class, timestamps.get(1), timestamps.get(2))),
+                     events.subList(1, 2));
+        assertTrue(uuids(journal.eventIterator(TestEvent.class, timestamps.get(1), timestamps.get(1))).isEmpty());
+        assertTrue(uuids(journal.eventIterator(AnotherTestEvent.class, null, null)).isEmpty());
+    }
+
+    @Test
+    @SneakyThrows
+    public void journalIteratingFromPosition() {
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        journal.journal(TestCommand.builder().events(true).timestamp(timestamp.clone()).build());
+        timestamp.update();
+        journal.journal(TestCommand.builder().events(true).timestamp(timestamp.clone()).build());
+
+        List<Journal.Position> positions = new ArrayList<>();
+        try (CloseableIterator<EntityHandle<Entity>> iterator = journal.iterator(Journal.Position.START)) {
+            while (iterator.hasNext()) {
+                positions.add(Journal.Position.of(iterator.next().get()));
+            }
+        }
+        // two commands, their events and the events' causality
+        assertEquals(positions.size(), 6);
+        List<Journal.Position> sorted = new ArrayList<>(positions);
+        Collections.sort(sorted);
+        assertEquals(positions, sorted);
+
+        // resuming from a position that has been handed out as a string
+        Journal.Position position = Journal.Position.parse(positions.get(2).toString());
+        assertEquals(position, positions.get(2));
+        assertEquals(uuids(journal.iterator(position)),
+                     positions.subList(3, 6).stream().map(Journal.Position::getUuid).collect(Collectors.toList()));
+        assertTrue(uuids(journal.iterator(positions.get(5))).isEmpty());
+    }
+
+    private static List<UUID> uuids(CloseableIterator<? extends EntityHandle<?>> iterator) {
+        try {
+            List<UUID> uuids = new ArrayList<>();
+            iterator.forEachRemaining(handle -> uuids.add(handle.uuid()));
+            return uuids;
+        } finally {
+            iterator.close();
+        }
+    }
+
+    public static class SplittingTestCommand extends StandardCommand<Void, Void> {
+        @Builder
+        public SplittingTestCommand(HybridTimestamp timestamp) {
+            super(timestamp);
+        }
+
+        @Override
+        public EventStream<Void> events(Repository repository) throws Exception {
+            throw new Journal.BatchSplitException();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void journalBatch() {
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        AtomicInteger onCommit = new AtomicInteger(0);
+        Journal.Listener listener = new Journal.Listener() {
+            @Override
+            public void onCommit() {
+                onCommit.incrementAndGet();
+            }
+        };
+        TestCommand command1 = TestCommand.builder().events(true).timestamp(timestamp).build();
+        ExceptionalTestCommand command2 = ExceptionalTestCommand.builder().timestamp(timestamp).build();
+        TestCommand command3 = TestCommand.builder().events(false).timestamp(timestamp).build();
+        List<Journal.BatchEntry> batch = Arrays.asList(new Journal.BatchEntry(command1, listener, new LocalLockProvider()),
+                                                       new Journal.BatchEntry(command2, listener, new LocalLockProvider()),
+                                                       new Journal.BatchEntry(command3, listener, new LocalLockProvider()));
+        journal.journal(batch);
+
+        assertTrue(batch.stream().allMatch(Journal.BatchEntry::isJournalled));
+        assertEquals(onCommit.get(), 3);
+
+        assertEquals(batch.get(0).getCount(), 1);
+        assertNull(batch.get(0).getException());
+        assertTrue(batch.get(1).getException() instanceof IllegalStateException);
+        assertEquals(batch.get(2).getCount(), 0);
+        assertNull(batch.get(2).getException());
+
+        assertTrue(journal.get(command1.uuid()).isPresent());
+        assertTrue(journal.get(command2.uuid()).isPresent());
+        assertTrue(journal.get(command3.uuid()).isPresent());
+    }
+
+    @Test
+    @SneakyThrows
+    public void journalBatchSplit() {
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        TestCommand command1 = TestCommand.builder().events(true).timestamp(timestamp).build();
+        SplittingTestCommand command2 = SplittingTestCommand.builder().timestamp(timestamp).build();
+        TestCommand command3 = TestCommand.builder().events(true).timestamp(timestamp).build();
+        List<Journal.BatchEntry> batch = Arrays
+                .asList(new Journal.BatchEntry(command1, Journal.DEFAULT_LISTENER, new LocalLockProvider()),
+                        new Journal.BatchEntry(command2, Journal.DEFAULT_LISTENER, new LocalLockProvider()),
+                        new Journal.BatchEntry(command3, Journal.DEFAULT_LISTENER, new LocalLockProvider()));
+        journal.journal(batch);
+
+        assertTrue(batch.get(0).isJournalled());
+        assertFalse(batch.get(1).isJournalled());
+        assertFalse(batch.get(2).isJournalled());
+
+        assertTrue(journal.get(command1.uuid()).isPresent());
+        assertFalse(journal.get(command2.uuid()).isPresent());
+        assertFalse(journal.get(command3.uuid()).isPresent());
+    }
+
+}
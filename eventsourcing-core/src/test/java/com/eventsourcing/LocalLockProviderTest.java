@@ -7,12 +7,71 @@
  */
 package com.eventsourcing;
 
+import com.eventsourcing.hlc.HybridTimestamp;
 import com.eventsourcing.repository.LocalLockProvider;
+import com.eventsourcing.repository.LockProvider;
 import org.testng.annotations.Test;
 
+import java.util.concurrent.CompletableFuture;
+
+import static org.testng.Assert.*;
+
 @Test
 public class LocalLockProviderTest extends LockProviderTest<LocalLockProvider> {
     public LocalLockProviderTest() {
         super(new LocalLockProvider());
     }
+
+    @Test
+    public void eviction() {
+        LocalLockProvider lockProvider = new LocalLockProvider();
+        Lock lock = lockProvider.lock("eviction");
+        Lock other = lockProvider.lock("eviction-other");
+        assertEquals(lockProvider.getLockCount(), 2);
+        lock.unlock();
+        lock.unlock();
+        assertEquals(lockProvider.getLockCount(), 1);
+        other.unlock();
+        assertEquals(lockProvider.getLockCount(), 0);
+    }
+
+    @Test(timeOut = 5000)
+    public void deadlock() throws Exception {
+        LocalLockProvider lockProvider = new LocalLockProvider();
+        Command<?, ?> older = RepositoryTest.RepositoryTestCommand.builder().timestamp(new HybridTimestamp(1L << 32, 0))
+                                                               .build();
+        Command<?, ?> younger = RepositoryTest.RepositoryTestCommand.builder().timestamp(new HybridTimestamp(2L << 32, 0))
+                                                                 .build();
+        Lock a = lockProvider.lock("a", older);
+        Lock b = lockProvider.lock("b", younger);
+        CompletableFuture<Lock> olderWaiting = CompletableFuture.supplyAsync(() -> lockProvider.lock("b", older));
+        CompletableFuture<Lock> youngerWaiting = CompletableFuture.supplyAsync(() -> lockProvider.lock("a", younger));
+        Throwable throwable = youngerWaiting.handle((lock, t) -> t).get();
+        assertTrue(throwable.getCause() instanceof LockProvider.DeadlockException);
+        assertEquals(lockProvider.getDeadlocks(), 1);
+        // aborted command releases its locks
+        b.unlock();
+        olderWaiting.get().unlock();
+        a.unlock();
+        assertEquals(lockProvider.getLockCount(), 0);
+    }
+
+    @Test(timeOut = 5000)
+    public void stripeCollision() {
+        LocalLockProvider lockProvider = new LocalLockProvider(1);
+        Command<?, ?> command = RepositoryTest.RepositoryTestCommand.builder().build();
+        Lock lock = lockProvider.lock("a", command);
+        try {
+            lockProvider.lock("b", command);
+            fail("Collision wasn't detected");
+        } catch (LockProvider.DeadlockException e) {
+            assertEquals(e.getLock(), "b");
+        }
+        lock.unlock();
+    }
+
+    @Test
+    public void stripes() {
+        assertEquals(new LocalLockProvider(16).getLockCount(), 16);
+    }
 }
@@ -10,6 +10,7 @@ package com.eventsourcing;
 import com.eventsourcing.repository.LockProvider;
 import org.testng.annotations.Test;
 
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -56,4 +57,56 @@ public abstract class LockProviderTest<T extends LockProvider> {
         assertTrue(future.isDone() && !future.isCancelled());
     }
 
+    @Test(timeOut = 2000)
+    public void tryLock() {
+        Lock lock = lockProvider.lock("tryLock");
+        assertFalse(lockProvider.tryLock("tryLock", 10, TimeUnit.MILLISECONDS).isPresent());
+        lock.unlock();
+        Optional<Lock> acquired = lockProvider.tryLock("tryLock", 10, TimeUnit.MILLISECONDS);
+        assertTrue(acquired.isPresent());
+        acquired.get().unlock();
+    }
+
+    @Test(timeOut = 2000)
+    public void sharedLocking() throws Exception {
+        Lock shared = lockProvider.lockShared("shared");
+        Lock otherShared = lockProvider.lockShared("shared");
+        assertTrue(shared.isLocked());
+        assertFalse(lockProvider.tryLock("shared", 10, TimeUnit.MILLISECONDS).isPresent());
+        shared.unlock();
+        assertTrue(otherShared.isLocked());
+        otherShared.unlock();
+        assertFalse(otherShared.isLocked());
+
+        Lock exclusive = lockProvider.lock("shared");
+        CompletableFuture<Lock> future = CompletableFuture.supplyAsync(() -> lockProvider.lockShared("shared"));
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            fail("Lock wasn't locked");
+        } catch (TimeoutException e) {
+        }
+        exclusive.unlock();
+        future.get().unlock();
+    }
+
+    @Test(timeOut = 10000)
+    public void contention() throws InterruptedException {
+        int[] counter = new int[1];
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    Lock lock = lockProvider.lock("contention");
+                    counter[0]++;
+                    lock.unlock();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(counter[0], threads.length * 10000);
+    }
+
 }
\ No newline at end of file
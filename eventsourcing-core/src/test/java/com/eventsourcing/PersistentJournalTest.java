@@ -64,8 +64,10 @@ public abstract class PersistentJournalTest<T extends Journal> extends JournalTe
         if (works) {
             assertTrue(entity.isPresent());
             assertEquals(command.uuid(), entity.get().uuid());
+            assertEquals(journal.size(TestCommand.class), 1);
         } else {
             assertFalse(entity.isPresent());
+            assertTrue(journal.isEmpty(TestCommand.class));
         }
 
         Event event = events.get(0);
@@ -16,6 +16,7 @@ import com.eventsourcing.hlc.HybridTimestamp;
 import com.eventsourcing.hlc.NTPServerTimeProvider;
 import com.eventsourcing.index.IndexEngine;
 import com.eventsourcing.index.MemoryIndexEngine;
+import com.eventsourcing.index.PrefetchingResultSet;
 import com.eventsourcing.index.SimpleAttribute;
 import com.eventsourcing.layout.LayoutConstructor;
 import com.eventsourcing.repository.*;
@@ -29,15 +30,27 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.management.openmbean.CompositeData;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 import static com.eventsourcing.index.EntityQueryFactory.all;
+import static com.eventsourcing.index.EntityQueryFactory.prefetch;
 import static com.googlecode.cqengine.query.QueryFactory.contains;
 import static com.googlecode.cqengine.query.QueryFactory.equal;
+import static com.googlecode.cqengine.query.QueryFactory.queryOptions;
 import static org.testng.Assert.*;
 
 public abstract class RepositoryTest<T extends Repository> {
@@ -150,19 +163,162 @@ public abstract class RepositoryTest<T extends Repository> {
     public void subscribe() {
         final AtomicBoolean gotEvent = new AtomicBoolean();
         final AtomicBoolean gotCommand = new AtomicBoolean();
-        repository.addEntitySubscriber(new ClassEntitySubscriber<TestEvent>(TestEvent.class) {
+        CountDownLatch latch = new CountDownLatch(2);
+        EntitySubscriber<TestEvent> eventSubscriber = new ClassEntitySubscriber<TestEvent>(TestEvent.class) {
             @Override public void onEntity(EntityHandle<TestEvent> entity) {
                 gotEvent.set(journal.get(entity.uuid()).isPresent());
+                latch.countDown();
             }
-        });
-        repository.addEntitySubscriber(new ClassEntitySubscriber<RepositoryTestCommand>(RepositoryTestCommand.class) {
+        };
+        EntitySubscriber<RepositoryTestCommand> commandSubscriber =
+                new ClassEntitySubscriber<RepositoryTestCommand>(RepositoryTestCommand.class) {
             @Override public void onEntity(EntityHandle<RepositoryTestCommand> entity) {
                 gotCommand.set(journal.get(entity.uuid()).isPresent());
+                latch.countDown();
             }
-        });
+        };
+        repository.addEntitySubscriber(eventSubscriber);
+        repository.addEntitySubscriber(commandSubscriber);
         repository.publish(RepositoryTestCommand.builder().build()).get();
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
         assertTrue(gotEvent.get());
         assertTrue(gotCommand.get());
+        repository.removeEntitySubscriber(eventSubscriber);
+        repository.removeEntitySubscriber(commandSubscriber);
+    }
+
+    @Test(timeOut = 5000)
+    @SneakyThrows
+    public void subscriberRouting() {
+        CountDownLatch latch = new CountDownLatch(2);
+        List<String> commands = new ArrayList<>();
+        List<String> events = new ArrayList<>();
+        // class subscriber with an additional predicate
+        EntitySubscriber<RepositoryTestCommand> commandSubscriber =
+                new ClassEntitySubscriber<RepositoryTestCommand>(RepositoryTestCommand.class) {
+            @Override public boolean matches(RepositoryTestCommand entity) {
+                return entity.getValue().equals("routed");
+            }
+
+            @Override public void onEntity(EntityHandle<RepositoryTestCommand> entity) {
+                commands.add(entity.get().getValue());
+                latch.countDown();
+            }
+        };
+        // generic subscriber
+        EntitySubscriber<Entity> eventSubscriber = new EntitySubscriber<Entity>() {
+            @Override public boolean matches(Entity entity) {
+                return entity instanceof TestEvent && ((TestEvent) entity).string().equals("routed");
+            }
+
+            @Override public void onEntity(EntityHandle<Entity> entity) {
+                events.add(((TestEvent) entity.get()).string());
+                latch.countDown();
+            }
+        };
+        repository.addEntitySubscriber(commandSubscriber);
+        repository.addEntitySubscriber(eventSubscriber);
+        // entities are delivered in order, so the first command would be delivered before the second
+        repository.publish(RepositoryTestCommand.builder().value("ignored").build()).get();
+        repository.publish(RepositoryTestCommand.builder().value("routed").build()).get();
+        latch.await();
+        assertEquals(commands, Collections.singletonList("routed"));
+        assertEquals(events, Collections.singletonList("routed"));
+        repository.removeEntitySubscriber(commandSubscriber);
+        repository.removeEntitySubscriber(eventSubscriber);
+    }
+
+    @Test(timeOut = 5000)
+    @SneakyThrows
+    public void slowSubscriber() {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<EntityHandle<RepositoryTestCommand>> received = new ArrayList<>();
+        EntitySubscriber<RepositoryTestCommand> subscriber =
+                new ClassEntitySubscriber<RepositoryTestCommand>(RepositoryTestCommand.class) {
+            @Override @SneakyThrows public void onEntity(EntityHandle<RepositoryTestCommand> entity) {
+                latch.await();
+                synchronized (received) {
+                    received.add(entity);
+                    received.notifyAll();
+                }
+            }
+        };
+        repository.addEntitySubscriber(subscriber);
+        // commands complete even though the subscriber is blocked
+        for (int i = 0; i < 10; i++) {
+            repository.publish(RepositoryTestCommand.builder().build()).get();
+        }
+        latch.countDown();
+        synchronized (received) {
+            while (received.size() < 10) {
+                received.wait();
+            }
+        }
+        repository.removeEntitySubscriber(subscriber);
+    }
+
+    @Test(timeOut = 10000)
+    @SneakyThrows
+    public void journalReadingSubscriber() {
+        List<String> received = new ArrayList<>();
+        EntitySubscriber<RepositoryTestCommand> subscriber =
+                new ClassEntitySubscriber<RepositoryTestCommand>(RepositoryTestCommand.class) {
+            @Override @SneakyThrows public void onEntity(EntityHandle<RepositoryTestCommand> entity) {
+                // falls behind enough for its queue to fill up, reading the journal meanwhile
+                Thread.sleep(10);
+                String value = entity.get().getValue();
+                synchronized (received) {
+                    received.add(value);
+                    received.notifyAll();
+                }
+            }
+        };
+        repository.addEntitySubscriber(subscriber);
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(repository.publish(RepositoryTestCommand.builder().build()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get();
+        synchronized (received) {
+            while (received.size() < 20) {
+                received.wait();
+            }
+        }
+        repository.removeEntitySubscriber(subscriber);
+    }
+
+    @Test(timeOut = 5000)
+    @SneakyThrows
+    public void subscriberStreamHandoff() {
+        CountDownLatch published = new CountDownLatch(1);
+        List<String> received = new ArrayList<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        EntitySubscriber<RepositoryTestCommand> subscriber =
+                new ClassEntitySubscriber<RepositoryTestCommand>(RepositoryTestCommand.class) {
+            @Override public void accept(Stream<EntityHandle<RepositoryTestCommand>> entityStream) {
+                // streams are only consumed once all of them have been delivered
+                executor.submit(() -> {
+                    published.await();
+                    synchronized (received) {
+                        entityStream.forEach(entity -> received.add(entity.get().getValue()));
+                        received.notifyAll();
+                    }
+                    return null;
+                });
+            }
+        };
+        repository.addEntitySubscriber(subscriber);
+        for (int i = 0; i < 10; i++) {
+            repository.publish(RepositoryTestCommand.builder().build()).get();
+        }
+        published.countDown();
+        synchronized (received) {
+            while (received.size() < 10) {
+                received.wait();
+            }
+        }
+        repository.removeEntitySubscriber(subscriber);
+        executor.shutdown();
     }
 
     @Test
@@ -184,8 +340,8 @@ public abstract class RepositoryTest<T extends Repository> {
     @Test
     @SneakyThrows
     public void commandTimestamping() {
-        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
-        timestamp.update();
+        // a second ago, as timestamps of different clocks taken within the same tick can be equal
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider, timeProvider.getPhysicalTime() - (1L << 32), 0);
         RepositoryTestCommand command1 = RepositoryTestCommand.builder().value("forced")
                                                               .timestamp(timestamp)
                                                               .build();
@@ -204,6 +360,24 @@ public abstract class RepositoryTest<T extends Repository> {
         assertTrue(repository.getTimestamp().compareTo(test2.timestamp()) > 0);
     }
 
+    @Test
+    @SneakyThrows
+    public void clockHealth() {
+        if (!(repository instanceof RepositoryMBean)) {
+            return;
+        }
+        CompositeData clock = ((RepositoryMBean) repository).getClock();
+        long updates = (long) clock.get("Updates");
+        long futureTimestamps = (long) clock.get("FutureTimestamps");
+        // a second ahead
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider, timeProvider.getPhysicalTime() + (1L << 32), 0);
+        repository.publish(RepositoryTestCommand.builder().timestamp(timestamp).build()).get();
+        clock = ((RepositoryMBean) repository).getClock();
+        assertTrue((long) clock.get("Updates") > updates);
+        assertTrue((long) clock.get("FutureTimestamps") > futureTimestamps);
+        assertTrue((long) clock.get("MaxSkew") > 0);
+    }
+
     @ToString
     public static class TimestampingEventCommand extends StandardCommand<Void, String> {
 
@@ -238,8 +412,8 @@ public abstract class RepositoryTest<T extends Repository> {
     @Test
     @SneakyThrows
     public void eventTimestamping() {
-        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
-        timestamp.update();
+        // a second ago, as timestamps of different clocks taken within the same tick can be equal
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider, timeProvider.getPhysicalTime() - (1L << 32), 0);
         TimestampingEventCommand command = TimestampingEventCommand.builder().eventTimestamp(timestamp).build();
 
         repository.publish(command).get();
@@ -311,6 +485,31 @@ public abstract class RepositoryTest<T extends Repository> {
         lock.unlock();
     }
 
+    public static class SlowCommand extends StandardCommand<Void, Void> {
+        @Builder
+        public SlowCommand(HybridTimestamp timestamp) {
+            super(timestamp);
+        }
+
+        @Override
+        public EventStream<Void> events(Repository repository) throws Exception {
+            Thread.sleep(100);
+            return EventStream.empty();
+        }
+    }
+
+    @Test(timeOut = 1000) @SneakyThrows
+    public void lockContention() {
+        // let the lock commands queue up behind a slow one
+        CompletableFuture<Void> slow = repository.publish(SlowCommand.builder().build());
+        CompletableFuture<Void> first = repository.publish(LockCommand.builder().build());
+        CompletableFuture<Void> second = repository.publish(LockCommand.builder().build());
+        CompletableFuture.allOf(slow, first, second).get();
+        Lock lock = lockProvider.lock("LOCK");
+        assertTrue(lock.isLocked());
+        lock.unlock();
+    }
+
     public static class ExceptionalLockCommand extends StandardCommand<Void, Void> {
         @Builder
         public ExceptionalLockCommand(HybridTimestamp timestamp) {
@@ -361,6 +560,33 @@ public abstract class RepositoryTest<T extends Repository> {
     }
 
 
+    public static class QueryingCommand extends StandardCommand<Void, Void> {
+        @Getter
+        private final String value;
+
+        @Builder
+        public QueryingCommand(HybridTimestamp timestamp, String value) {
+            super(timestamp);
+            this.value = value == null ? "test" : value;
+        }
+
+        @Override
+        public EventStream<Void> events(Repository repository) throws Exception {
+            // let the journalling stage start waiting for these events before the journal is read
+            Thread.sleep(100);
+            TestEvent event = repository.query(TestEvent.class, equal(TestEvent.ATTR, value)).uniqueResult().get();
+            return EventStream.of(TestEvent.builder().string(event.string() + "-queried").build());
+        }
+    }
+
+    @Test(timeOut = 10000) @SneakyThrows
+    public void journalReadingCommand() {
+        String value = UUID.randomUUID().toString();
+        repository.publish(RepositoryTestCommand.builder().value(value).build()).get();
+        repository.publish(QueryingCommand.builder().value(value).build()).get();
+        assertEquals(repository.query(TestEvent.class, equal(TestEvent.ATTR, value + "-queried")).size(), 1);
+    }
+
     @ToString
     public static class StreamExceptionCommand extends StandardCommand<Void, Void> {
 
@@ -529,4 +755,202 @@ public abstract class RepositoryTest<T extends Repository> {
         }
     }
 
-}
\ No newline at end of file
+    @Test @SneakyThrows
+    public void prefetchingQuery() {
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            RepositoryTestCommand command = RepositoryTestCommand.builder().value("prefetch").build();
+            repository.publish(command).get();
+            uuids.add(command.uuid());
+        }
+        try (ResultSet<EntityHandle<RepositoryTestCommand>> resultSet = repository
+                .query(RepositoryTestCommand.class, equal(RepositoryTestCommand.ATTR, "prefetch"),
+                       queryOptions(prefetch(2)))) {
+            assertTrue(resultSet instanceof PrefetchingResultSet);
+            assertEquals(resultSet.size(), 5);
+            List<UUID> retrieved = new ArrayList<>();
+            for (EntityHandle<RepositoryTestCommand> handle : resultSet) {
+                assertEquals(handle.get().getValue(), "prefetch");
+                retrieved.add(handle.get().uuid());
+            }
+            assertEquals(new HashSet<>(retrieved), new HashSet<>(uuids));
+        }
+    }
+
+    public static class PartitionedCommand extends StandardCommand<Void, Void> {
+        @Getter
+        private final String key;
+
+        @Builder
+        public PartitionedCommand(HybridTimestamp timestamp, String key) {
+            super(timestamp);
+            this.key = key == null ? "" : key;
+        }
+
+        @Override
+        public Object partitionKey() {
+            return key;
+        }
+    }
+
+    @Test @SneakyThrows
+    public void partitionOrdering() {
+        List<PartitionedCommand> commands = new ArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            PartitionedCommand command = PartitionedCommand.builder().key(String.valueOf(i % 4)).build();
+            commands.add(command);
+            futures.add(repository.publish(command));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get();
+        for (int i = 4; i < commands.size(); i++) {
+            assertTrue(commands.get(i - 4).timestamp().compareTo(commands.get(i).timestamp()) < 0);
+        }
+    }
+
+    @Test @SneakyThrows
+    public void crossPartitionCausality() {
+        // a command completed in one partition happened before any command published after it, in any partition
+        for (int i = 0; i < 100; i++) {
+            PartitionedCommand first = PartitionedCommand.builder().key(String.valueOf(i)).build();
+            repository.publish(first).get();
+            PartitionedCommand second = PartitionedCommand.builder().key(String.valueOf(i + 1)).build();
+            repository.publish(second).get();
+            assertTrue(first.timestamp().compareTo(second.timestamp()) < 0);
+        }
+    }
+
+    @Test @SneakyThrows
+    public void publishAll() {
+        // larger than the command queue to ensure it is claimed in chunks
+        List<RepositoryTestCommand> commands = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            commands.add(RepositoryTestCommand.builder().value(String.valueOf(i)).build());
+        }
+        BatchPublication<String> publication = repository.publishAll(commands);
+        assertEquals(publication.getFutures().size(), commands.size());
+        List<String> results = publication.getCompleted().get();
+        assertEquals(results.size(), commands.size());
+        assertTrue(results.stream().allMatch("hello, world"::equals));
+        for (int i = 1; i < commands.size(); i++) {
+            assertTrue(commands.get(i - 1).timestamp().compareTo(commands.get(i).timestamp()) < 0);
+        }
+    }
+
+    @Test @SneakyThrows
+    public void publishAllExceptionally() {
+        List<Command<?, ?>> commands = new ArrayList<>();
+        commands.add(RepositoryTestCommand.builder().build());
+        commands.add(ExceptionalCommand.builder().build());
+        commands.add(RepositoryTestCommand.builder().build());
+        BatchPublication<Object> publication = repository.publishAll(commands);
+        Throwable throwable = publication.getCompleted().handle((result, t) -> t).get();
+        assertTrue(throwable.getCause() instanceof IllegalStateException);
+        assertEquals(publication.getFutures().get(0).get(), "hello, world");
+        assertTrue(publication.getFutures().get(1).isCompletedExceptionally());
+        assertEquals(publication.getFutures().get(2).get(), "hello, world");
+    }
+
+    public static class BlockingCommand extends StandardCommand<Void, Void> {
+        static CountDownLatch latch;
+
+        @Builder
+        public BlockingCommand(HybridTimestamp timestamp) {
+            super(timestamp);
+        }
+
+        @Override
+        public EventStream<Void> events(Repository repository) throws Exception {
+            latch.await();
+            return super.events(repository);
+        }
+    }
+
+    @Test(timeOut = 10000) @SneakyThrows
+    public void tryPublish() {
+        assertEquals(repository.tryPublish(RepositoryTestCommand.builder().build()).get(), "hello, world");
+
+        BlockingCommand.latch = new CountDownLatch(1);
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        CompletableFuture<String> rejected;
+        try {
+            futures.add(repository.publish(BlockingCommand.builder().build()));
+            do {
+                rejected = repository.tryPublish(RepositoryTestCommand.builder().build());
+                futures.add(rejected);
+            } while (!rejected.isCompletedExceptionally());
+            Throwable throwable = rejected.handle((result, t) -> t).get();
+            assertTrue(throwable instanceof Repository.CommandRejectedException);
+
+            // the last of the commands preceding the blocking one might have freed its slot just now
+            do {
+                rejected = repository.publish(RepositoryTestCommand.builder().build(), 10, TimeUnit.MILLISECONDS);
+                futures.add(rejected);
+            } while (!rejected.isCompletedExceptionally());
+            throwable = rejected.handle((result, t) -> t).get();
+            assertTrue(throwable instanceof Repository.CommandRejectedException);
+        } finally {
+            BlockingCommand.latch.countDown();
+        }
+        futures.removeIf(CompletableFuture::isCompletedExceptionally);
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get();
+    }
+
+    public static class OptimisticCommand extends StandardCommand<Void, Object> {
+        public static final AtomicInteger attempts = new AtomicInteger();
+        public static volatile int staleAttempts;
+
+        @Getter
+        private final String key;
+
+        @Builder
+        public OptimisticCommand(HybridTimestamp timestamp, String key) {
+            super(timestamp);
+            this.key = key == null ? "" : key;
+        }
+
+        @Override
+        public EventStream<Void> events(Repository repository) {
+            Optional<HybridTimestamp> version = repository.getJournal().getVersion(key);
+            if (attempts.getAndIncrement() < staleAttempts) {
+                // pretend the version has changed since it was read
+                version = version.isPresent() ? Optional.empty() : Optional.of(new HybridTimestamp(0, 0));
+            }
+            return EventStream.<Void>of(TestEvent.builder().string(key).build()).expectVersion(key, version);
+        }
+    }
+
+    @Test @SneakyThrows
+    public void optimisticConcurrency() {
+        OptimisticCommand.attempts.set(0);
+        OptimisticCommand.staleAttempts = 0;
+        String key = UUID.randomUUID().toString();
+        assertFalse(journal.getVersion(key).isPresent());
+
+        OptimisticCommand command = OptimisticCommand.builder().key(key).build();
+        repository.publish(command).get();
+        assertEquals(journal.getVersion(key).get().compareTo(command.timestamp()), 0);
+        assertEquals(OptimisticCommand.attempts.get(), 1);
+
+        OptimisticCommand.attempts.set(0);
+        OptimisticCommand.staleAttempts = 2;
+        command = OptimisticCommand.builder().key(key).build();
+        repository.publish(command).get();
+        assertEquals(journal.getVersion(key).get().compareTo(command.timestamp()), 0);
+        assertEquals(OptimisticCommand.attempts.get(), 3);
+    }
+
+    @Test @SneakyThrows
+    public void optimisticConcurrencyConflict() {
+        OptimisticCommand.attempts.set(0);
+        OptimisticCommand.staleAttempts = Integer.MAX_VALUE;
+        String key = UUID.randomUUID().toString();
+        OptimisticCommand command = OptimisticCommand.builder().key(key).build();
+        Object o = repository.publish(command).exceptionally(throwable -> throwable).get();
+        assertTrue(o instanceof Journal.ConcurrencyConflictException);
+        assertEquals(((Journal.ConcurrencyConflictException) o).getKey(), key);
+        assertEquals(OptimisticCommand.attempts.get(), Journal.BatchEntry.MAX_ATTEMPTS);
+        assertFalse(journal.getVersion(key).isPresent());
+    }
+
+}
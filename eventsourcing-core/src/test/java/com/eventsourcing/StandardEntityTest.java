@@ -12,6 +12,8 @@ import lombok.SneakyThrows;
 import lombok.Value;
 import org.testng.annotations.Test;
 
+import java.util.UUID;
+
 import static org.testng.Assert.*;
 
 public class StandardEntityTest {
@@ -30,4 +32,17 @@ public class StandardEntityTest {
         assertNotNull(layout.getProperty("timestamp"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void uuidGenerator() {
+        UUIDGenerator generator = StandardEntity.getUUIDGenerator();
+        UUID uuid = UUID.randomUUID();
+        StandardEntity.setUUIDGenerator(() -> uuid);
+        try {
+            assertEquals(new SomeEntity("a").uuid(), uuid);
+        } finally {
+            StandardEntity.setUUIDGenerator(generator);
+        }
+        assertNotEquals(new SomeEntity("a").uuid(), uuid);
+    }
+
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing;
+
+import org.testng.annotations.Test;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.testng.Assert.*;
+
+public class TimeOrderedUUIDGeneratorTest {
+
+    private final TimeOrderedUUIDGenerator generator = new TimeOrderedUUIDGenerator();
+
+    @Test
+    public void layout() {
+        long before = System.currentTimeMillis();
+        UUID uuid = generator.generate();
+        assertEquals(uuid.version(), 7);
+        assertEquals(uuid.variant(), 2);
+        long time = uuid.getMostSignificantBits() >>> 16;
+        assertTrue(time >= before && time <= System.currentTimeMillis() + 1);
+    }
+
+    @Test
+    public void ordered() {
+        UUID previous = generator.generate();
+        // enough to overflow the sequence within a millisecond
+        for (int i = 0; i < 100_000; i++) {
+            UUID uuid = generator.generate();
+            assertTrue(uuid.compareTo(previous) > 0, previous + " " + uuid);
+            previous = uuid;
+        }
+    }
+
+    @Test
+    public void unique() throws InterruptedException {
+        Set<UUID> uuids = ConcurrentHashMap.newKeySet();
+        int threads = 4, count = 50_000;
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < count; j++) {
+                    uuids.add(generator.generate());
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        assertEquals(uuids.size(), threads * count);
+    }
+
+}
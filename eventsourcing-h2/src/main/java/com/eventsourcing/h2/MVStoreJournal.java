@@ -20,10 +20,11 @@ import com.eventsourcing.repository.Journal;
 import com.eventsourcing.repository.JournalEntityHandle;
 import com.eventsourcing.repository.JournalMBean;
 import com.eventsourcing.repository.LockProvider;
+import com.eventsourcing.utils.CloseableWrappingIterator;
 import com.google.common.base.Joiner;
-import com.google.common.collect.Iterators;
 import com.google.common.io.BaseEncoding;
 import com.google.common.primitives.Bytes;
+import com.google.common.primitives.UnsignedBytes;
 import com.google.common.util.concurrent.AbstractService;
 import com.googlecode.cqengine.index.support.CloseableIterator;
 import lombok.AccessLevel;
@@ -45,12 +46,12 @@ import org.osgi.service.component.annotations.Deactivate;
 import javax.management.openmbean.*;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @Component(
         property = {"filename=journal.db", "type=MVStoreJournal", "jmx.objectname=com.eventsourcing:type=journal,name=MVStoreJournal"})
@@ -66,6 +67,21 @@ public class MVStoreJournal extends AbstractService implements Journal, JournalM
     private TransactionMap<UUID, ByteBuffer> eventPayloads;
     private TransactionMap<byte[], Boolean> hashEvents;
     private TransactionMap<UUID, byte[]> eventHashes;
+    private TransactionMap<String, long[]> versions;
+    // layout hash to the number of entities of that layout
+    private TransactionMap<String, Long> counts;
+    // counts are updated and transactions are committed under this lock, so that concurrent
+    // transactions never hold uncommitted counts of the same layout
+    private final Object countsLock = new Object();
+    // held from the first expected version check in a transaction until it is committed or
+    // rolled back, so that no other transaction can check or change versions in between
+    private final ReentrantLock versionsLock = new ReentrantLock();
+    // timestamp and UUID of every entity, in their global order (see Journal.Position)
+    private TransactionMap<byte[], Boolean> timeline;
+    // layout hash, timestamp and UUID of every entity
+    private TransactionMap<byte[], Boolean> hashTimeline;
+
+    private static final byte[] NO_PREFIX = new byte[0];
 
     private MVMap<byte[], byte[]> layouts;
     private TransactionStore transactionStore;
@@ -110,6 +126,13 @@ public class MVStoreJournal extends AbstractService implements Journal, JournalM
         repository.getCommands().forEach(new EntityLayoutExtractor());
         repository.getEvents().forEach(new EntityLayoutExtractor());
 
+        MVMap<String, Object> info = store.openMap("info");
+        if (!info.containsKey("timeline")) {
+            initializeTimeline();
+            info.put("timeline", 1);
+            store.commit();
+        }
+
         notifyStarted();
     }
 
@@ -206,8 +229,82 @@ public class MVStoreJournal extends AbstractService implements Journal, JournalM
         eventPayloads = readTx.openMap("eventPayloads", new ObjectDataType(), new ByteBufferDataType());
         eventHashes = readTx.openMap("eventHashes");
         hashEvents = readTx.openMap("hashEvents");
+        versions = readTx.openMap("versions");
+        counts = readTx.openMap("counts");
+        timeline = readTx.openMap("timeline");
+        hashTimeline = readTx.openMap("hashTimeline");
 
         layouts = store.openMap("layouts");
+
+        if (!info.containsKey("counts")) {
+            initializeCounts();
+            info.put("counts", 1);
+            store.commit();
+        }
+    }
+
+    /**
+     * Counts entities of every layout in a store that has been created before counts were kept
+     */
+    private void initializeCounts() {
+        Map<String, Long> layoutCounts = new HashMap<>();
+        for (TransactionMap<byte[], Boolean> map : Arrays.asList(hashCommands, hashEvents)) {
+            Iterator<byte[]> iterator = map.keyIterator(null);
+            while (iterator.hasNext()) {
+                String hash = BaseEncoding.base16().encode(Arrays.copyOf(iterator.next(), 20));
+                layoutCounts.merge(hash, 1L, Long::sum);
+            }
+        }
+        TransactionStore.Transaction tx = transactionStore.begin();
+        TransactionMap<String, Long> txCounts = tx.openMap("counts");
+        txCounts.clear();
+        layoutCounts.forEach(txCounts::put);
+        tx.commit();
+    }
+
+    /**
+     * Adds entities of a store that has been created before the timeline was kept to the timeline.
+     * Layouts of the entities should be known by then, entities of unrecognized layouts are skipped.
+     */
+    void initializeTimeline() {
+        TransactionStore.Transaction tx = transactionStore.begin();
+        TransactionMap<byte[], Boolean> txTimeline = tx.openMap("timeline");
+        TransactionMap<byte[], Boolean> txHashTimeline = tx.openMap("hashTimeline");
+        for (TransactionMap<UUID, byte[]> hashes : Arrays.asList(commandHashes, eventHashes)) {
+            Iterator<UUID> iterator = hashes.keyIterator(null);
+            while (iterator.hasNext()) {
+                UUID uuid = iterator.next();
+                byte[] hash = hashes.get(uuid);
+                if (layoutsByHash.containsKey(BaseEncoding.base16().encode(hash))) {
+                    Entity entity = read(uuid);
+                    if (entity != null) {
+                        long timestamp = entity.timestamp().timestamp();
+                        txTimeline.put(timelineKey(NO_PREFIX, timestamp, uuid), true);
+                        txHashTimeline.put(timelineKey(hash, timestamp, uuid), true);
+                    }
+                }
+            }
+        }
+        tx.commit();
+    }
+
+    /**
+     * @return prefix, followed by the timestamp and the UUID, so that keys are ordered as positions are
+     */
+    private static byte[] timelineKey(byte[] prefix, long timestamp, UUID uuid) {
+        ByteBuffer buffer = ByteBuffer.allocate(prefix.length + 24);
+        buffer.put(prefix);
+        buffer.putLong(timestamp);
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        return buffer.array();
+    }
+
+    private static byte[] timelineKey(byte[] prefix, long timestamp) {
+        ByteBuffer buffer = ByteBuffer.allocate(prefix.length + 8);
+        buffer.put(prefix);
+        buffer.putLong(timestamp);
+        return buffer.array();
     }
 
     @Override
@@ -225,100 +322,212 @@ public class MVStoreJournal extends AbstractService implements Journal, JournalM
         this.repository = repository;
     }
 
-    @Override @SuppressWarnings("unchecked")
+    @Override
     public long journal(Command<?, ?> command, Journal.Listener listener, LockProvider lockProvider) throws Exception {
-        return journal(command, listener, lockProvider, null);
+        return new BatchEntry(command, listener, lockProvider).journal(this);
     }
 
-    private long journal(Command<?, ?> command, Journal.Listener listener, LockProvider lockProvider, Stream<? extends
-            Event> events)
-            throws Exception {
+    @Override
+    public void journal(List<? extends BatchEntry> batch) {
         TransactionStore.Transaction tx = transactionStore.begin();
+        List<BatchEntry> committed = new ArrayList<>();
+        // number of entities journalled, by layout hash
+        Map<String, Long> batchCounts = new HashMap<>();
         try {
-            Layout commandLayout = layoutsByClass.get(command.getClass().getName());
-
-            ByteBuffer hashBuffer = ByteBuffer.allocate(16 + 20); // based on SHA-1
-            hashBuffer.put(commandLayout.getHash());
-            hashBuffer.putLong(command.uuid().getMostSignificantBits());
-            hashBuffer.putLong(command.uuid().getLeastSignificantBits());
-
-            TransactionMap<UUID, ByteBuffer> txCommandPayloads = tx.openMap("commandPayloads", new ObjectDataType(),
-                                                                            new ByteBufferDataType());
-            TransactionMap<byte[], Boolean> txHashCommands = tx.openMap("hashCommands");
-            TransactionMap<UUID, byte[]> txCommandHashes = tx.openMap("commandHashes");
-
-            Stream<? extends Event> actualEvents;
-
-            if (events == null) {
-                EventStream<?> eventStream = command.events(repository, lockProvider);
-                listener.onCommandStateReceived(eventStream.getState());
-                actualEvents = eventStream.getStream();
-            } else {
-                actualEvents = events;
+            for (BatchEntry entry : batch) {
+                Command<?, ?> command = entry.getCommand();
+                Journal.Listener listener = entry.getListener();
+                long savepoint = tx.setSavepoint();
+                Map<String, Long> entryCounts = new HashMap<>();
+                try {
+                    entry.setCount(journal(tx, command, listener, entry, null, entryCounts));
+                    committed.add(entry);
+                } catch (BatchSplitException e) {
+                    tx.rollbackToSavepoint(savepoint);
+                    break;
+                } catch (Exception e) {
+                    tx.rollbackToSavepoint(savepoint);
+                    listener.onAbort(e);
+                    entry.setException(e);
+                    entryCounts.clear();
+                    try {
+                        entry.setCount(journal(tx, command, listener, entry,
+                                               EventStream.of(new CommandTerminatedExceptionally(command.uuid(), e)),
+                                               entryCounts));
+                        committed.add(entry);
+                    } catch (Exception e1) {
+                        tx.rollbackToSavepoint(savepoint);
+                        listener.onAbort(e1);
+                        entry.setException(e1);
+                        entryCounts.clear();
+                    }
+                }
+                entryCounts.forEach((hash, count) -> batchCounts.merge(hash, count, Long::sum));
+                entry.setJournalled(true);
             }
-
-            EventConsumer eventConsumer = new EventConsumer(tx, command, listener);
-            long count = actualEvents.peek(new Consumer<Event>() {
-                @Override public void accept(Event event) {
-                    eventConsumer.accept(event);
-                    eventConsumer.accept(EventCausalityEstablished.builder()
-                                                                  .event(event.uuid())
-                                                                  .command(command.uuid())
-                                                                  .build());
+            synchronized (countsLock) {
+                TransactionMap<String, Long> txCounts = tx.openMap("counts");
+                for (Map.Entry<String, Long> count : batchCounts.entrySet()) {
+                    Long current = txCounts.get(count.getKey());
+                    txCounts.put(count.getKey(), (current == null ? 0 : current) + count.getValue());
                 }
-            }).count();
+                tx.prepare();
+                tx.commit();
+            }
+        } catch (Exception e) {
+            synchronized (countsLock) {
+                tx.rollback();
+            }
+            for (BatchEntry entry : committed) {
+                entry.getListener().onAbort(e);
+                entry.setException(e);
+            }
+            return;
+        } finally {
+            if (versionsLock.isHeldByCurrentThread()) {
+                versionsLock.unlock();
+            }
+        }
+        committed.forEach(entry -> entry.getListener().onCommit());
+    }
 
-            ByteBuffer buffer = serialization.getSerializer(command.getClass()).serialize(command);
-            buffer.rewind();
-            txCommandPayloads.tryPut(command.uuid(), buffer);
-            txHashCommands.tryPut(hashBuffer.array(), true);
-            txCommandHashes.tryPut(command.uuid(), commandLayout.getHash());
+    private long journal(TransactionStore.Transaction tx, Command<?, ?> command, Journal.Listener listener,
+                         BatchEntry entry, EventStream<?> events, Map<String, Long> counts) throws Exception {
+        Layout commandLayout = layoutsByClass.get(command.getClass().getName());
+
+        ByteBuffer hashBuffer = ByteBuffer.allocate(16 + 20); // based on SHA-1
+        hashBuffer.put(commandLayout.getHash());
+        hashBuffer.putLong(command.uuid().getMostSignificantBits());
+        hashBuffer.putLong(command.uuid().getLeastSignificantBits());
+
+        TransactionMap<UUID, ByteBuffer> txCommandPayloads = tx.openMap("commandPayloads", new ObjectDataType(),
+                                                                        new ByteBufferDataType());
+        TransactionMap<byte[], Boolean> txHashCommands = tx.openMap("hashCommands");
+        TransactionMap<UUID, byte[]> txCommandHashes = tx.openMap("commandHashes");
+        TransactionMap<String, long[]> txVersions = tx.openMap("versions");
+        TransactionMap<byte[], Boolean> txTimeline = tx.openMap("timeline");
+        TransactionMap<byte[], Boolean> txHashTimeline = tx.openMap("hashTimeline");
+
+        EventStream<?> actualEvents;
+        Set<Object> keys = Collections.emptySet();
+
+        if (events == null) {
+            EventStream<?> eventStream = entry.events(repository);
+            if (!eventStream.getExpectedVersions().isEmpty() && !versionsLock.isHeldByCurrentThread()) {
+                versionsLock.lock();
+            }
+            Object conflict;
+            while ((conflict = conflict(eventStream, txVersions)) != null) {
+                eventStream = entry.retry(repository, conflict);
+            }
+            keys = eventStream.getExpectedVersions().keySet();
+            listener.onCommandStateReceived(eventStream.getState());
+            actualEvents = eventStream;
+        } else {
+            actualEvents = events;
+        }
 
-            tx.prepare();
-            tx.commit();
+        EventConsumer eventConsumer = new EventConsumer(tx, command, listener, counts);
+        long count = actualEvents.drainTo(event -> {
+            eventConsumer.accept(event);
+            eventConsumer.accept(EventCausalityEstablished.builder()
+                                                          .event(event.uuid())
+                                                          .command(command.uuid())
+                                                          .build());
+        });
 
-            listener.onCommit();
-            
-            return count;
-        } catch (Exception e) {
-            tx.rollback();
-            listener.onAbort(e);
+        ByteBuffer buffer = serialization.getSerializer(command.getClass()).serialize(command);
+        buffer.rewind();
+        if (txCommandHashes.get(command.uuid()) == null) {
+            counts.merge(BaseEncoding.base16().encode(commandLayout.getHash()), 1L, Long::sum);
+        }
+        txCommandPayloads.tryPut(command.uuid(), buffer);
+        txHashCommands.tryPut(hashBuffer.array(), true);
+        txCommandHashes.tryPut(command.uuid(), commandLayout.getHash());
+        long commandTimestamp = command.timestamp().timestamp();
+        txTimeline.tryPut(timelineKey(NO_PREFIX, commandTimestamp, command.uuid()), true);
+        txHashTimeline.tryPut(timelineKey(commandLayout.getHash(), commandTimestamp, command.uuid()), true);
+
+        if (count > 0) {
+            HybridTimestamp timestamp = command.timestamp();
+            for (Object key : keys) {
+                txVersions.put(key.toString(), new long[]{timestamp.getLogicalTime(), timestamp.getLogicalCounter()});
+            }
+        }
 
+        return count;
+    }
 
-            // if we are having an exception NOT when journalling CommandTerminatedExceptionally
-            if (events == null) {
-                journal(command, listener, lockProvider,
-                        Stream.of((Event) new CommandTerminatedExceptionally(command.uuid(), e)));
+    /**
+     * @return the first key which version doesn't match the expected one, or <code>null</code> if all match
+     */
+    private Object conflict(EventStream<?> eventStream, TransactionMap<String, long[]> txVersions) {
+        for (Map.Entry<Object, Optional<HybridTimestamp>> expected : eventStream.getExpectedVersions().entrySet()) {
+            String key = expected.getKey().toString();
+            long[] version = txVersions.get(key);
+            if (!Journal.isExpectedVersion(expected.getValue(), version(version))) {
+                if (!Arrays.equals(version, versions.get(key))) {
+                    // the key was changed earlier in the same batch and the command
+                    // couldn't have seen this version, journal it in the next batch
+                    throw new BatchSplitException();
+                }
+                return expected.getKey();
             }
-
-            throw e;
         }
+        return null;
+    }
 
+    private static HybridTimestamp version(long[] version) {
+        return version == null ? null : new HybridTimestamp(version[0], version[1]);
+    }
+
+    @Override
+    public Optional<HybridTimestamp> getVersion(Object key) {
+        return Optional.ofNullable(version(versions.get(key.toString())));
+    }
+
+    @Override
+    public boolean contains(UUID uuid) {
+        return commandPayloads.containsKey(uuid) || eventPayloads.containsKey(uuid);
     }
 
     @Override
     @SneakyThrows @SuppressWarnings("unchecked")
     public <T extends Entity> Optional<T> get(UUID uuid) {
-        if (commandPayloads.containsKey(uuid)) {
-            ByteBuffer payload = commandPayloads.get(uuid);
-            payload.rewind();
-            String encodedHash = BaseEncoding.base16().encode(commandHashes.get(uuid));
-            Layout<Command<?, ?>> layout = layoutsByHash.get(encodedHash);
-            Command command = (Command) serialization.getDeserializer(layout.getLayoutClass()).deserialize(payload);
-            command.uuid(uuid);
-            return Optional.of((T) command);
-        }
-        if (eventPayloads.containsKey(uuid)) {
-            ByteBuffer payload = eventPayloads.get(uuid);
-            payload.rewind();
-            String encodedHash = BaseEncoding.base16().encode(eventHashes.get(uuid));
-            Layout<Event> layout = layoutsByHash.get(encodedHash);
-            Event event = (Event) serialization.getDeserializer(layout.getLayoutClass()).deserialize(payload);
-            event.uuid(uuid);
-            return Optional.of((T) event);
+        return Optional.ofNullable(read(uuid));
+    }
+
+    @Override
+    public <T extends Entity> Map<UUID, T> getAll(Collection<UUID> uuids) {
+        Map<UUID, T> entities = new HashMap<>();
+        // looking entities up in key order keeps consecutive lookups within the same B-tree pages
+        for (UUID uuid : new TreeSet<>(uuids)) {
+            T entity = read(uuid);
+            if (entity != null) {
+                entities.put(uuid, entity);
+            }
         }
-        return Optional.empty();
+        return entities;
+    }
 
+    private <T extends Entity> T read(UUID uuid) {
+        byte[] hash;
+        ByteBuffer payload = commandPayloads.get(uuid);
+        if (payload != null) {
+            hash = commandHashes.get(uuid);
+        } else {
+            payload = eventPayloads.get(uuid);
+            if (payload == null) {
+                return null;
+            }
+            hash = eventHashes.get(uuid);
+        }
+        payload = payload.duplicate();
+        payload.rewind();
+        Layout<T> layout = layoutsByHash.get(BaseEncoding.base16().encode(hash));
+        T entity = (T) serialization.getDeserializer(layout.getLayoutClass()).deserialize(payload);
+        entity.uuid(uuid);
+        return entity;
     }
 
     @Override
@@ -327,7 +536,7 @@ public class MVStoreJournal extends AbstractService implements Journal, JournalM
         byte[] hash = layout.getHash();
         Iterator<Map.Entry<byte[], Boolean>> iterator = hashCommands.entryIterator(hashCommands.higherKey(hash));
         return new EntityHandleIterator<>(iterator, bytes -> Bytes.indexOf(bytes, hash) == 0,
-                                          new EntityFunction<>(hash));
+                                          new EntityFunction<>(hash.length));
     }
 
     @Override
@@ -336,7 +545,34 @@ public class MVStoreJournal extends AbstractService implements Journal, JournalM
         byte[] hash = layout.getHash();
         Iterator<Map.Entry<byte[], Boolean>> iterator = hashEvents.entryIterator(hashEvents.higherKey(hash));
         return new EntityHandleIterator<>(iterator, bytes -> Bytes.indexOf(bytes, hash) == 0,
-                                          new EntityFunction<>(hash));
+                                          new EntityFunction<>(hash.length));
+    }
+
+    @Override
+    public <T extends Event> CloseableIterator<EntityHandle<T>> eventIterator(Class<T> klass, HybridTimestamp from,
+                                                                               HybridTimestamp to) {
+        Layout layout = layoutsByClass.get(klass.getName());
+        byte[] hash = layout.getHash();
+        // any key of an event timestamped at or after from is higher than the hash followed by from
+        byte[] start = hashTimeline.higherKey(from == null ? hash : timelineKey(hash, from.timestamp()));
+        if (start == null) {
+            return new CloseableWrappingIterator<>(Collections.emptyIterator());
+        }
+        byte[] end = to == null ? null : timelineKey(hash, to.timestamp());
+        Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+        Iterator<Map.Entry<byte[], Boolean>> iterator = hashTimeline.entryIterator(start);
+        return new EntityHandleIterator<>(iterator, bytes -> Bytes.indexOf(bytes, hash) == 0 &&
+                                                             (end == null || comparator.compare(bytes, end) < 0),
+                                          new EntityFunction<>(hash.length + 8));
+    }
+
+    @Override
+    public CloseableIterator<EntityHandle<Entity>> iterator(Position from) {
+        byte[] start = timeline.higherKey(timelineKey(NO_PREFIX, from.getTimestamp(), from.getUuid()));
+        if (start == null) {
+            return new CloseableWrappingIterator<>(Collections.emptyIterator());
+        }
+        return new EntityHandleIterator<>(timeline.entryIterator(start), bytes -> true, new EntityFunction<>(8));
     }
 
     @Override
@@ -346,29 +582,26 @@ public class MVStoreJournal extends AbstractService implements Journal, JournalM
         eventPayloads.clear();
         eventHashes.clear();
         hashEvents.clear();
+        versions.clear();
+        counts.clear();
+        timeline.clear();
+        hashTimeline.clear();
         layouts.clear();
     }
 
-    @Override @SuppressWarnings("unchecked")
+    @Override
     public <T extends Entity> long size(Class<T> klass) {
-        if (Event.class.isAssignableFrom(klass)) {
-            return Iterators.size(eventIterator((Class<Event>) klass));
+        if (!Event.class.isAssignableFrom(klass) && !Command.class.isAssignableFrom(klass)) {
+            throw new IllegalArgumentException();
         }
-        if (Command.class.isAssignableFrom(klass)) {
-            return Iterators.size(commandIterator((Class<Command<?, ?>>) klass));
-        }
-        throw new IllegalArgumentException();
+        Layout layout = layoutsByClass.get(klass.getName());
+        Long count = counts.get(BaseEncoding.base16().encode(layout.getHash()));
+        return count == null ? 0 : count;
     }
 
     @Override
     public <T extends Entity> boolean isEmpty(Class<T> klass) {
-        if (Event.class.isAssignableFrom(klass)) {
-            return !eventIterator((Class<Event>) klass).hasNext();
-        }
-        if (Command.class.isAssignableFrom(klass)) {
-            return !commandIterator((Class<Command<?, ?>>) klass).hasNext();
-        }
-        throw new IllegalArgumentException();
+        return size(klass) == 0;
     }
 
     @Accessors(fluent = true)
@@ -471,37 +704,45 @@ public class MVStoreJournal extends AbstractService implements Journal, JournalM
     }
 
     private class EntityFunction<T extends Entity, V> implements BiFunction<byte[], V, EntityHandle<T>> {
-        private final byte[] hash;
+        // offset of the UUID in the key
+        private final int offset;
 
-        public EntityFunction(byte[] hash) {
-            this.hash = hash;
+        public EntityFunction(int offset) {
+            this.offset = offset;
         }
 
         @Override
         public EntityHandle<T> apply(byte[] bytes, V value) {
             ByteBuffer buffer = ByteBuffer.wrap(bytes);
-            UUID uuid = new UUID(buffer.getLong(hash.length), buffer.getLong(hash.length + 8));
+            UUID uuid = new UUID(buffer.getLong(offset), buffer.getLong(offset + 8));
             return new JournalEntityHandle<>(MVStoreJournal.this, uuid);
         }
     }
 
-    private class EventConsumer implements Consumer<Event> {
-        private final HybridTimestamp ts;
+    private class EventConsumer implements EventSink {
+        private final HybridTimestamp.Reservation ts;
         private final TransactionStore.Transaction tx;
         private final Command<?, ?> command;
         private final Journal.Listener listener;
         private final TransactionMap<UUID, byte[]> txEventHashes;
         private final TransactionMap<byte[], Boolean> txHashEvents;
         private final TransactionMap<UUID, ByteBuffer> txEventPayloads;
+        private final Map<String, Long> counts;
+        private final TransactionMap<byte[], Boolean> txTimeline;
+        private final TransactionMap<byte[], Boolean> txHashTimeline;
 
-        public EventConsumer(TransactionStore.Transaction tx, Command<?, ?> command, Journal.Listener listener) {
+        public EventConsumer(TransactionStore.Transaction tx, Command<?, ?> command, Journal.Listener listener,
+                             Map<String, Long> counts) {
             this.tx = tx;
             this.command = command;
             this.listener = listener;
-            this.ts = command.timestamp().clone();
+            this.counts = counts;
+            this.ts = command.timestamp().clone().reservation();
             txEventPayloads = tx.openMap("eventPayloads", new ObjectDataType(), new ByteBufferDataType());
             txHashEvents = tx.openMap("hashEvents");
             txEventHashes = tx.openMap("eventHashes");
+            txTimeline = tx.openMap("timeline");
+            txHashTimeline = tx.openMap("hashTimeline");
         }
 
         @Override
@@ -509,10 +750,9 @@ public class MVStoreJournal extends AbstractService implements Journal, JournalM
         public void accept(Event event) {
 
             if (event.timestamp() == null) {
-                ts.update();
-                event.timestamp(ts.clone());
+                event.timestamp(ts.next());
             } else {
-                ts.update(event.timestamp().clone());
+                ts.update(event.timestamp());
             }
 
             Layout layout = layoutsByClass.get(event.getClass().getName());
@@ -524,6 +764,9 @@ public class MVStoreJournal extends AbstractService implements Journal, JournalM
             serializer.serialize(event, payloadBuffer);
             payloadBuffer.rewind();
 
+            if (txEventHashes.get(event.uuid()) == null) {
+                counts.merge(BaseEncoding.base16().encode(layout.getHash()), 1L, Long::sum);
+            }
             txEventPayloads.tryPut(event.uuid(), payloadBuffer);
 
             ByteBuffer hashBuffer = ByteBuffer.allocate(20 + 16); // Based on SHA-1
@@ -536,6 +779,9 @@ public class MVStoreJournal extends AbstractService implements Journal, JournalM
 
             txHashEvents.tryPut(hashBuffer.array(), true);
             txEventHashes.tryPut(event.uuid(), layout.getHash());
+            long timestamp = event.timestamp().timestamp();
+            txTimeline.tryPut(timelineKey(NO_PREFIX, timestamp, event.uuid()), true);
+            txHashTimeline.tryPut(timelineKey(layout.getHash(), timestamp, event.uuid()), true);
 
             listener.onEvent(event);
         }
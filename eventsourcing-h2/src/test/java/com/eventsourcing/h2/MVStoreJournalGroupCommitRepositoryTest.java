@@ -0,0 +1,33 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.h2;
+
+import com.eventsourcing.RepositoryTest;
+import com.eventsourcing.repository.CommandConsumerConfiguration;
+import com.eventsourcing.repository.Journal;
+import com.eventsourcing.repository.RepositoryImpl;
+import org.h2.mvstore.MVStore;
+import org.testng.annotations.Test;
+
+@Test
+public class MVStoreJournalGroupCommitRepositoryTest extends RepositoryTest<RepositoryImpl> {
+    public MVStoreJournalGroupCommitRepositoryTest() {
+        super(createRepository());
+    }
+
+    private static RepositoryImpl createRepository() {
+        RepositoryImpl repository = new RepositoryImpl();
+        repository.setCommandConsumerConfiguration(CommandConsumerConfiguration.builder().groupCommit(true).build());
+        return repository;
+    }
+
+    @Override
+    protected Journal createJournal() {
+        return new MVStoreJournal(MVStore.open(null));
+    }
+}
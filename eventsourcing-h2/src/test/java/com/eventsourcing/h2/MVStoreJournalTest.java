@@ -7,11 +7,31 @@
  */
 package com.eventsourcing.h2;
 
+import com.eventsourcing.EventStream;
 import com.eventsourcing.JournalTest;
+import com.eventsourcing.Repository;
+import com.eventsourcing.StandardCommand;
+import com.eventsourcing.hlc.HybridTimestamp;
+import com.eventsourcing.repository.Journal;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.h2.mvstore.MVStore;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
 @Slf4j
 @Test
 public class MVStoreJournalTest extends JournalTest<MVStoreJournal> {
@@ -23,4 +43,60 @@ public class MVStoreJournalTest extends JournalTest<MVStoreJournal> {
         store = journal.getStore();
     }
 
-}
\ No newline at end of file
+    public static class UnversionedKeyCommand extends StandardCommand<Void, Void> {
+        static CountDownLatch latch;
+
+        @Getter
+        private final String key;
+
+        @Builder
+        public UnversionedKeyCommand(HybridTimestamp timestamp, String key) {
+            super(timestamp);
+            this.key = key == null ? "" : key;
+        }
+
+        @Override
+        public EventStream<Void> events(Repository repository) throws Exception {
+            // let both commands generate their events before either of them is journalled
+            latch.countDown();
+            latch.await();
+            return EventStream.<Void>of(TestEvent.builder().build()).expectVersion(key, Optional.empty());
+        }
+    }
+
+    @Test(timeOut = 10000) @SneakyThrows
+    public void concurrentUnversionedKeyExpectation() {
+        UnversionedKeyCommand.latch = new CountDownLatch(2);
+        String key = UUID.randomUUID().toString();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Exception>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < 2; i++) {
+                HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+                timestamp.update();
+                UnversionedKeyCommand command = UnversionedKeyCommand.builder().key(key).timestamp(timestamp).build();
+                results.add(executor.submit(() -> {
+                    try {
+                        journal.journal(command);
+                        return null;
+                    } catch (Exception e) {
+                        return e;
+                    }
+                }));
+            }
+            // only one of the commands can have seen the key unversioned
+            List<Exception> exceptions = new ArrayList<>();
+            for (Future<Exception> result : results) {
+                if (result.get() != null) {
+                    exceptions.add(result.get());
+                }
+            }
+            assertEquals(exceptions.size(), 1);
+            assertTrue(exceptions.get(0) instanceof Journal.ConcurrencyConflictException);
+            assertTrue(journal.getVersion(key).isPresent());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -7,9 +7,15 @@
  */
 package com.eventsourcing.h2;
 
+import com.eventsourcing.Entity;
+import com.eventsourcing.EntityHandle;
+import com.eventsourcing.JournalTest;
 import com.eventsourcing.PersistentJournalTest;
 import com.eventsourcing.StandardEvent;
 import com.eventsourcing.hlc.HybridTimestamp;
+import com.eventsourcing.repository.Journal;
+import com.google.common.collect.Iterators;
+import com.googlecode.cqengine.index.support.CloseableIterator;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.SneakyThrows;
@@ -85,6 +91,43 @@ public class PersistentMVStoreJournalTest extends PersistentJournalTest<MVStoreJ
         }
     }
 
+    @Test
+    @SneakyThrows
+    public void countsInitialization() {
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        journal.journal(TestCommand.builder().events(true).build().timestamp(timestamp));
+        // pretend the store has been created before counts were kept
+        journal.readTx.openMap("counts").clear();
+        journal.getStore().openMap("info").remove("counts");
+        reopen();
+        assertEquals(journal.size(TestCommand.class), 1);
+        assertEquals(journal.size(JournalTest.TestEvent.class), 1);
+    }
+
+    @Test
+    @SneakyThrows
+    public void timelineInitialization() {
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        TestCommand command = TestCommand.builder().events(true).build();
+        journal.journal(command.timestamp(timestamp));
+        // pretend the store has been created before the timeline was kept
+        journal.readTx.openMap("timeline").clear();
+        journal.readTx.openMap("hashTimeline").clear();
+        journal.getStore().openMap("info").remove("timeline");
+        reopen();
+        assertFalse(journal.iterator(Journal.Position.START).hasNext());
+        journal.initializeTimeline();
+        try (CloseableIterator<EntityHandle<Entity>> iterator = journal.iterator(Journal.Position.START)) {
+            assertEquals(Iterators.size(iterator), 3);
+        }
+        try (CloseableIterator<EntityHandle<JournalTest.TestEvent>> iterator =
+                     journal.eventIterator(JournalTest.TestEvent.class, timestamp, null)) {
+            assertEquals(Iterators.size(iterator), 1);
+        }
+    }
+
     @Test
     @SneakyThrows
     public void unrecognizedEntities() {
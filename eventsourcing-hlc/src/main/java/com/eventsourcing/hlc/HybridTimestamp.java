@@ -9,22 +9,31 @@ package com.eventsourcing.hlc;
 
 import com.eventsourcing.layout.LayoutConstructor;
 import com.eventsourcing.layout.LayoutName;
-import lombok.Getter;
 import org.apache.commons.net.ntp.TimeStamp;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 /**
  * HybridTimestamp implements <a href="http://www.cse.buffalo.edu/tech-reports/2014-04.pdf">Hybrid Logical Clock</a>,
  * currently heavily inspired by a corresponding <a href="https://github.com/tschottdorf/hlc-rs">Rust library</a>.
+ * <p>
+ * The state of the clock is a single 64-bit timestamp (see {@link #timestamp()}): the upper 48 bits
+ * of the NTP logical time and a 16-bit logical counter. Should the counter overflow, it carries over
+ * into the logical time, so timestamps are still strictly increasing. The state is updated with
+ * a compare-and-swap, so the same clock can be safely updated from multiple threads.
  */
 @LayoutName("rfc.eventsourcing.com/spec:6/HLC/#Timestamp")
 public class HybridTimestamp implements Comparable<HybridTimestamp> {
 
+    static final long COUNTER_MASK = 0xFFFFL;
+    static final long TIME_MASK = ~COUNTER_MASK;
+
+    private static final AtomicLongFieldUpdater<HybridTimestamp> STATE =
+            AtomicLongFieldUpdater.newUpdater(HybridTimestamp.class, "state");
+
     private final PhysicalTimeProvider physicalTimeProvider;
 
-    @Getter
-    long logicalTime;
-    @Getter
-    long logicalCounter;
+    private volatile long state;
 
     public HybridTimestamp() {
         this(null, 0, 0);
@@ -34,21 +43,67 @@ public class HybridTimestamp implements Comparable<HybridTimestamp> {
         this(physicalTimeProvider, 0, 0);
     }
 
+    /**
+     * @param physicalTimeProvider
+     * @param timestamp 64-bit timestamp (see {@link #timestamp()})
+     */
     public HybridTimestamp(PhysicalTimeProvider physicalTimeProvider, long timestamp) {
-        this(physicalTimeProvider, timestamp >> 16, timestamp << 48 >> 48);
+        this.physicalTimeProvider = physicalTimeProvider;
+        this.state = timestamp;
     }
 
+    /**
+     * @param physicalTimeProvider
+     * @param logicalTime NTP logical time (see {@link #timestamp(long, long)})
+     * @param logicalCounter logical counter (see {@link #timestamp(long, long)})
+     * @throws IllegalArgumentException if the logical counter is negative
+     */
     public HybridTimestamp(PhysicalTimeProvider physicalTimeProvider, long logicalTime, long logicalCounter) {
-        this.physicalTimeProvider = physicalTimeProvider;
-        this.logicalTime = logicalTime;
-        this.logicalCounter = logicalCounter;
+        this(physicalTimeProvider, timestamp(logicalTime, logicalCounter));
     }
 
+    /**
+     * @param logicalTime NTP logical time (see {@link #timestamp(long, long)})
+     * @param logicalCounter logical counter (see {@link #timestamp(long, long)})
+     * @throws IllegalArgumentException if the logical counter is negative
+     */
     @LayoutConstructor
     public HybridTimestamp(long logicalTime, long logicalCounter) {
-        physicalTimeProvider = null;
-        this.logicalTime = logicalTime;
-        this.logicalCounter = logicalCounter;
+        this(null, logicalTime, logicalCounter);
+    }
+
+    /**
+     * Packs a logical time and counter into a 64-bit timestamp (see {@link #timestamp()}).
+     * <p>
+     * Only the upper 48 bits of the logical time are kept (the lower 16 bits of the NTP fraction, about 15
+     * microseconds, are dropped). A counter that doesn't fit into 16 bits carries over into the logical time,
+     * just like it does when the clock's counter overflows, so timestamps with the same logical time are
+     * still ordered by their counters.
+     *
+     * @param logicalTime NTP logical time
+     * @param logicalCounter logical counter
+     * @return 64-bit timestamp
+     * @throws IllegalArgumentException if the logical counter is negative
+     */
+    public static long timestamp(long logicalTime, long logicalCounter) {
+        if (logicalCounter < 0) {
+            throw new IllegalArgumentException("logicalCounter < 0");
+        }
+        return (logicalTime & TIME_MASK) + logicalCounter;
+    }
+
+    /**
+     * @return NTP logical time (with the lower 16 bits of the fraction cleared)
+     */
+    public long getLogicalTime() {
+        return state & TIME_MASK;
+    }
+
+    /**
+     * @return logical counter
+     */
+    public long getLogicalCounter() {
+        return state & COUNTER_MASK;
     }
 
     /**
@@ -57,42 +112,32 @@ public class HybridTimestamp implements Comparable<HybridTimestamp> {
      * @return a new object instance
      */
     public HybridTimestamp clone() {
-        return new HybridTimestamp(physicalTimeProvider, logicalTime, logicalCounter);
+        return new HybridTimestamp(physicalTimeProvider, state);
     }
 
     @Override
     public int compareTo(HybridTimestamp o) {
-        int ntpComparison = compare(logicalTime, o.logicalTime);
-        if (ntpComparison == 0) {
-            return new Long(logicalCounter).compareTo(o.logicalCounter);
-        } else {
-            return ntpComparison;
-        }
+        return compare(state, o.state);
     }
 
     /**
-     * Compares two NTP timestamps (non-numerically)
+     * Compares two NTP timestamps (non-numerically: both seconds and fraction are unsigned)
      *
      * @param time1
      * @param time2
      * @return 0 if equal, less than 0 if time1 &lt; time2, more than 0 if time1 &gt; time2
      */
     public static int compare(long time1, long time2) {
-        TimeStamp t1 = new TimeStamp(time1);
-        TimeStamp t2 = new TimeStamp(time2);
-        return compare(t1, t2);
+        return Long.compareUnsigned(time1, time2);
     }
 
     public static int compare(TimeStamp t1, TimeStamp t2) {
-        if (t1.getSeconds() == t2.getSeconds() && t1.getFraction() == t2.getFraction()) {
-            return 0;
-        }
-        if (t1.getSeconds() == t2.getSeconds()) {
-            return t1.getFraction() < t2.getFraction() ? -1 : 1;
-        }
-        return t1.getSeconds() < t2.getSeconds() ? -1 : 1;
+        return compare(t1.ntpValue(), t2.ntpValue());
     }
 
+    private static long max(long time1, long time2) {
+        return compare(time1, time2) >= 0 ? time1 : time2;
+    }
 
     /**
      * Updates timestamp for local or send events
@@ -100,14 +145,55 @@ public class HybridTimestamp implements Comparable<HybridTimestamp> {
      * @return updated timestamp
      */
     public long update() {
-        long physicalTime = physicalTimeProvider.getPhysicalTime();
-        if (compare(logicalTime, physicalTime) < 0) {
-            logicalTime = physicalTime;
-            logicalCounter = 0;
-        } else {
-            logicalCounter++;
+        long physicalTime = physicalTimeProvider.getPhysicalTime() & TIME_MASK;
+        long current, updated;
+        do {
+            current = state;
+            // physical time if it is ahead of the logical time, otherwise the next counter value
+            updated = max(physicalTime, current + 1);
+        } while (!STATE.compareAndSet(this, current, updated));
+        updated(physicalTime, updated);
+        return updated;
+    }
+
+    /**
+     * Updates timestamp for local or send events
+     *
+     * @return a new instance with the updated timestamp
+     */
+    public HybridTimestamp next() {
+        return new HybridTimestamp(physicalTimeProvider, update());
+    }
+
+    /**
+     * Reserves a range of consecutive timestamps for local or send events, reading the physical time
+     * only once (as opposed to calling {@link #update()} for every event). The timestamp is updated
+     * to the last timestamp of the range.
+     *
+     * @param count number of timestamps to reserve
+     * @return first 64-bit timestamp of the range, the rest of the range are the values following it
+     */
+    public long reserve(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count < 1");
         }
-        return timestamp();
+        long physicalTime = physicalTimeProvider.getPhysicalTime() & TIME_MASK;
+        long current, first;
+        do {
+            current = state;
+            first = max(physicalTime, current + 1);
+        } while (!STATE.compareAndSet(this, current, first + count - 1));
+        updated(physicalTime, first + count - 1);
+        return first;
+    }
+
+    /**
+     * Creates a reservation of timestamps from this timestamp (see {@link Reservation})
+     *
+     * @return a new reservation
+     */
+    public Reservation reservation() {
+        return new Reservation(this, Reservation.DEFAULT_SIZE);
     }
 
     /**
@@ -117,51 +203,118 @@ public class HybridTimestamp implements Comparable<HybridTimestamp> {
      * @return updated timestamp
      */
     public long update(HybridTimestamp ts) {
-        long timestamp = ts.timestamp();
-        return update(timestamp >> 16, timestamp << 48 >> 48);
+        return update0(ts.state);
     }
 
     /**
      * Updates timestamp for a received event
      *
-     * @param eventLogicalTime    Received event logical time
-     * @param eventLogicalCounter Received event logical counter
+     * @param eventLogicalTime    Received event logical time (see {@link #timestamp(long, long)})
+     * @param eventLogicalCounter Received event logical counter (see {@link #timestamp(long, long)})
      * @return updated timestamp
+     * @throws IllegalArgumentException if the logical counter is negative
      */
     public long update(long eventLogicalTime, long eventLogicalCounter) {
-        long physicalTime = physicalTimeProvider.getPhysicalTime();
-        if (compare(physicalTime, eventLogicalTime) > 0 &&
-                compare(physicalTime, logicalTime) > 0) {
-            logicalTime = physicalTime;
-            logicalCounter = 0;
-        } else if (compare(eventLogicalTime, logicalTime) > 0) {
-            logicalTime = eventLogicalTime;
-            logicalCounter++;
-        } else if (compare(logicalTime, eventLogicalTime) > 0) {
-            logicalCounter++;
-        } else {
-            if (eventLogicalCounter > logicalCounter) {
-                logicalCounter = eventLogicalCounter;
-            }
-            logicalCounter++;
-        }
-        return timestamp();
+        return update0(timestamp(eventLogicalTime, eventLogicalCounter));
+    }
+
+    private long update0(long event) {
+        long physicalTime = physicalTimeProvider.getPhysicalTime() & TIME_MASK;
+        received(physicalTime, event);
+        long current, updated;
+        do {
+            current = state;
+            // physical time if it is ahead of both logical times, otherwise the next counter value
+            // after the latest of them
+            updated = max(physicalTime, max(current, event) + 1);
+        } while (!STATE.compareAndSet(this, current, updated));
+        updated(physicalTime, updated);
+        return updated;
+    }
+
+    /**
+     * Called when a timestamp for a received event is about to be taken into account.
+     * Does nothing by default, can be overridden for instrumentation.
+     *
+     * @param physicalTime physical time read for the update (see {@link #getLogicalTime()})
+     * @param timestamp    received 64-bit timestamp
+     */
+    protected void received(long physicalTime, long timestamp) {
+    }
+
+    /**
+     * Called after the timestamp was updated (or a range of timestamps was reserved).
+     * Does nothing by default, can be overridden for instrumentation.
+     *
+     * @param physicalTime physical time read for the update (see {@link #getLogicalTime()})
+     * @param timestamp    updated 64-bit timestamp
+     */
+    protected void updated(long physicalTime, long timestamp) {
     }
 
     /**
      * @return 64-bit timestamp
      */
     public long timestamp() {
-        return (logicalTime >> 16 << 16) | (logicalCounter << 48 >> 48);
+        return state;
     }
 
 
+    /**
+     * Hands out timestamps for local or send events one by one, reserving them from
+     * a timestamp in ranges (see {@link #reserve(int)}), so that the physical time is only read
+     * once per range rather than once per timestamp. The timestamp it reserves from gets ahead
+     * of the timestamps handed out, so it is meant for short-lived timestamps, such as the one
+     * used to timestamp events of a single command.
+     * <p>
+     * Not thread-safe.
+     */
+    public static class Reservation {
+        static final int DEFAULT_SIZE = 1 << 16;
+
+        private final HybridTimestamp timestamp;
+        private final int size;
+        private long next;
+        private int remaining;
+
+        public Reservation(HybridTimestamp timestamp, int size) {
+            if (size < 1) {
+                throw new IllegalArgumentException("size < 1");
+            }
+            this.timestamp = timestamp;
+            this.size = size;
+        }
+
+        /**
+         * @return next reserved timestamp
+         */
+        public HybridTimestamp next() {
+            if (remaining == 0) {
+                next = timestamp.reserve(size);
+                remaining = size;
+            }
+            remaining--;
+            return new HybridTimestamp(timestamp.physicalTimeProvider, next++);
+        }
+
+        /**
+         * Updates the timestamp for a received event, discarding the rest of the reserved range
+         *
+         * @param ts received event's timestamp
+         */
+        public void update(HybridTimestamp ts) {
+            timestamp.update(ts);
+            remaining = 0;
+        }
+    }
+
     public String toString() {
-        String logical = TimeStamp.getNtpTime(logicalTime).toUTCString();
-        TimeStamp timeStamp = new TimeStamp(timestamp());
+        long timestamp = state;
+        String logical = TimeStamp.getNtpTime(timestamp & TIME_MASK).toUTCString();
+        TimeStamp timeStamp = new TimeStamp(timestamp);
         String ntpValue = timeStamp.toUTCString();
-        return "<[logical: " + logical + "@" + logicalCounter + "] NTP:" + ntpValue + "/" + timeStamp
-                .toString() + "/" + timestamp() + ">";
+        return "<[logical: " + logical + "@" + (timestamp & COUNTER_MASK) + "] NTP:" + ntpValue + "/" + timeStamp
+                .toString() + "/" + timestamp + ">";
     }
 
 }
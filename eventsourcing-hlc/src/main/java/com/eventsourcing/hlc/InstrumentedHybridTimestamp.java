@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.hlc;
+
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HybridTimestamp that keeps track of the health of the clock: how often it has to rely
+ * on the logical counter, and how far ahead of the physical time its logical time is (skew).
+ * The logical time gets ahead of the physical time when timestamps from the future are received
+ * (for example, from a node with a skewed clock), and stays ahead until the physical time catches up.
+ * <p>
+ * When the skew exceeds the threshold (1 second by default), a warning is logged (once, until
+ * the skew is back under the threshold).
+ * <p>
+ * Timestamps derived from it (see {@link #next()} and {@link #clone()}) are not instrumented.
+ */
+@Slf4j
+public class InstrumentedHybridTimestamp extends HybridTimestamp implements InstrumentedHybridTimestampMBean {
+
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder logicalUpdates = new LongAdder();
+    private final LongAccumulator maxLogicalCounter = new LongAccumulator(Math::max, 0);
+    private volatile long skew;
+    private final LongAccumulator maxSkew = new LongAccumulator(Math::max, 0);
+    private final LongAdder futureTimestamps = new LongAdder();
+    private final LongAdder skewAlarms = new LongAdder();
+    private final AtomicBoolean skewed = new AtomicBoolean();
+
+    @Setter @Accessors(fluent = true)
+    private long skewThreshold = 1;
+    @Setter @Accessors(fluent = true)
+    private TimeUnit skewThresholdUnit = TimeUnit.SECONDS;
+
+    public InstrumentedHybridTimestamp(PhysicalTimeProvider physicalTimeProvider) {
+        super(physicalTimeProvider);
+    }
+
+    @Override
+    protected void received(long physicalTime, long timestamp) {
+        if (compare(timestamp & TIME_MASK, physicalTime) > 0) {
+            futureTimestamps.increment();
+        }
+    }
+
+    @Override
+    protected void updated(long physicalTime, long timestamp) {
+        updates.increment();
+        if (timestamp != physicalTime) {
+            logicalUpdates.increment();
+        }
+        maxLogicalCounter.accumulate(timestamp & COUNTER_MASK);
+        long skew = SystemTimeProvider.ntpToMillis((timestamp & TIME_MASK) - physicalTime);
+        this.skew = skew;
+        maxSkew.accumulate(skew);
+        if (skew > skewThresholdUnit.toMillis(skewThreshold)) {
+            if (skewed.compareAndSet(false, true)) {
+                skewAlarms.increment();
+                log.warn("Logical time is {}ms ahead of the physical time", skew);
+            }
+        } else if (skewed.compareAndSet(true, false)) {
+            log.info("Logical time is back within {}ms of the physical time",
+                     skewThresholdUnit.toMillis(skewThreshold));
+        }
+    }
+
+    @Override
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    @Override
+    public long getLogicalUpdates() {
+        return logicalUpdates.sum();
+    }
+
+    @Override
+    public long getMaxLogicalCounter() {
+        return maxLogicalCounter.get();
+    }
+
+    @Override
+    public long getSkew() {
+        return skew;
+    }
+
+    @Override
+    public long getMaxSkew() {
+        return maxSkew.get();
+    }
+
+    @Override
+    public long getFutureTimestamps() {
+        return futureTimestamps.sum();
+    }
+
+    @Override
+    public long getSkewAlarms() {
+        return skewAlarms.sum();
+    }
+}
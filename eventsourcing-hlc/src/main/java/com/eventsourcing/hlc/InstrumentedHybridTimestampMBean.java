@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.hlc;
+
+public interface InstrumentedHybridTimestampMBean {
+    /**
+     * @return number of times the timestamp was updated
+     */
+    long getUpdates();
+
+    /**
+     * @return number of updates that had to rely on the logical counter, as the physical time
+     * wasn't ahead of the logical time
+     */
+    long getLogicalUpdates();
+
+    /**
+     * @return highest logical counter value reached
+     */
+    long getMaxLogicalCounter();
+
+    /**
+     * @return difference between the logical and the physical time as of the last update,
+     * in milliseconds
+     */
+    long getSkew();
+
+    /**
+     * @return highest difference between the logical and the physical time, in milliseconds
+     */
+    long getMaxSkew();
+
+    /**
+     * @return number of received timestamps that were ahead of the physical time
+     */
+    long getFutureTimestamps();
+
+    /**
+     * @return number of times the skew exceeded the threshold
+     */
+    long getSkewAlarms();
+}
@@ -10,6 +10,7 @@ package com.eventsourcing.hlc;
 import com.google.common.util.concurrent.AbstractScheduledService;
 import lombok.Setter;
 import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.net.ntp.NTPUDPClient;
 import org.apache.commons.net.ntp.TimeStamp;
 import org.osgi.service.component.ComponentContext;
@@ -24,6 +25,7 @@ import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
@@ -37,8 +39,11 @@ import java.util.stream.Collectors;
  * NTPServerTimeProvider is an EventReducer Service and needs to be started prior
  * to using it as a PhysicalTimeProvider.
  */
-@Component(property = "ntp.servers=localhost,0.pool.ntp.org,1.pool.ntp.org,2.pool.ntp.org,3.pool.ntp.org")
-public class NTPServerTimeProvider extends AbstractScheduledService implements PhysicalTimeProvider {
+@Slf4j
+@Component(property = {"ntp.servers=localhost,0.pool.ntp.org,1.pool.ntp.org,2.pool.ntp.org,3.pool.ntp.org",
+                       "jmx.objectname=com.eventsourcing:type=timeProvider,name=NTPServerTimeProvider"})
+public class NTPServerTimeProvider extends AbstractScheduledService implements PhysicalTimeProvider,
+                                                                               NTPServerTimeProviderMBean {
 
 
     private final ScheduledExecutorService scheduler =
@@ -53,6 +58,10 @@ public class NTPServerTimeProvider extends AbstractScheduledService implements P
     private TimeStamp timestamp;
     private long nano;
 
+    private volatile long roundTripTime;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
     @Setter
     @Accessors(fluent = true)
     private long delay = 30;
@@ -117,14 +126,39 @@ public class NTPServerTimeProvider extends AbstractScheduledService implements P
     synchronized private void update() {
         InetAddress server = servers.remove(0);
         try {
+            long start = System.nanoTime();
             timestamp = client.getTime(server).getMessage().getTransmitTimeStamp();
             nano = System.nanoTime();
+            roundTripTime = TimeUnit.NANOSECONDS.toMillis(nano - start);
+            requests.increment();
             servers.add(0, server); // add back to the beginning
         } catch (IOException e) {
+            failures.increment();
             servers.add(server); // add to the end of the list
+            log.warn("NTP server {} failed, switching to {}", server, servers.get(0), e);
         }
     }
 
+    @Override
+    public synchronized String getServer() {
+        return servers.get(0).toString();
+    }
+
+    @Override
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
     TimeStamp getTimestamp() {
         TimeStamp ts = new TimeStamp(timestamp.ntpValue());
         long fraction = ts.getFraction();
@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.hlc;
+
+public interface NTPServerTimeProviderMBean {
+    /**
+     * @return NTP server currently used
+     */
+    String getServer();
+
+    /**
+     * @return round-trip time of the last successful request, in milliseconds
+     */
+    long getRoundTripTime();
+
+    /**
+     * @return number of successful requests
+     */
+    long getRequests();
+
+    /**
+     * @return number of failed requests (every failure moves on to the next server)
+     */
+    long getFailures();
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.hlc;
+
+import com.google.common.util.concurrent.AbstractService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.osgi.service.component.annotations.Component;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SystemTimeProvider is a physical time provider that uses the local system clock. The wall-clock
+ * time ({@link System#currentTimeMillis()}) is read once, when the provider is created, and the time
+ * is advanced with {@link System#nanoTime()} from there on, so the time provided is monotonic
+ * and isn't affected by system clock adjustments. No network round-trip is required, so it can be
+ * used right away (even before it is started) and works offline.
+ * <p>
+ * Optionally, the time can be checked against a reference time provider (such as
+ * {@link NTPServerTimeProvider}) periodically, in the background. The reference provider is
+ * started and stopped along with this one. If the drift between the two exceeds
+ * the maximum drift (1 second by default), the time is re-anchored to the reference time
+ * (never going back, though: if the reference time is behind, the time provided stands still
+ * until it catches up).
+ */
+@Slf4j
+@Component(property = {"type=SystemTimeProvider",
+                       "jmx.objectname=com.eventsourcing:type=timeProvider,name=SystemTimeProvider"})
+public class SystemTimeProvider extends AbstractService implements PhysicalTimeProvider, SystemTimeProviderMBean {
+
+    // seconds between 1 Jan 1900 (NTP epoch) and 1 Jan 1970 (Unix epoch)
+    private static final long NTP_EPOCH_OFFSET = 2208988800L;
+
+    private final PhysicalTimeProvider reference;
+    private final long interval;
+    private final TimeUnit intervalUnit;
+
+    @Setter @Accessors(fluent = true)
+    private long maxDrift = 1;
+    @Setter @Accessors(fluent = true)
+    private TimeUnit maxDriftUnit = TimeUnit.SECONDS;
+
+    private volatile Anchor anchor;
+
+    /**
+     * Drift of the time provided from the reference time (positive if behind) in milliseconds,
+     * as of the last check
+     */
+    @Getter
+    private volatile long drift;
+    private final LongAdder adjustments = new LongAdder();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates SystemTimeProvider without drift checks
+     */
+    public SystemTimeProvider() {
+        this(null, 0, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Creates SystemTimeProvider that checks its time against a reference time provider
+     *
+     * @param reference    reference time provider
+     * @param interval     interval between checks
+     * @param intervalUnit interval time unit
+     */
+    public SystemTimeProvider(PhysicalTimeProvider reference, long interval, TimeUnit intervalUnit) {
+        this.reference = reference;
+        this.interval = interval;
+        this.intervalUnit = intervalUnit;
+        anchor = new Anchor(toNtp(System.currentTimeMillis()), System.nanoTime(), 0);
+    }
+
+    @Override
+    public long getPhysicalTime() {
+        Anchor anchor = this.anchor;
+        long time = anchor.time + nanosToNtp(System.nanoTime() - anchor.nanoTime);
+        return HybridTimestamp.compare(time, anchor.floor) < 0 ? anchor.floor : time;
+    }
+
+    /**
+     * Checks the time against the reference time provider, re-anchoring it if the drift
+     * exceeds the maximum drift
+     */
+    void check() {
+        if (!reference.isRunning()) {
+            return;
+        }
+        long referenceTime = reference.getPhysicalTime();
+        long time = getPhysicalTime();
+        long drift = ntpToMillis(referenceTime - time);
+        this.drift = drift;
+        if (Math.abs(drift) > maxDriftUnit.toMillis(maxDrift)) {
+            log.warn("System time drifted by {}ms from the reference time, adjusting", drift);
+            anchor = new Anchor(referenceTime, System.nanoTime(), time);
+            adjustments.increment();
+        }
+    }
+
+    @Override
+    public long getAdjustments() {
+        return adjustments.sum();
+    }
+
+    @Override
+    protected void doStart() {
+        if (reference != null) {
+            // not waiting for the reference provider, it might take a while to start
+            reference.startAsync();
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("eventsourcing-time-%d").setDaemon(true).build());
+            scheduler.scheduleWithFixedDelay(this::safeCheck, 0, interval, intervalUnit);
+        }
+        notifyStarted();
+    }
+
+    private void safeCheck() {
+        try {
+            check();
+        } catch (Exception e) {
+            log.error("Time drift check failed", e);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        if (reference != null) {
+            scheduler.shutdownNow();
+            reference.stopAsync();
+        }
+        notifyStopped();
+    }
+
+    static long toNtp(long millis) {
+        long seconds = millis / 1000 + NTP_EPOCH_OFFSET;
+        long fraction = ((millis % 1000) << 32) / 1000;
+        return seconds << 32 | fraction;
+    }
+
+    static long nanosToNtp(long nanos) {
+        return (nanos / 1_000_000_000L) << 32 | ((nanos % 1_000_000_000L) << 32) / 1_000_000_000L;
+    }
+
+    static long ntpToMillis(long ntp) {
+        return (ntp >> 16) * 1000 >> 16;
+    }
+
+    private static class Anchor {
+        // NTP time at the anchor
+        private final long time;
+        private final long nanoTime;
+        // Time provided before the anchor was set, to stay monotonic
+        private final long floor;
+
+        private Anchor(long time, long nanoTime, long floor) {
+            this.time = time;
+            this.nanoTime = nanoTime;
+            this.floor = floor;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.hlc;
+
+public interface SystemTimeProviderMBean {
+    /**
+     * @return drift from the reference time (positive if behind) as of the last check, in milliseconds
+     */
+    long getDrift();
+
+    /**
+     * @return number of times the time was re-anchored to the reference time
+     */
+    long getAdjustments();
+}
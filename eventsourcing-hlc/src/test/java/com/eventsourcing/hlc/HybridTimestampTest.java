@@ -21,6 +21,9 @@ import org.testng.annotations.Test;
 
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
@@ -113,7 +116,7 @@ public class HybridTimestampTest {
         assertEquals(1, timestamp.getLogicalCounter());
 
         // clock moved back
-        ts = (long) 0 << 32 | 1;
+        ts = (long) 0 << 32 | 1 << 16;
         physicalTimeProvider.setPhysicalTime(ts);
         ts_ = timestamp.getLogicalTime();
         timestamp.update();
@@ -130,14 +133,14 @@ public class HybridTimestampTest {
         // event happens, but wall ahead
         ts = (long) 3 << 32 | 0;
         physicalTimeProvider.setPhysicalTime(ts);
-        timestamp.update((long) 1 << 32 | 2, 3);
+        timestamp.update((long) 1 << 32 | 2 << 16, 3);
         assertEquals(ts, timestamp.getLogicalTime());
         assertEquals(0, timestamp.getLogicalCounter());
 
         // event happens, wall ahead but unchanged
         ts = (long) 3 << 32 | 0;
         physicalTimeProvider.setPhysicalTime(ts);
-        timestamp.update((long) 1 << 32 | 2, 3);
+        timestamp.update((long) 1 << 32 | 2 << 16, 3);
         assertEquals(ts, timestamp.getLogicalTime());
         assertEquals(1, timestamp.getLogicalCounter());
 
@@ -156,20 +159,20 @@ public class HybridTimestampTest {
         assertEquals(100, timestamp.getLogicalCounter());
 
         // event with larger wall, our wall behind
-        ts = (long) 3 << 32 | 5;
+        ts = (long) 3 << 32 | 5 << 16;
         physicalTimeProvider.setPhysicalTime(ts);
-        timestamp.update((long) 4 << 32 | 4, 100);
-        assertEquals((long) 4 << 32 | 4, timestamp.getLogicalTime());
+        timestamp.update((long) 4 << 32 | 4 << 16, 100);
+        assertEquals((long) 4 << 32 | 4 << 16, timestamp.getLogicalTime());
         assertEquals(101, timestamp.getLogicalCounter());
 
         // event behind wall, but ahead of previous state
         ts = (long) 5 << 32 | 0;
         physicalTimeProvider.setPhysicalTime(ts);
-        timestamp.update((long) 4 << 32 | 5, 0);
+        timestamp.update((long) 4 << 32 | 5 << 16, 0);
         assertEquals(ts, timestamp.getLogicalTime());
         assertEquals(0, timestamp.getLogicalCounter());
 
-        ts = (long) 4 << 32 | 9;
+        ts = (long) 4 << 32 | 9 << 16;
         physicalTimeProvider.setPhysicalTime(ts);
         timestamp.update((long) 5 << 32 | 0, 99);
         assertEquals((long) 5 << 32 | 0, timestamp.getLogicalTime());
@@ -189,4 +192,94 @@ public class HybridTimestampTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void compare() {
+        // NTP seconds are unsigned
+        assertTrue(HybridTimestamp.compare(0x80000000L << 32, 0x7FFFFFFFL << 32) > 0);
+        assertTrue(HybridTimestamp.compare(1L << 32 | 0xFFFFFFFFL, 2L << 32) < 0);
+        assertEquals(HybridTimestamp.compare(1L << 32 | 1, 1L << 32 | 1), 0);
+        assertTrue(new HybridTimestamp(0x80000000L << 32, 0).compareTo(new HybridTimestamp(1L << 32, 1)) > 0);
+        assertTrue(new HybridTimestamp(1L << 32, 2).compareTo(new HybridTimestamp(1L << 32, 1)) > 0);
+    }
+
+    @Test
+    public void counterOverflow() {
+        physicalTimeProvider.setPhysicalTime(0);
+        HybridTimestamp timestamp = new HybridTimestamp(physicalTimeProvider, 1L << 32, 0xFFFF);
+        HybridTimestamp previous = timestamp.clone();
+        timestamp.update();
+        assertTrue(timestamp.compareTo(previous) > 0);
+        assertEquals(timestamp.getLogicalTime(), 1L << 32 | 1 << 16);
+        assertEquals(timestamp.getLogicalCounter(), 0);
+    }
+
+    @Test
+    public void packing() {
+        // the lower 16 bits of the fraction are dropped
+        assertEquals(new HybridTimestamp(1L << 32 | 0xFFFF, 1).timestamp(), 1L << 32 | 1);
+        assertEquals(new HybridTimestamp(1, 0).compareTo(new HybridTimestamp(2, 0)), 0);
+        // counters that don't fit into 16 bits carry over into the logical time
+        HybridTimestamp carried = new HybridTimestamp(1L << 32, 0x10001);
+        assertEquals(carried.getLogicalTime(), 1L << 32 | 1 << 16);
+        assertEquals(carried.getLogicalCounter(), 1);
+        assertTrue(carried.compareTo(new HybridTimestamp(1L << 32, 0xFFFF)) > 0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativeCounter() {
+        new HybridTimestamp(1L << 32, -1);
+    }
+
+    @Test @SneakyThrows
+    public void concurrentUpdates() {
+        physicalTimeProvider.setPhysicalTime(1L << 32);
+        HybridTimestamp timestamp = new HybridTimestamp(physicalTimeProvider);
+        Set<Long> timestamps = ConcurrentHashMap.newKeySet();
+        int threads = 4, updates = 10000;
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < updates; j++) {
+                    timestamps.add(j % 2 == 0 ? timestamp.update() : timestamp.update(timestamp));
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        assertEquals(timestamps.size(), threads * updates);
+    }
+
+    @Test
+    public void reserve() {
+        physicalTimeProvider.setPhysicalTime(1L << 32);
+        HybridTimestamp timestamp = new HybridTimestamp(physicalTimeProvider);
+        long first = timestamp.reserve(10);
+        assertEquals(first, 1L << 32);
+        assertEquals(timestamp.timestamp(), first + 9);
+        assertEquals(timestamp.update(), first + 10);
+
+        physicalTimeProvider.setPhysicalTime(2L << 32);
+        assertEquals(timestamp.reserve(1), 2L << 32);
+    }
+
+    @Test
+    public void reservation() {
+        physicalTimeProvider.setPhysicalTime(1L << 32);
+        HybridTimestamp timestamp = new HybridTimestamp(physicalTimeProvider);
+        timestamp.update();
+        HybridTimestamp.Reservation reservation = new HybridTimestamp.Reservation(timestamp.clone(), 4);
+        HybridTimestamp previous = timestamp;
+        for (int i = 0; i < 10; i++) {
+            HybridTimestamp next = reservation.next();
+            assertTrue(next.compareTo(previous) > 0);
+            previous = next;
+        }
+        // received timestamp ahead of the reserved ones
+        HybridTimestamp received = new HybridTimestamp(physicalTimeProvider, 3L << 32, 5);
+        reservation.update(received);
+        HybridTimestamp next = reservation.next();
+        assertTrue(next.compareTo(received) > 0);
+        assertTrue(next.compareTo(previous) > 0);
+    }
+
+}
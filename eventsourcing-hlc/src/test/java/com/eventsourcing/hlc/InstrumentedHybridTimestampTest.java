@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.hlc;
+
+import com.google.common.util.concurrent.AbstractService;
+import lombok.Setter;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+
+public class InstrumentedHybridTimestampTest {
+
+    static class TestPhysicalTimeProvider extends AbstractService implements PhysicalTimeProvider {
+        @Setter
+        private long physicalTime;
+
+        @Override
+        public long getPhysicalTime() {
+            return physicalTime;
+        }
+
+        @Override
+        protected void doStart() {
+            notifyStarted();
+        }
+
+        @Override
+        protected void doStop() {
+            notifyStopped();
+        }
+    }
+
+    @Test
+    public void health() {
+        TestPhysicalTimeProvider physicalTimeProvider = new TestPhysicalTimeProvider();
+        InstrumentedHybridTimestamp timestamp = new InstrumentedHybridTimestamp(physicalTimeProvider)
+                .skewThreshold(1).skewThresholdUnit(TimeUnit.SECONDS);
+
+        physicalTimeProvider.setPhysicalTime(10L << 32);
+        timestamp.update();
+        timestamp.update();
+        assertEquals(timestamp.getUpdates(), 2);
+        assertEquals(timestamp.getLogicalUpdates(), 1);
+        assertEquals(timestamp.getMaxLogicalCounter(), 1);
+        assertEquals(timestamp.getSkew(), 0);
+
+        // received a timestamp 5 seconds ahead
+        timestamp.update(new HybridTimestamp(15L << 32, 3));
+        assertEquals(timestamp.getFutureTimestamps(), 1);
+        assertEquals(timestamp.getSkew(), 5000);
+        assertEquals(timestamp.getMaxSkew(), 5000);
+        assertEquals(timestamp.getMaxLogicalCounter(), 4);
+        assertEquals(timestamp.getSkewAlarms(), 1);
+
+        // still skewed, no new alarm
+        physicalTimeProvider.setPhysicalTime(12L << 32);
+        timestamp.update();
+        assertEquals(timestamp.getSkew(), 3000);
+        assertEquals(timestamp.getSkewAlarms(), 1);
+
+        // physical time caught up
+        physicalTimeProvider.setPhysicalTime(16L << 32);
+        timestamp.update();
+        assertEquals(timestamp.getSkew(), 0);
+        assertEquals(timestamp.getMaxSkew(), 5000);
+
+        physicalTimeProvider.setPhysicalTime(18L << 32);
+        timestamp.update(new HybridTimestamp(20L << 32, 0));
+        assertEquals(timestamp.getSkewAlarms(), 2);
+    }
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.hlc;
+
+import com.google.common.util.concurrent.AbstractService;
+import org.apache.commons.net.ntp.TimeStamp;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class SystemTimeProviderTest {
+
+    static class ReferenceTimeProvider extends AbstractService implements PhysicalTimeProvider {
+        private volatile long offset;
+
+        @Override
+        public long getPhysicalTime() {
+            return SystemTimeProvider.toNtp(System.currentTimeMillis() + offset);
+        }
+
+        @Override
+        protected void doStart() {
+            notifyStarted();
+        }
+
+        @Override
+        protected void doStop() {
+            notifyStopped();
+        }
+    }
+
+    @Test
+    public void systemTime() {
+        SystemTimeProvider provider = new SystemTimeProvider();
+        long before = System.currentTimeMillis();
+        long time = new TimeStamp(provider.getPhysicalTime()).getTime();
+        long after = System.currentTimeMillis();
+        // anchored at creation, and nanoTime could be a bit off
+        assertTrue(time >= before - 50 && time <= after + 50, "time=" + time + " before=" + before);
+    }
+
+    @Test
+    public void conversion() {
+        assertEquals(new TimeStamp(SystemTimeProvider.toNtp(1_000_500)).getTime(), 1_000_500);
+        assertEquals(SystemTimeProvider.nanosToNtp(1_500_000_000L), 1L << 32 | 1L << 31);
+        assertEquals(SystemTimeProvider.ntpToMillis(1L << 32 | 1L << 31), 1500);
+        assertEquals(SystemTimeProvider.ntpToMillis(-(1L << 32)), -1000);
+    }
+
+    @Test
+    public void monotonic() {
+        SystemTimeProvider provider = new SystemTimeProvider();
+        long previous = provider.getPhysicalTime();
+        for (int i = 0; i < 100000; i++) {
+            long time = provider.getPhysicalTime();
+            assertTrue(HybridTimestamp.compare(time, previous) >= 0);
+            previous = time;
+        }
+    }
+
+    @Test
+    public void drift() throws InterruptedException {
+        ReferenceTimeProvider reference = new ReferenceTimeProvider();
+        SystemTimeProvider provider = new SystemTimeProvider(reference, 1, TimeUnit.DAYS);
+        reference.startAsync().awaitRunning();
+
+        // within the maximum drift
+        reference.offset = 500;
+        provider.check();
+        assertTrue(Math.abs(provider.getDrift() - 500) < 50, "drift=" + provider.getDrift());
+        long time = provider.getPhysicalTime();
+        assertTrue(SystemTimeProvider.ntpToMillis(reference.getPhysicalTime() - time) > 400);
+
+        // ahead of the system time
+        reference.offset = 10_000;
+        provider.check();
+        assertTrue(Math.abs(provider.getDrift() - 10_000) < 50, "drift=" + provider.getDrift());
+        assertTrue(Math.abs(SystemTimeProvider.ntpToMillis(reference.getPhysicalTime() -
+                                                           provider.getPhysicalTime())) < 50);
+
+        // behind: time stands still until the reference catches up
+        reference.offset = 0;
+        provider.check();
+        long before = provider.getPhysicalTime();
+        Thread.sleep(10);
+        assertEquals(provider.getPhysicalTime(), before);
+
+        reference.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void lifecycle() {
+        ReferenceTimeProvider reference = new ReferenceTimeProvider();
+        SystemTimeProvider provider = new SystemTimeProvider(reference, 10, TimeUnit.MILLISECONDS);
+        provider.startAsync().awaitRunning();
+        reference.awaitRunning();
+        provider.stopAsync().awaitTerminated();
+        reference.awaitTerminated();
+    }
+
+}
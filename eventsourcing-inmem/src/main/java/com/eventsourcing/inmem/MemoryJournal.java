@@ -19,8 +19,8 @@ import com.eventsourcing.repository.Journal;
 import com.eventsourcing.repository.JournalEntityHandle;
 import com.eventsourcing.repository.LockProvider;
 import com.eventsourcing.utils.CloseableWrappingIterator;
-import com.google.common.collect.Iterators;
 import com.google.common.util.concurrent.AbstractService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.googlecode.cqengine.index.support.CloseableIterator;
 import lombok.Getter;
 import lombok.SneakyThrows;
@@ -28,8 +28,9 @@ import org.osgi.service.component.annotations.Component;
 
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.function.Consumer;
-import java.util.stream.Stream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Memory-based {@link Journal} implementation. Not meant to be used in production.
@@ -48,6 +49,12 @@ public class MemoryJournal extends AbstractService implements Journal {
 
     private Map<UUID, Command> commands = new HashMap<>();
     private Map<UUID, Event> events = new HashMap<>();
+    // number of entities journalled, by their classes
+    private final Map<Class<?>, Long> counts = new HashMap<>();
+    // all entities, in their global order
+    private final NavigableMap<Position, Entity> timeline = new TreeMap<>();
+    // Not synchronized with the rest, so that it can be read while a command is being journalled
+    private final Map<String, HybridTimestamp> versions = new ConcurrentHashMap<>();
 
     @Override
     protected void doStart() {
@@ -62,55 +69,122 @@ public class MemoryJournal extends AbstractService implements Journal {
         notifyStopped();
     }
 
+    @Override
+    public long journal(Command<?, ?> command, Journal.Listener listener, LockProvider lockProvider)
+            throws Exception {
+        return new BatchEntry(command, listener, lockProvider).journal(this);
+    }
+
     // We are using synchronized methods in this implementation to imitate
     // the transaction isolation guarantees promised by Journal#journal's
     // documentation
 
     @Override
-    public synchronized long journal(Command<?, ?> command, Journal.Listener listener, LockProvider lockProvider)
-            throws Exception {
+    public void journal(List<? extends BatchEntry> batch) {
+        // Events generated ahead of journalling are waited for before entering the
+        // monitor, as generating them may read the journal (and would never finish)
+        for (BatchEntry entry : batch) {
+            if (entry.getEvents() != null) {
+                try {
+                    Uninterruptibles.getUninterruptibly(entry.getEvents());
+                } catch (ExecutionException | CancellationException e) {
+                    // rethrown by BatchEntry#events
+                }
+            }
+        }
+        journalBatch(batch);
+    }
+
+    private synchronized void journalBatch(List<? extends BatchEntry> batch) {
+        Map<UUID, Event> events_ = new HashMap<>();
+        Map<UUID, Command> commands_ = new HashMap<>();
+        Map<String, HybridTimestamp> versions_ = new HashMap<>();
+        List<BatchEntry> committed = new ArrayList<>();
+
+        for (BatchEntry entry : batch) {
+            try {
+                journal(entry, events_, commands_, versions_);
+            } catch (BatchSplitException e) {
+                break;
+            }
+            entry.setJournalled(true);
+            committed.add(entry);
+        }
+
+        events_.forEach((uuid, event) -> added(this.events.put(uuid, event), event));
+        commands_.forEach((uuid, command) -> added(this.commands.put(uuid, command), command));
+        this.versions.putAll(versions_);
+
+        committed.forEach(entry -> entry.getListener().onCommit());
+    }
+
+    private void added(Entity previous, Entity entity) {
+        if (previous == null) {
+            counts.merge(entity.getClass(), 1L, Long::sum);
+            timeline.put(Position.of(entity), entity);
+        }
+    }
+
+    private void journal(BatchEntry entry, Map<UUID, Event> batchEvents, Map<UUID, Command> batchCommands,
+                         Map<String, HybridTimestamp> batchVersions) {
+        Command<?, ?> command = entry.getCommand();
+        Journal.Listener listener = entry.getListener();
+
         Map<UUID, Event> events_ = new HashMap<>();
         EventConsumer eventConsumer = new EventConsumer(events_, command, listener);
 
-        Stream<? extends Event> events;
-        Exception exception = null;
+        EventStream<?> events;
+        Set<Object> keys = Collections.emptySet();
 
         try {
-            EventStream<?> eventStream = command.events(repository, lockProvider);
+            EventStream<?> eventStream = entry.events(repository);
+            Object conflict;
+            while ((conflict = conflict(eventStream, batchVersions)) != null) {
+                eventStream = entry.retry(repository, conflict);
+            }
+            keys = eventStream.getExpectedVersions().keySet();
             listener.onCommandStateReceived(eventStream.getState());
-            events = eventStream.getStream();
+            events = eventStream;
+        } catch (BatchSplitException e) {
+            throw e;
         } catch (Exception e) {
-            events = Stream.of((Event) new CommandTerminatedExceptionally(command.uuid(), e));
-            exception = e;
+            events = EventStream.of(new CommandTerminatedExceptionally(command.uuid(), e));
+            entry.setException(e);
         }
 
         long count = 0;
 
         try {
-            count = events.peek(new Consumer<Event>() {
-                @Override public void accept(Event event) {
-                    eventConsumer.accept(event);
-                    eventConsumer.accept(EventCausalityEstablished.builder()
-                                                                  .event(event.uuid())
-                                                                  .command(command.uuid())
-                                                                  .build());
-                }
-            }).count();
+            count = events.drainTo(event -> {
+                eventConsumer.accept(event);
+                eventConsumer.accept(EventCausalityEstablished.builder()
+                                                              .event(event.uuid())
+                                                              .command(command.uuid())
+                                                              .build());
+            });
             events_ = eventConsumer.getEvents();
+        } catch (BatchSplitException e) {
+            throw e;
         } catch (Exception e) {
             events_.clear();
             listener.onAbort(e);
-            exception = e;
+            entry.setException(e);
             try {
-                count = Stream.of(new CommandTerminatedExceptionally(command.uuid(), e)).peek(eventConsumer)
-                              .count();
+                eventConsumer.accept(new CommandTerminatedExceptionally(command.uuid(), e));
+                count = 1;
             } catch (Exception e1) {
                 events_.clear();
-                exception = e1;
+                entry.setException(e1);
             }
         }
 
-        this.events.putAll(events_);
+        batchEvents.putAll(events_);
+
+        if (entry.getException() == null && count > 0) {
+            for (Object key : keys) {
+                batchVersions.put(key.toString(), command.timestamp());
+            }
+        }
 
         ObjectSerializer<Command> serializer = serialization.getSerializer(command.getClass());
         ObjectDeserializer<Command> deserializer = serialization.getDeserializer(command.getClass());
@@ -120,15 +194,33 @@ public class MemoryJournal extends AbstractService implements Journal {
         Command command1 = deserializer.deserialize(buffer);
         command1.uuid(command.uuid());
 
-        commands.put(command1.uuid(), command1);
+        batchCommands.put(command1.uuid(), command1);
 
-        listener.onCommit();
+        entry.setCount(count);
+    }
 
-        if (exception != null) {
-            throw exception;
+    /**
+     * @return the first key which version doesn't match the expected one, or <code>null</code> if all match
+     */
+    private Object conflict(EventStream<?> eventStream, Map<String, HybridTimestamp> batchVersions) {
+        for (Map.Entry<Object, Optional<HybridTimestamp>> expected : eventStream.getExpectedVersions().entrySet()) {
+            String key = expected.getKey().toString();
+            boolean changedInBatch = batchVersions.containsKey(key);
+            HybridTimestamp version = changedInBatch ? batchVersions.get(key) : versions.get(key);
+            if (!Journal.isExpectedVersion(expected.getValue(), version)) {
+                if (changedInBatch) {
+                    // the command couldn't have seen this version, journal it in the next batch
+                    throw new BatchSplitException();
+                }
+                return expected.getKey();
+            }
         }
+        return null;
+    }
 
-        return count;
+    @Override
+    public Optional<HybridTimestamp> getVersion(Object key) {
+        return Optional.ofNullable(versions.get(key.toString()));
     }
 
     @Override @SuppressWarnings("unchecked")
@@ -142,6 +234,23 @@ public class MemoryJournal extends AbstractService implements Journal {
         return Optional.empty();
     }
 
+    @Override
+    public synchronized <T extends Entity> Map<UUID, T> getAll(Collection<UUID> uuids) {
+        Map<UUID, T> entities = new HashMap<>();
+        for (UUID uuid : uuids) {
+            Entity entity = commands.containsKey(uuid) ? commands.get(uuid) : events.get(uuid);
+            if (entity != null) {
+                entities.put(uuid, (T) entity);
+            }
+        }
+        return entities;
+    }
+
+    @Override
+    public synchronized boolean contains(UUID uuid) {
+        return commands.containsKey(uuid) || events.containsKey(uuid);
+    }
+
     @Override
     public synchronized <T extends Command<?, ?>> CloseableIterator<EntityHandle<T>> commandIterator(Class<T> klass) {
         return new CloseableWrappingIterator<>(commands.values().stream()
@@ -156,59 +265,75 @@ public class MemoryJournal extends AbstractService implements Journal {
                  .map(event -> (EntityHandle<T>) new JournalEntityHandle<T>(this, event.uuid())).iterator());
     }
 
+    @Override
+    public synchronized <T extends Event> CloseableIterator<EntityHandle<T>> eventIterator(Class<T> klass,
+                                                                                        HybridTimestamp from,
+                                                                                        HybridTimestamp to) {
+        Position lower = from == null ? Position.START : Position.before(from);
+        SortedMap<Position, Entity> range = to == null ? timeline.tailMap(lower) :
+                timeline.subMap(lower, Position.before(to));
+        return new CloseableWrappingIterator<>(new ArrayList<>(range.values()).stream()
+                 .filter(event -> klass.isAssignableFrom(event.getClass()))
+                 .map(event -> (EntityHandle<T>) new JournalEntityHandle<T>(this, event.uuid())).iterator());
+    }
+
+    @Override
+    public synchronized CloseableIterator<EntityHandle<Entity>> iterator(Position from) {
+        return new CloseableWrappingIterator<>(new ArrayList<>(timeline.tailMap(from, false).values()).stream()
+                 .map(entity -> (EntityHandle<Entity>) new JournalEntityHandle<Entity>(this, entity.uuid()))
+                 .iterator());
+    }
+
     @Override
     public synchronized void clear() {
         events.clear();
         commands.clear();
+        counts.clear();
+        timeline.clear();
+        versions.clear();
     }
 
-    @Override @SuppressWarnings("unchecked")
-    public <T extends Entity> long size(Class<T> klass) {
-        if (Event.class.isAssignableFrom(klass)) {
-            return Iterators.size(eventIterator((Class<Event>) klass));
-        }
-        if (Command.class.isAssignableFrom(klass)) {
-            return Iterators.size(commandIterator((Class<Command<?, ?>>) klass));
+    @Override
+    public synchronized <T extends Entity> long size(Class<T> klass) {
+        long size = 0;
+        // iterators include subclasses' entities, so does the size
+        for (Map.Entry<Class<?>, Long> count : counts.entrySet()) {
+            if (klass.isAssignableFrom(count.getKey())) {
+                size += count.getValue();
+            }
         }
-        return 0;
+        return size;
     }
 
-    @Override @SuppressWarnings("unchecked")
+    @Override
     public <T extends Entity> boolean isEmpty(Class<T> klass) {
-        if (Event.class.isAssignableFrom(klass)) {
-            return !eventIterator((Class<Event>) klass).hasNext();
-        }
-        if (Command.class.isAssignableFrom(klass)) {
-            return !commandIterator((Class<Command<?, ?>>) klass).hasNext();
-        }
-        return true;
+        return size(klass) == 0;
     }
 
-    private static class EventConsumer implements Consumer<Event> {
+    private static class EventConsumer implements EventSink {
 
         private final Command command;
         private final Journal.Listener listener;
 
         @Getter
         private Map<UUID, Event> events = new HashMap<>();
-        private final HybridTimestamp ts;
+        private final HybridTimestamp.Reservation ts;
 
         public EventConsumer(Map<UUID, Event> events, Command command,
                              Journal.Listener listener) {
             this.events = events;
             this.command = command;
             this.listener = listener;
-            ts = command.timestamp().clone();
+            ts = command.timestamp().clone().reservation();
         }
 
         @Override
         @SneakyThrows
         public synchronized void accept(Event event) {
             if (event.timestamp() == null) {
-                ts.update();
-                event.timestamp(ts.clone());
+                event.timestamp(ts.next());
             } else {
-                ts.update(event.timestamp().clone());
+                ts.update(event.timestamp());
             }
 
             ObjectSerializer<Event> serializer = serialization.getSerializer(event.getClass());
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.inmem;
+
+import com.eventsourcing.EntityHandle;
+import com.eventsourcing.JournalTest;
+import com.eventsourcing.hlc.HybridTimestamp;
+import com.eventsourcing.repository.CachingJournal;
+import com.googlecode.cqengine.index.support.CloseableIterator;
+import lombok.SneakyThrows;
+import org.testng.annotations.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.testng.Assert.*;
+
+@Test
+public class CachingJournalTest extends JournalTest<CachingJournal> {
+
+    public CachingJournalTest() {
+        super(new CachingJournal(new MemoryJournal(), 2));
+    }
+
+    private TestCommand journal() throws Exception {
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        TestCommand command = TestCommand.builder().build();
+        journal.journal(command.timestamp(timestamp));
+        return command;
+    }
+
+    @Test
+    @SneakyThrows
+    public void admission() {
+        TestCommand command = journal();
+        long hits = journal.getHits();
+        long rejections = journal.getRejections();
+
+        // retrieved for the first time, not admitted
+        assertTrue(journal.get(command.uuid()).isPresent());
+        assertEquals(journal.getRejections(), rejections + 1);
+        assertEquals(journal.getCacheSize(), 0);
+
+        // retrieved for the second time, admitted
+        assertTrue(journal.get(command.uuid()).isPresent());
+        assertEquals(journal.getCacheSize(), 1);
+        assertEquals(journal.getHits(), hits);
+
+        assertTrue(journal.get(command.uuid()).isPresent());
+        assertEquals(journal.getHits(), hits + 1);
+        assertTrue(journal.getAll(Collections.singleton(command.uuid())).containsKey(command.uuid()));
+        assertEquals(journal.getHits(), hits + 2);
+    }
+
+    @Test
+    @SneakyThrows
+    public void eviction() {
+        long evictions = journal.getEvictions();
+        for (int i = 0; i < 3; i++) {
+            TestCommand command = journal();
+            journal.get(command.uuid());
+            journal.get(command.uuid());
+        }
+        assertEquals(journal.getCacheSize(), 2);
+        assertEquals(journal.getEvictions(), evictions + 1);
+    }
+
+    @Test
+    @SneakyThrows
+    public void iteratorHandles() {
+        TestCommand command = journal();
+        journal.get(command.uuid());
+        journal.get(command.uuid());
+        long hits = journal.getHits();
+        try (CloseableIterator<EntityHandle<TestCommand>> iterator = journal.commandIterator(TestCommand.class)) {
+            assertEquals(iterator.next().get().uuid(), command.uuid());
+        }
+        assertEquals(journal.getHits(), hits + 1);
+    }
+
+    @Test
+    @SneakyThrows
+    public void containsNotCounted() {
+        TestCommand command = journal();
+        journal.get(command.uuid());
+        journal.get(command.uuid());
+        long hits = journal.getHits();
+        long misses = journal.getMisses();
+        assertTrue(journal.contains(command.uuid()));
+        assertFalse(journal.contains(UUID.randomUUID()));
+        assertEquals(journal.getHits(), hits);
+        assertEquals(journal.getMisses(), misses);
+    }
+
+    @Test
+    @SneakyThrows
+    public void mbean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.eventsourcing:type=journal,name=CachingJournalTest");
+        server.registerMBean(journal, name);
+        try {
+            assertEquals(server.getAttribute(name, "CacheSize"), journal.getCacheSize());
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void clearing() {
+        TestCommand command = journal();
+        journal.get(command.uuid());
+        journal.get(command.uuid());
+        assertEquals(journal.getCacheSize(), 1);
+        journal.clear();
+        assertEquals(journal.getCacheSize(), 0);
+        assertFalse(journal.get(command.uuid()).isPresent());
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.inmem;
+
+import com.eventsourcing.Repository;
+import com.eventsourcing.RepositoryTest;
+import com.eventsourcing.repository.CommandConsumerConfiguration;
+import com.eventsourcing.repository.Journal;
+import com.eventsourcing.repository.RepositoryImpl;
+import lombok.SneakyThrows;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+@Test
+public class MemoryJournalDeduplicationRepositoryTest extends RepositoryTest<RepositoryImpl> {
+
+    private final RepositoryImpl repository;
+    private MemoryJournal journal;
+    // number of times the journal was asked whether it contains an entity
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    public MemoryJournalDeduplicationRepositoryTest() {
+        this(CommandConsumerConfiguration.builder().deduplicationCacheSize(4096).build());
+    }
+
+    protected MemoryJournalDeduplicationRepositoryTest(CommandConsumerConfiguration configuration) {
+        this(createRepository(configuration));
+    }
+
+    private MemoryJournalDeduplicationRepositoryTest(RepositoryImpl repository) {
+        super(repository);
+        this.repository = repository;
+    }
+
+    private static RepositoryImpl createRepository(CommandConsumerConfiguration configuration) {
+        RepositoryImpl repository = new RepositoryImpl();
+        repository.setCommandConsumerConfiguration(configuration);
+        return repository;
+    }
+
+    protected Journal createJournal() {
+        journal = new MemoryJournal() {
+            @Override public boolean contains(UUID uuid) {
+                lookups.incrementAndGet();
+                return super.contains(uuid);
+            }
+        };
+        return journal;
+    }
+
+    @Test @SneakyThrows
+    public void journalLookedUpOnce() {
+        lookups.set(0);
+        repository.publish(RepositoryTestCommand.builder().value("lookup").build()).get();
+        assertEquals(lookups.get(), 1);
+    }
+
+    @Test @SneakyThrows
+    public void duplicatePublish() {
+        RepositoryTestCommand command = RepositoryTestCommand.builder().value("duplicate").build();
+        CompletableFuture<String> future = repository.publish(command);
+        assertSame(repository.publish(command), future);
+        assertSame(repository.publishAll(Collections.singletonList(command)).getFutures().get(0), future);
+        assertEquals(future.get(), "hello, world");
+        assertSame(repository.tryPublish(command), future);
+        assertEquals(journal.size(TestEvent.class), 1);
+    }
+
+    @Test @SneakyThrows
+    public void duplicateOfJournalled() {
+        RepositoryTestCommand command = RepositoryTestCommand.builder().value("journalled")
+                                                             .timestamp(repository.getTimestamp().clone()).build();
+        journal.journal(command);
+        Throwable throwable = repository.publish(command).handle((result, t) -> t).get();
+        assertTrue(throwable instanceof Repository.DuplicateCommandException);
+        assertEquals(journal.size(TestEvent.class), 1);
+    }
+
+    @Test @SneakyThrows
+    public void duplicateOfJournalledNotExecuted() {
+        OptimisticCommand.attempts.set(0);
+        OptimisticCommand.staleAttempts = 0;
+        OptimisticCommand command = OptimisticCommand.builder().key(UUID.randomUUID().toString())
+                                                     .timestamp(repository.getTimestamp().clone()).build();
+        journal.journal(command);
+        assertEquals(OptimisticCommand.attempts.get(), 1);
+        Throwable throwable = repository.publish(command).handle((result, t) -> t).get();
+        assertTrue(throwable instanceof Repository.DuplicateCommandException);
+        assertEquals(OptimisticCommand.attempts.get(), 1);
+    }
+
+}
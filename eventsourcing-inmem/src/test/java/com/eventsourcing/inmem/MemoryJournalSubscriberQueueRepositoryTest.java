@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.inmem;
+
+import com.eventsourcing.RepositoryTest;
+import com.eventsourcing.repository.CommandConsumerConfiguration;
+import com.eventsourcing.repository.Journal;
+import com.eventsourcing.repository.RepositoryImpl;
+import org.testng.annotations.Test;
+
+@Test
+public class MemoryJournalSubscriberQueueRepositoryTest extends RepositoryTest<RepositoryImpl> {
+    public MemoryJournalSubscriberQueueRepositoryTest() {
+        super(createRepository());
+    }
+
+    private static RepositoryImpl createRepository() {
+        RepositoryImpl repository = new RepositoryImpl();
+        // small enough for subscribers that fall behind to fill their queues up
+        repository.setCommandConsumerConfiguration(CommandConsumerConfiguration.builder()
+                                                                               .subscriberQueueSize(10)
+                                                                               .subscriberBatchSize(1)
+                                                                               .build());
+        return repository;
+    }
+
+    protected Journal createJournal() {
+        return new MemoryJournal();
+    }
+}
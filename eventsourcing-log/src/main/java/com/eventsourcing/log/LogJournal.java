@@ -0,0 +1,983 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.log;
+
+import com.eventsourcing.*;
+import com.eventsourcing.events.CommandTerminatedExceptionally;
+import com.eventsourcing.events.EventCausalityEstablished;
+import com.eventsourcing.hlc.HybridTimestamp;
+import com.eventsourcing.layout.Layout;
+import com.eventsourcing.layout.ObjectDeserializer;
+import com.eventsourcing.layout.ObjectSerializer;
+import com.eventsourcing.layout.Serialization;
+import com.eventsourcing.layout.binary.BinarySerialization;
+import com.eventsourcing.repository.Journal;
+import com.eventsourcing.repository.JournalEntityHandle;
+import com.eventsourcing.repository.JournalMBean;
+import com.eventsourcing.repository.LockProvider;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.AbstractService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.googlecode.cqengine.index.support.CloseableIterator;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+
+import javax.management.openmbean.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, log-structured {@link Journal} implementation.
+ * <p>
+ * Commands and events are appended to memory-mapped segment files in a directory, sequentially:
+ * every batch of commands (see {@link #journal(List)}) is serialized in memory first and then
+ * appended to the current segment at once, ending with a commit record. Once a segment is full,
+ * a new one is started (see {@link #segmentSize(int)}) and the full one is sealed (see {@link Segment}).
+ * <p>
+ * Entities are looked up through per-segment UUID indexes and read directly from the mapped
+ * segments, without copying. Positions of entities of every layout are kept in memory, in the order
+ * they were journalled in, for iteration.
+ * <p>
+ * How often the log is forced to disk is determined by {@link FsyncPolicy}.
+ */
+@Component(property = {"directory=journal", "type=LogJournal",
+                       "jmx.objectname=com.eventsourcing:type=journal,name=LogJournal"})
+@Slf4j
+public class LogJournal extends AbstractService implements Journal, JournalMBean {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    public enum FsyncPolicy {
+        /**
+         * Forces every batch to disk before it is committed. The safest and the slowest.
+         */
+        COMMIT,
+        /**
+         * Forces the log to disk periodically (see {@link #fsyncInterval(long)}), in the background.
+         * Batches committed since the last fsync might be lost if the OS crashes.
+         */
+        INTERVAL,
+        /**
+         * Leaves writing the log to disk to the OS. Segments are only forced when they are sealed
+         * and when the journal is stopped.
+         */
+        OS
+    }
+
+    private static final Serialization serialization = BinarySerialization.getInstance();
+
+    private Repository repository;
+
+    @Getter(AccessLevel.PACKAGE) @Setter(AccessLevel.PACKAGE) // getter and setter for tests
+    private File directory;
+
+    /**
+     * Size of a segment, in bytes. A batch that doesn't fit into a segment of this size gets a larger one.
+     * <p>
+     * {@value #DEFAULT_SEGMENT_SIZE} by default.
+     */
+    @Setter @Accessors(fluent = true)
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    /**
+     * {@link FsyncPolicy#COMMIT} by default
+     */
+    @Setter @Accessors(fluent = true)
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.COMMIT;
+    /**
+     * Interval between fsyncs ({@link FsyncPolicy#INTERVAL} only), 100 milliseconds by default
+     */
+    @Setter @Accessors(fluent = true)
+    private long fsyncInterval = 100;
+    @Setter @Accessors(fluent = true)
+    private TimeUnit fsyncIntervalUnit = TimeUnit.MILLISECONDS;
+
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private volatile Segment active;
+    private volatile boolean dirty;
+    private ScheduledExecutorService scheduler;
+
+    private FileChannel layoutsChannel;
+    // layouts known to the journal, by their identifiers (order in the layouts file)
+    private final List<LayoutInformation> layouts = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> layoutIds = new ConcurrentHashMap<>();
+    // layouts of entity classes known to the repository
+    private final Map<String, Layout<?>> layoutsByClass = new ConcurrentHashMap<>();
+    private final Map<String, Integer> layoutIdsByClass = new ConcurrentHashMap<>();
+    private final Map<Integer, Layout<?>> layoutsById = new ConcurrentHashMap<>();
+
+    private final Map<Integer, Positions> positions = new ConcurrentHashMap<>();
+    private final Map<String, HybridTimestamp> versions = new ConcurrentHashMap<>();
+    private final Segment.Visitor indexer = new Indexer();
+
+    // batch being journalled
+    private ByteBuffer staging = ByteBuffer.allocate(64 * 1024);
+    // UUIDs of the entities in the batch being journalled
+    private final Set<UUID> staged = new HashSet<>();
+
+    public LogJournal() {
+    }
+
+    public LogJournal(File directory) {
+        this.directory = directory;
+    }
+
+    @Activate
+    protected void activate(ComponentContext ctx) {
+        Dictionary<String, Object> properties = ctx.getProperties();
+        directory = new File(properties.get("directory").toString().trim());
+        if (properties.get("segmentSize") != null) {
+            segmentSize = Integer.parseInt(properties.get("segmentSize").toString().trim());
+        }
+        if (properties.get("fsyncPolicy") != null) {
+            fsyncPolicy = FsyncPolicy.valueOf(properties.get("fsyncPolicy").toString().trim());
+        }
+        if (properties.get("fsyncInterval") != null) {
+            fsyncInterval = Long.parseLong(properties.get("fsyncInterval").toString().trim());
+        }
+    }
+
+    @Override
+    public void setRepository(Repository repository) {
+        this.repository = repository;
+    }
+
+    @Override
+    protected void doStart() {
+        if (repository == null) {
+            notifyFailed(new IllegalStateException("repository == null"));
+            return;
+        }
+        if (directory == null) {
+            notifyFailed(new IllegalStateException("directory == null"));
+            return;
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            notifyFailed(e);
+            return;
+        }
+        repository.getCommands().forEach(new EntityLayoutExtractor());
+        repository.getEvents().forEach(new EntityLayoutExtractor());
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        try {
+            close();
+        } catch (IOException e) {
+            notifyFailed(e);
+            return;
+        }
+        notifyStopped();
+    }
+
+    @Override
+    public void onCommandsAdded(Set<Class<? extends Command>> commands) {
+        commands.forEach(new EntityLayoutExtractor());
+    }
+
+    @Override
+    public void onEventsAdded(Set<Class<? extends Event>> events) {
+        events.forEach(new EntityLayoutExtractor());
+    }
+
+    /**
+     * Opens the log, recovering the last segment
+     */
+    synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        openLayouts();
+        layoutsById.clear();
+        layoutIdsByClass.clear();
+        for (Layout<?> layout : layoutsByClass.values()) {
+            register(layout);
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            if (Segment.number(files[i]) != i) {
+                throw new IOException("Segment " + i + " is missing from " + directory);
+            }
+            Segment segment = Segment.open(directory, i);
+            boolean last = i == files.length - 1;
+            if (!last && Segment.isSealed(directory, i)) {
+                segment.load(directory, indexer);
+            } else {
+                segment.recover(indexer);
+                if (!last) {
+                    segment.seal(directory);
+                }
+            }
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.create(directory, 0, segmentSize));
+        }
+        active = segments.get(segments.size() - 1);
+        startFsync();
+    }
+
+    private void startFsync() {
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("eventsourcing-log-fsync-%d").setDaemon(true).build());
+            scheduler.scheduleWithFixedDelay(this::fsync, fsyncInterval, fsyncInterval, fsyncIntervalUnit);
+        }
+    }
+
+    private void stopFsync() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Closes the log, forcing it to disk
+     */
+    synchronized void close() throws IOException {
+        stopFsync();
+        if (active != null) {
+            active.force();
+        }
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        active = null;
+        positions.clear();
+        versions.clear();
+        if (layoutsChannel != null) {
+            layoutsChannel.close();
+        }
+        layouts.clear();
+        layoutIds.clear();
+    }
+
+    private void fsync() {
+        if (dirty) {
+            dirty = false;
+            try {
+                active.force();
+            } catch (Exception e) {
+                log.error("Log fsync failed", e);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return directory.getPath();
+    }
+
+    @Override @SneakyThrows
+    public TabularData getEntities() {
+        CompositeType propertyType = new CompositeType("Entity Property", "Entity Property",
+                                                       new String[]{"Name", "Type"}, new String[]{"Name", "Type"},
+                                                       new OpenType[]{SimpleType.STRING, SimpleType.STRING});
+        TabularType propertyTabular = new TabularType("Property", "Property", propertyType, new String[]{"Name"});
+        CompositeType compositeType = new CompositeType("Entity", "Entity",
+                                                        new String[]{"Name", "Hash", "Recognized", "Properties"},
+                                                        new String[]{"Name", "Hash", "Recognized", "Properties"},
+                                                        new OpenType[]{SimpleType.STRING, SimpleType.STRING, SimpleType.BOOLEAN, propertyTabular});
+        TabularDataSupport tabular = new TabularDataSupport(
+                new TabularType("Entity", "Journalled entity", compositeType, new String[]{"Name"}));
+        for (int id = 0; id < layouts.size(); id++) {
+            LayoutInformation layoutInformation = layouts.get(id);
+            Map<String, Object> entity = new HashMap<>();
+            entity.put("Name", layoutInformation.className());
+            entity.put("Hash", BaseEncoding.base16().encode(layoutInformation.hash()));
+            entity.put("Recognized", layoutsById.containsKey(id));
+            TabularDataSupport propertyTab = new TabularDataSupport(propertyTabular);
+            for (PropertyInformation propertyInformation : layoutInformation.properties()) {
+                propertyTab.put(new CompositeDataSupport(propertyType, new String[]{"Name", "Type"},
+                                                         new Object[]{propertyInformation.name(),
+                                                                 propertyInformation.type()}));
+            }
+            entity.put("Properties", propertyTab);
+            tabular.put(new CompositeDataSupport(compositeType, entity));
+        }
+        return tabular;
+    }
+
+    @Override
+    public long journal(Command<?, ?> command, Journal.Listener listener, LockProvider lockProvider) throws Exception {
+        return new BatchEntry(command, listener, lockProvider).journal(this);
+    }
+
+    @Override
+    public synchronized void journal(List<? extends BatchEntry> batch) {
+        staging.clear();
+        staged.clear();
+        Map<String, HybridTimestamp> batchVersions = new HashMap<>();
+        List<BatchEntry> committed = new ArrayList<>();
+        for (BatchEntry entry : batch) {
+            Command<?, ?> command = entry.getCommand();
+            Journal.Listener listener = entry.getListener();
+            int savepoint = staging.position();
+            try {
+                entry.setCount(journal(command, listener, entry, null, batchVersions));
+                committed.add(entry);
+            } catch (BatchSplitException e) {
+                staging.position(savepoint);
+                break;
+            } catch (Exception e) {
+                staging.position(savepoint);
+                listener.onAbort(e);
+                entry.setException(e);
+                try {
+                    entry.setCount(journal(command, listener, entry,
+                                           EventStream.of(new CommandTerminatedExceptionally(command.uuid(), e)),
+                                           batchVersions));
+                    committed.add(entry);
+                } catch (Exception e1) {
+                    staging.position(savepoint);
+                    listener.onAbort(e1);
+                    entry.setException(e1);
+                }
+            }
+            entry.setJournalled(true);
+        }
+        try {
+            commit();
+        } catch (Exception e) {
+            for (BatchEntry entry : committed) {
+                entry.getListener().onAbort(e);
+                entry.setException(e);
+            }
+            return;
+        }
+        committed.forEach(entry -> entry.getListener().onCommit());
+    }
+
+    private long journal(Command<?, ?> command, Journal.Listener listener, BatchEntry entry,
+                         EventStream<?> events, Map<String, HybridTimestamp> batchVersions) throws Exception {
+        EventStream<?> actualEvents;
+        Set<Object> keys = Collections.emptySet();
+        // staged along with the entry's records, once all of them are
+        Set<UUID> appended = new HashSet<>();
+
+        if (events == null) {
+            EventStream<?> eventStream = entry.events(repository);
+            Object conflict;
+            while ((conflict = conflict(eventStream, batchVersions)) != null) {
+                eventStream = entry.retry(repository, conflict);
+            }
+            keys = eventStream.getExpectedVersions().keySet();
+            listener.onCommandStateReceived(eventStream.getState());
+            actualEvents = eventStream;
+        } else {
+            actualEvents = events;
+        }
+
+        EventConsumer eventConsumer = new EventConsumer(command, listener, appended);
+        long count = actualEvents.drainTo(event -> {
+            eventConsumer.accept(event);
+            eventConsumer.accept(EventCausalityEstablished.builder()
+                                                          .event(event.uuid())
+                                                          .command(command.uuid())
+                                                          .build());
+        });
+
+        append(Segment.COMMAND, command, appended);
+
+        if (count > 0) {
+            HybridTimestamp timestamp = command.timestamp();
+            for (Object key : keys) {
+                byte[] encodedKey = key.toString().getBytes(StandardCharsets.UTF_8);
+                int length = Segment.VERSION_HEADER_SIZE + encodedKey.length;
+                ensureCapacity(length);
+                staging.putInt(length).put(Segment.VERSION).putLong(timestamp.timestamp()).put(encodedKey);
+                batchVersions.put(key.toString(), timestamp);
+            }
+        }
+
+        staged.addAll(appended);
+        return count;
+    }
+
+    /**
+     * @return the first key which version doesn't match the expected one, or <code>null</code> if all match
+     */
+    private Object conflict(EventStream<?> eventStream, Map<String, HybridTimestamp> batchVersions) {
+        for (Map.Entry<Object, Optional<HybridTimestamp>> expected : eventStream.getExpectedVersions().entrySet()) {
+            String key = expected.getKey().toString();
+            boolean changedInBatch = batchVersions.containsKey(key);
+            HybridTimestamp version = changedInBatch ? batchVersions.get(key) : versions.get(key);
+            if (!Journal.isExpectedVersion(expected.getValue(), version)) {
+                if (changedInBatch) {
+                    // the command couldn't have seen this version, journal it in the next batch
+                    throw new BatchSplitException();
+                }
+                return expected.getKey();
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void append(byte kind, Entity entity, Set<UUID> appended) {
+        UUID uuid = entity.uuid();
+        if (appended.contains(uuid) || staged.contains(uuid) || contains(uuid)) {
+            // journalled already (a republished command, for example), it must not be counted twice
+            return;
+        }
+        appended.add(uuid);
+        int layout = layoutIdsByClass.get(entity.getClass().getName());
+        ObjectSerializer<Entity> serializer = serialization.getSerializer(entity.getClass());
+        int length = Segment.ENTITY_HEADER_SIZE + serializer.size(entity);
+        ensureCapacity(length);
+        int start = staging.position();
+        staging.putInt(length).put(kind)
+               .putLong(entity.uuid().getMostSignificantBits())
+               .putLong(entity.uuid().getLeastSignificantBits())
+               .putInt(layout)
+               .putLong(entity.timestamp().timestamp());
+        serializer.serialize(entity, staging);
+        staging.position(start + length);
+    }
+
+    private void ensureCapacity(int length) {
+        if (staging.remaining() < length) {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(staging.capacity() * 2, staging.position() + length));
+            staging.flip();
+            buffer.put(staging);
+            staging = buffer;
+        }
+    }
+
+    /**
+     * Appends the batch to the log and makes it visible
+     */
+    private void commit() throws IOException {
+        if (staging.position() == 0) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer records = staging.duplicate();
+        records.flip();
+        crc.update(records);
+        ensureCapacity(Segment.COMMIT_SIZE);
+        staging.putInt(Segment.COMMIT_SIZE).put(Segment.COMMIT).putInt((int) crc.getValue());
+        staging.flip();
+
+        int length = staging.remaining();
+        Segment segment = active;
+        if (segment.remaining() < length) {
+            segment.seal(directory);
+            segment = Segment.create(directory, segment.getNumber() + 1, Math.max(segmentSize, length));
+            segments.add(segment);
+            active = segment;
+        }
+        int start = segment.write(staging);
+        if (fsyncPolicy == FsyncPolicy.COMMIT) {
+            try {
+                segment.force();
+            } catch (RuntimeException | Error e) {
+                // the batch, commit record included, is in the mapping already and
+                // would be recovered as committed once written back
+                segment.discard(start + length);
+                throw e;
+            }
+        } else {
+            dirty = true;
+        }
+        segment.commit(start + length, indexer);
+    }
+
+    @Override
+    public Optional<HybridTimestamp> getVersion(Object key) {
+        return Optional.ofNullable(versions.get(key.toString()));
+    }
+
+    @Override
+    public boolean contains(UUID uuid) {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).lookup(uuid) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public <T extends Entity> Optional<T> get(UUID uuid) {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            int offset = segment.lookup(uuid);
+            if (offset >= 0) {
+                return Optional.ofNullable(read(segment, offset, uuid));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Looks all entities up in the indices first and then reads them in the order they were appended in,
+     * so that the log is read sequentially
+     */
+    @Override
+    public <T extends Entity> Map<UUID, T> getAll(Collection<UUID> uuids) {
+        Segment[] segments = this.segments.toArray(new Segment[0]);
+        // segment (upper 32 bits) and offset (lower 32 bits) to UUID
+        SortedMap<Long, UUID> positions = new TreeMap<>();
+        for (UUID uuid : uuids) {
+            for (int i = segments.length - 1; i >= 0; i--) {
+                int offset = segments[i].lookup(uuid);
+                if (offset >= 0) {
+                    positions.put((long) i << 32 | offset, uuid);
+                    break;
+                }
+            }
+        }
+        Map<UUID, T> entities = new HashMap<>();
+        for (Map.Entry<Long, UUID> position : positions.entrySet()) {
+            T entity = read(segments[(int) (position.getKey() >>> 32)], position.getKey().intValue(),
+                            position.getValue());
+            if (entity != null) {
+                entities.put(position.getValue(), entity);
+            }
+        }
+        return entities;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Entity> T read(Segment segment, int offset, UUID uuid) {
+        ByteBuffer record = segment.record(offset);
+        Layout<?> layout = layoutsById.get(record.getInt(offset + Segment.HEADER_SIZE + 16));
+        if (layout == null) {
+            return null;
+        }
+        record.position(offset + Segment.ENTITY_HEADER_SIZE);
+        ObjectDeserializer<?> deserializer = serialization.getDeserializer(layout.getLayoutClass());
+        T entity = (T) deserializer.deserialize(record);
+        entity.uuid(uuid);
+        return entity;
+    }
+
+    @Override
+    public <T extends Command<?, ?>> CloseableIterator<EntityHandle<T>> commandIterator(Class<T> klass) {
+        return new EntityHandleIterator<>(positions(klass));
+    }
+
+    @Override
+    public <T extends Event> CloseableIterator<EntityHandle<T>> eventIterator(Class<T> klass) {
+        return new EntityHandleIterator<>(positions(klass));
+    }
+
+    /**
+     * Reads timestamps from the records' headers, one segment at a time (see {@link TimelineIterator}),
+     * skipping segments with no events within the range
+     */
+    @Override
+    public <T extends Event> CloseableIterator<EntityHandle<T>> eventIterator(Class<T> klass, HybridTimestamp from,
+                                                                               HybridTimestamp to) {
+        long lower = from == null ? 0 : from.timestamp();
+        Positions positions = positions(klass);
+        // size has to be read first, see EntityHandleIterator
+        int size = positions.size;
+        long[] records = positions.positions;
+        List<Segment> range = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (HybridTimestamp.compare(segment.getMaxTimestamp(), lower) >= 0 &&
+                    (to == null || HybridTimestamp.compare(segment.getMinTimestamp(), to.timestamp()) < 0)) {
+                range.add(segment);
+            }
+        }
+        return new TimelineIterator<>(range, segment -> {
+            List<Position> events = new ArrayList<>();
+            // positions are ordered by segment
+            for (int i = firstPosition(records, size, segment.getNumber());
+                 i < size && (int) (records[i] >>> 32) == segment.getNumber(); i++) {
+                int offset = (int) records[i];
+                long timestamp = segment.timestamp(offset);
+                if (HybridTimestamp.compare(timestamp, lower) >= 0 &&
+                        (to == null || HybridTimestamp.compare(timestamp, to.timestamp()) < 0)) {
+                    events.add(new Position(timestamp, segment.uuid(offset)));
+                }
+            }
+            return events;
+        });
+    }
+
+    /**
+     * @return index of the first position in the segment (or <code>size</code> if there are none)
+     */
+    private static int firstPosition(long[] positions, int size, int segment) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if ((int) (positions[mid] >>> 32) < segment) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads timestamps from the records' headers, one segment at a time (see {@link TimelineIterator}),
+     * skipping segments with no entities after the position
+     */
+    @Override
+    public CloseableIterator<EntityHandle<Entity>> iterator(Position from) {
+        List<Segment> range = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (HybridTimestamp.compare(segment.getMaxTimestamp(), from.getTimestamp()) >= 0) {
+                range.add(segment);
+            }
+        }
+        return new TimelineIterator<>(range, segment -> {
+            List<Position> entities = new ArrayList<>();
+            segment.entities(offset -> {
+                Position position = new Position(segment.timestamp(offset), segment.uuid(offset));
+                if (position.compareTo(from) > 0) {
+                    entities.add(position);
+                }
+            });
+            return entities;
+        });
+    }
+
+    private Positions positions(Class<?> klass) {
+        Integer layout = layoutIdsByClass.get(klass.getName());
+        Positions positions = layout == null ? null : this.positions.get(layout);
+        return positions == null ? Positions.EMPTY : positions;
+    }
+
+    /**
+     * Removes all segments. Layouts are kept.
+     */
+    @Override @SneakyThrows
+    public synchronized void clear() {
+        stopFsync();
+        for (Segment segment : segments) {
+            segment.close();
+            Segment.file(directory, segment.getNumber(), "log").delete();
+            Segment.file(directory, segment.getNumber(), "idx").delete();
+        }
+        segments.clear();
+        positions.clear();
+        versions.clear();
+        segments.add(Segment.create(directory, 0, segmentSize));
+        active = segments.get(0);
+        startFsync();
+    }
+
+    @Override
+    public <T extends Entity> long size(Class<T> klass) {
+        return positions(klass).size;
+    }
+
+    @Override
+    public <T extends Entity> boolean isEmpty(Class<T> klass) {
+        return size(klass) == 0;
+    }
+
+    private void openLayouts() throws IOException {
+        layoutsChannel = new RandomAccessFile(new File(directory, "layouts"), "rw").getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate((int) layoutsChannel.size());
+        while (buffer.hasRemaining() && layoutsChannel.read(buffer) >= 0) {
+        }
+        buffer.flip();
+        ObjectDeserializer<LayoutInformation> deserializer = serialization.getDeserializer(LayoutInformation.class);
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length <= 0 || length > buffer.remaining() - 4) {
+                break;
+            }
+            buffer.position(buffer.position() + 4);
+            ByteBuffer record = buffer.slice();
+            record.limit(length);
+            LayoutInformation layoutInformation = deserializer.deserialize(record);
+            layoutIds.put(BaseEncoding.base16().encode(layoutInformation.hash()), layouts.size());
+            layouts.add(layoutInformation);
+            buffer.position(buffer.position() + length);
+        }
+        // discard an incomplete layout record
+        layoutsChannel.truncate(buffer.position());
+        layoutsChannel.position(buffer.position());
+    }
+
+    /**
+     * Assigns an identifier to a layout, adding it to the layouts file if it's not there yet
+     */
+    private synchronized void register(Layout<?> layout) throws IOException {
+        String encodedHash = BaseEncoding.base16().encode(layout.getHash());
+        Integer id = layoutIds.get(encodedHash);
+        if (id == null) {
+            List<PropertyInformation> properties = layout.getProperties().stream()
+                    .map(property -> new PropertyInformation(property.getName(), property.getType()
+                                                                                        .getBriefDescription()))
+                    .collect(Collectors.toList());
+            id = addLayout(new LayoutInformation(layout.getHash(), layout.getLayoutClass().getName(), properties));
+        }
+        layoutsById.put(id, layout);
+        layoutIdsByClass.put(layout.getLayoutClass().getName(), id);
+    }
+
+    private int addLayout(LayoutInformation layoutInformation) throws IOException {
+        String encodedHash = BaseEncoding.base16().encode(layoutInformation.hash());
+        ByteBuffer payload = serialization.getSerializer(LayoutInformation.class).serialize(layoutInformation);
+        payload.rewind();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + payload.remaining());
+        buffer.putInt(payload.remaining()).put(payload).flip();
+        while (buffer.hasRemaining()) {
+            layoutsChannel.write(buffer);
+        }
+        layoutsChannel.force(true);
+        int id = layouts.size();
+        layouts.add(layoutInformation);
+        layoutIds.put(encodedHash, id);
+        return id;
+    }
+
+    @Accessors(fluent = true)
+    public static class PropertyInformation {
+        @Getter
+        private final String name;
+
+        @Getter
+        private final String type;
+
+        public PropertyInformation(String name, String type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    @Accessors(fluent = true)
+    public static class LayoutInformation {
+        @Getter
+        private final byte[] hash;
+
+        @Getter
+        private final String className;
+        @Getter
+        private final List<PropertyInformation> properties;
+
+        public LayoutInformation(byte[] hash, String className,
+                                 List<PropertyInformation> properties) {
+            this.hash = hash;
+            this.className = className;
+            this.properties = properties;
+        }
+    }
+
+    private class EntityLayoutExtractor implements Consumer<Class<? extends Entity>> {
+
+        @Override
+        @SneakyThrows
+        public void accept(Class<? extends Entity> aClass) {
+            Layout<? extends Entity> layout = Layout.forClass(aClass);
+            layoutsByClass.put(aClass.getName(), layout);
+            register(layout);
+        }
+
+    }
+
+    /**
+     * Indexes committed records
+     */
+    private class Indexer implements Segment.Visitor {
+
+        @Override
+        public void entity(Segment segment, int offset, int layout) {
+            positions.computeIfAbsent(layout, k -> new Positions()).add((long) segment.getNumber() << 32 | offset);
+        }
+
+        @Override
+        public void version(String key, long timestamp) {
+            versions.put(key, new HybridTimestamp(null, timestamp));
+        }
+    }
+
+    /**
+     * Positions (segment number in the upper 32 bits, offset in the lower ones) of entities
+     * of one layout, in the order they were journalled in. Appended to by one thread at a time,
+     * can be read concurrently.
+     */
+    private static class Positions {
+        private static final Positions EMPTY = new Positions();
+
+        private long[] positions = new long[16];
+        private volatile int size;
+
+        private void add(long position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size] = position;
+            size++;
+        }
+    }
+
+    private class EntityHandleIterator<T extends Entity> implements CloseableIterator<EntityHandle<T>> {
+        private final long[] positions;
+        private final int size;
+        private int index;
+
+        private EntityHandleIterator(Positions positions) {
+            // size has to be read first, positions are copied to a larger array before it grows
+            this.size = positions.size;
+            this.positions = positions.positions;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < size;
+        }
+
+        @Override
+        public EntityHandle<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            long position = positions[index++];
+            ByteBuffer record = segments.get((int) (position >>> 32)).record((int) position);
+            int offset = (int) position + Segment.HEADER_SIZE;
+            return new JournalEntityHandle<>(LogJournal.this, new UUID(record.getLong(offset),
+                                                                       record.getLong(offset + 8)));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Iterates entities of segments in timestamp order without sorting all of them up front. Timestamps
+     * of segments overlap (a batch can be committed after one with later timestamps), so entities
+     * of segments are merged, but a segment is only read (and its entities sorted) once the merge reaches
+     * its earliest timestamp. Typically, that keeps no more than a couple of segments' entities in memory.
+     */
+    private class TimelineIterator<T extends Entity> implements CloseableIterator<EntityHandle<T>> {
+        // segments not read yet, by their earliest timestamps
+        private final Deque<Segment> pending;
+        // positions of the entities to iterate in a segment
+        private final Function<Segment, List<Position>> reader;
+        private final PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+
+        private TimelineIterator(List<Segment> segments, Function<Segment, List<Position>> reader) {
+            segments.sort((s1, s2) -> HybridTimestamp.compare(s1.getMinTimestamp(), s2.getMinTimestamp()));
+            this.pending = new ArrayDeque<>(segments);
+            this.reader = reader;
+        }
+
+        private void read() {
+            while (!pending.isEmpty() &&
+                    (cursors.isEmpty() || HybridTimestamp.compare(pending.peekFirst().getMinTimestamp(),
+                                                                  cursors.peek().current().getTimestamp()) <= 0)) {
+                List<Position> positions = reader.apply(pending.pollFirst());
+                if (!positions.isEmpty()) {
+                    Collections.sort(positions);
+                    cursors.add(new Cursor(positions));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            read();
+            return !cursors.isEmpty();
+        }
+
+        @Override
+        public EntityHandle<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Cursor cursor = cursors.poll();
+            Position position = cursor.current();
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+            return new JournalEntityHandle<>(LogJournal.this, position.getUuid());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class Cursor implements Comparable<Cursor> {
+        private final List<Position> positions;
+        private int index;
+
+        private Cursor(List<Position> positions) {
+            this.positions = positions;
+        }
+
+        private Position current() {
+            return positions.get(index);
+        }
+
+        /**
+         * @return false if there are no more positions
+         */
+        private boolean advance() {
+            return ++index < positions.size();
+        }
+
+        @Override
+        public int compareTo(Cursor o) {
+            return current().compareTo(o.current());
+        }
+    }
+
+    private class EventConsumer implements EventSink {
+        private final HybridTimestamp.Reservation ts;
+        private final Journal.Listener listener;
+        private final Set<UUID> appended;
+
+        private EventConsumer(Command<?, ?> command, Journal.Listener listener, Set<UUID> appended) {
+            this.listener = listener;
+            this.appended = appended;
+            this.ts = command.timestamp().clone().reservation();
+        }
+
+        @Override
+        public void accept(Event event) {
+            if (event.timestamp() == null) {
+                event.timestamp(ts.next());
+            } else {
+                ts.update(event.timestamp());
+            }
+            append(Segment.EVENT, event, appended);
+            listener.onEvent(event);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.log;
+
+import com.eventsourcing.hlc.HybridTimestamp;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Segment of {@link LogJournal}'s log: a memory-mapped file records are appended to.
+ * <p>
+ * Records are appended in batches, every batch ends with a commit record holding
+ * the CRC32 checksum of the batch, so that an incomplete batch can be detected and discarded
+ * after a crash. A batch never spans segments.
+ * <p>
+ * Once full, a segment is sealed: its index (UUID to offset, sorted by UUID), the versions
+ * of keys set in it and the earliest and latest timestamps of its entities are written next to it, into
+ * an <code>.idx</code> file, which is searched in place from then on, so that sealed segments
+ * don't have to be scanned when the journal is opened.
+ */
+class Segment {
+
+    static final byte COMMAND = 1;
+    static final byte EVENT = 2;
+    static final byte VERSION = 3;
+    static final byte COMMIT = 4;
+
+    // length (4) + kind (1)
+    static final int HEADER_SIZE = 5;
+    // header + UUID (16) + layout (4) + timestamp (8)
+    static final int ENTITY_HEADER_SIZE = HEADER_SIZE + 28;
+    // header + timestamp (8)
+    static final int VERSION_HEADER_SIZE = HEADER_SIZE + 8;
+    // header + CRC32 (4)
+    static final int COMMIT_SIZE = HEADER_SIZE + 4;
+
+    // UUID (16) + offset (4) + layout (4)
+    private static final int INDEX_ENTRY_SIZE = 24;
+
+    private static final Funnel<UUID> UUID_FUNNEL = (uuid, into) -> into.putLong(uuid.getMostSignificantBits())
+                                                                        .putLong(uuid.getLeastSignificantBits());
+
+    /**
+     * Receives records of committed batches
+     */
+    interface Visitor {
+        void entity(Segment segment, int offset, int layout);
+
+        void version(String key, long timestamp);
+    }
+
+    @Getter
+    private final int number;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    // end of the committed records
+    private volatile int position;
+
+    // UUID to offset (upper 32 bits) and layout (lower 32 bits), until sealed
+    private final Map<UUID, Long> offsets = new ConcurrentHashMap<>();
+    // versions of keys set in this segment, until sealed
+    private final Map<String, Long> versions = new HashMap<>();
+    /**
+     * Earliest timestamp of the entities in this segment (unsigned maximum if there are none)
+     */
+    @Getter
+    private volatile long minTimestamp = -1L;
+    /**
+     * Latest timestamp of the entities in this segment (0 if there are none)
+     */
+    @Getter
+    private volatile long maxTimestamp;
+
+    // once sealed
+    private volatile ByteBuffer index;
+    private int entries;
+    private BloomFilter<UUID> filter;
+
+    private Segment(int number, FileChannel channel, int capacity) throws IOException {
+        this.number = number;
+        this.channel = channel;
+        this.capacity = capacity;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Creates a new, empty segment
+     */
+    static Segment create(File directory, int number, int capacity) throws IOException {
+        FileChannel channel = new RandomAccessFile(file(directory, number, "log"), "rw").getChannel();
+        return new Segment(number, channel, capacity);
+    }
+
+    /**
+     * Opens an existing segment. Its records are not read until either {@link #load(File, Visitor)}
+     * or {@link #recover(Visitor)} is called.
+     */
+    static Segment open(File directory, int number) throws IOException {
+        FileChannel channel = new RandomAccessFile(file(directory, number, "log"), "rw").getChannel();
+        return new Segment(number, channel, (int) channel.size());
+    }
+
+    static File file(File directory, int number, String extension) {
+        return new File(directory, String.format("%016x.%s", number, extension));
+    }
+
+    static int number(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(0, name.indexOf('.')), 16);
+    }
+
+    /**
+     * @return true if the segment was sealed and its index has been written
+     */
+    static boolean isSealed(File directory, int number) {
+        return file(directory, number, "idx").exists();
+    }
+
+    int remaining() {
+        return capacity - position;
+    }
+
+    /**
+     * Writes records after the committed ones. They are not committed
+     * until {@link #commit(int, Visitor)} is called.
+     *
+     * @return offset the records were written at
+     */
+    int write(ByteBuffer records) {
+        ByteBuffer buffer = this.buffer.duplicate();
+        buffer.position(position);
+        buffer.put(records);
+        return position;
+    }
+
+    /**
+     * Commits records written with {@link #write(ByteBuffer)}, indexing them
+     *
+     * @param end end of the written records
+     */
+    void commit(int end, Visitor visitor) {
+        // indexed before entities() can see them
+        visit(position, end, visitor);
+        position = end;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Discards records written with {@link #write(ByteBuffer)} but not committed
+     *
+     * @param end end of the written records
+     */
+    void discard(int end) {
+        zero(position, end);
+    }
+
+    /**
+     * Zeroes a range out, skipping the bytes that are zero already (so that
+     * untouched pages of the mapping are not dirtied)
+     */
+    private void zero(int start, int end) {
+        int i = start;
+        for (; i < end && (i & 7) != 0; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        for (; i + 8 <= end; i += 8) {
+            if (buffer.getLong(i) != 0) {
+                buffer.putLong(i, 0);
+            }
+        }
+        for (; i < end; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * @return buffer positioned at the record, limited to it
+     */
+    ByteBuffer record(int offset) {
+        ByteBuffer buffer = this.buffer.duplicate();
+        buffer.limit(offset + buffer.getInt(offset));
+        buffer.position(offset);
+        return buffer;
+    }
+
+    /**
+     * @return UUID of the entity in the record
+     */
+    UUID uuid(int offset) {
+        return new UUID(buffer.getLong(offset + HEADER_SIZE), buffer.getLong(offset + HEADER_SIZE + 8));
+    }
+
+    /**
+     * @return timestamp of the entity in the record
+     */
+    long timestamp(int offset) {
+        return buffer.getLong(offset + HEADER_SIZE + 20);
+    }
+
+    /**
+     * Passes offsets of committed entity records to a consumer, in the order they were appended in
+     */
+    void entities(IntConsumer consumer) {
+        int end = position;
+        int offset = 0;
+        int length;
+        // the rest of a sealed segment is zeroed out
+        while (offset < end && (length = buffer.getInt(offset)) > 0) {
+            byte kind = buffer.get(offset + 4);
+            if (kind == COMMAND || kind == EVENT) {
+                consumer.accept(offset);
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * @return offset of the entity's record, or -1 if it is not in this segment
+     */
+    int lookup(UUID uuid) {
+        Long offset = offsets.get(uuid);
+        if (offset != null) {
+            return (int) (offset >>> 32);
+        }
+        ByteBuffer index = this.index;
+        if (index == null || !filter.mightContain(uuid)) {
+            return -1;
+        }
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        int low = 0;
+        int high = entries - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = 4 + mid * INDEX_ENTRY_SIZE;
+            int comparison = Long.compare(index.getLong(entry), msb);
+            if (comparison == 0) {
+                comparison = Long.compare(index.getLong(entry + 8), lsb);
+            }
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                return index.getInt(entry + 16);
+            }
+        }
+        return -1;
+    }
+
+    private void visit(int start, int end, Visitor visitor) {
+        ByteBuffer buffer = this.buffer.duplicate();
+        int offset = start;
+        while (offset < end) {
+            int length = buffer.getInt(offset);
+            byte kind = buffer.get(offset + 4);
+            if (kind == COMMAND || kind == EVENT) {
+                UUID uuid = new UUID(buffer.getLong(offset + HEADER_SIZE), buffer.getLong(offset + HEADER_SIZE + 8));
+                int layout = buffer.getInt(offset + HEADER_SIZE + 16);
+                long timestamp = buffer.getLong(offset + HEADER_SIZE + 20);
+                if (HybridTimestamp.compare(timestamp, minTimestamp) < 0) {
+                    minTimestamp = timestamp;
+                }
+                if (HybridTimestamp.compare(timestamp, maxTimestamp) > 0) {
+                    maxTimestamp = timestamp;
+                }
+                offsets.put(uuid, (long) offset << 32 | layout & 0xFFFFFFFFL);
+                visitor.entity(this, offset, layout);
+            } else if (kind == VERSION) {
+                long timestamp = buffer.getLong(offset + HEADER_SIZE);
+                byte[] key = new byte[length - VERSION_HEADER_SIZE];
+                buffer.position(offset + VERSION_HEADER_SIZE);
+                buffer.get(key);
+                String encodedKey = new String(key, StandardCharsets.UTF_8);
+                versions.put(encodedKey, timestamp);
+                visitor.version(encodedKey, timestamp);
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * Reads the records of an unsealed segment, discarding the last batch if it is incomplete
+     * or corrupted (and all records after it)
+     */
+    void recover(Visitor visitor) {
+        ByteBuffer buffer = this.buffer.duplicate();
+        CRC32 crc = new CRC32();
+        int batch = 0;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= capacity) {
+            int length = buffer.getInt(offset);
+            if (length < HEADER_SIZE || length > capacity - offset) {
+                break;
+            }
+            if (buffer.get(offset + 4) == COMMIT) {
+                if (length != COMMIT_SIZE) {
+                    break;
+                }
+                crc.reset();
+                buffer.limit(offset).position(batch);
+                crc.update(buffer);
+                buffer.limit(capacity);
+                if ((int) crc.getValue() != buffer.getInt(offset + HEADER_SIZE)) {
+                    break;
+                }
+                offset += length;
+                commit(offset, visitor);
+                batch = offset;
+            } else {
+                offset += length;
+            }
+        }
+        // zero the discarded records out so that they are not mistaken for committed ones later,
+        // up to the end of the segment, as pages after the first bad record could have been written
+        // back while the ones before it were not
+        zero(batch, capacity);
+    }
+
+    /**
+     * Seals the segment: forces it to disk, writes its index and starts using it
+     */
+    void seal(File directory) throws IOException {
+        if (index != null) {
+            return;
+        }
+        force();
+        List<Map.Entry<UUID, Long>> entries = new ArrayList<>(offsets.entrySet());
+        entries.sort(Map.Entry.comparingByKey());
+        List<byte[]> keys = new ArrayList<>(versions.size());
+        int size = 4 + entries.size() * INDEX_ENTRY_SIZE + 4 + 16;
+        for (String key : versions.keySet()) {
+            byte[] encodedKey = key.getBytes(StandardCharsets.UTF_8);
+            keys.add(encodedKey);
+            size += 4 + encodedKey.length + 8;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(entries.size());
+        for (Map.Entry<UUID, Long> entry : entries) {
+            buffer.putLong(entry.getKey().getMostSignificantBits());
+            buffer.putLong(entry.getKey().getLeastSignificantBits());
+            buffer.putLong(entry.getValue());
+        }
+        buffer.putInt(keys.size());
+        Iterator<Long> timestamps = versions.values().iterator();
+        for (byte[] key : keys) {
+            buffer.putInt(key.length);
+            buffer.put(key);
+            buffer.putLong(timestamps.next());
+        }
+        buffer.putLong(minTimestamp);
+        buffer.putLong(maxTimestamp);
+        buffer.flip();
+
+        File temporary = file(directory, number, "idx.tmp");
+        try (FileChannel channel = new RandomAccessFile(temporary, "rw").getChannel()) {
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary.toPath(), file(directory, number, "idx").toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        load(directory, null);
+        offsets.clear();
+        versions.clear();
+    }
+
+    /**
+     * Loads the index of a sealed segment
+     *
+     * @param visitor receives the segment's records (without payloads) in their order, or <code>null</code>
+     */
+    void load(File directory, Visitor visitor) throws IOException {
+        ByteBuffer index;
+        try (FileChannel channel = new RandomAccessFile(file(directory, number, "idx"), "r").getChannel()) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int entries = index.getInt(0);
+        BloomFilter<UUID> filter = BloomFilter.create(UUID_FUNNEL, Math.max(entries, 1), 0.01);
+        long[] records = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            int entry = 4 + i * INDEX_ENTRY_SIZE;
+            filter.put(new UUID(index.getLong(entry), index.getLong(entry + 8)));
+            records[i] = index.getLong(entry + 16);
+        }
+        if (visitor != null) {
+            // offsets are in the upper bits, so records are sorted in the order they were appended in
+            Arrays.sort(records);
+            for (long record : records) {
+                visitor.entity(this, (int) (record >>> 32), (int) record);
+            }
+            ByteBuffer buffer = index.duplicate();
+            buffer.position(4 + entries * INDEX_ENTRY_SIZE);
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[buffer.getInt()];
+                buffer.get(key);
+                visitor.version(new String(key, StandardCharsets.UTF_8), buffer.getLong());
+            }
+        }
+        this.minTimestamp = index.getLong(index.limit() - 16);
+        this.maxTimestamp = index.getLong(index.limit() - 8);
+        this.entries = entries;
+        this.filter = filter;
+        this.position = capacity;
+        this.index = index;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+}
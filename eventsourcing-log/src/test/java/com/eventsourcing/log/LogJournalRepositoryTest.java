@@ -0,0 +1,29 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.log;
+
+import com.eventsourcing.RepositoryTest;
+import com.eventsourcing.repository.Journal;
+import com.eventsourcing.repository.RepositoryImpl;
+import lombok.SneakyThrows;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+
+@Test
+public class LogJournalRepositoryTest extends RepositoryTest<RepositoryImpl> {
+    public LogJournalRepositoryTest() {
+        super(new RepositoryImpl());
+    }
+
+    @Override @SneakyThrows
+    protected Journal createJournal() {
+        return new LogJournal(Files.createTempDirectory("LogJournalRepositoryTest").toFile())
+                .fsyncPolicy(LogJournal.FsyncPolicy.INTERVAL);
+    }
+}
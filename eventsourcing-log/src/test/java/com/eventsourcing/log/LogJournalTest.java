@@ -0,0 +1,29 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.log;
+
+import com.eventsourcing.JournalTest;
+import lombok.SneakyThrows;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+@Test
+public class LogJournalTest extends JournalTest<LogJournal> {
+
+    public LogJournalTest() {
+        super(new LogJournal(createDirectory()));
+    }
+
+    @SneakyThrows
+    private static File createDirectory() {
+        return Files.createTempDirectory("LogJournalTest").toFile();
+    }
+
+}
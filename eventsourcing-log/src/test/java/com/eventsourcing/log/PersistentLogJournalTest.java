@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.log;
+
+import com.eventsourcing.Entity;
+import com.eventsourcing.EntityHandle;
+import com.eventsourcing.PersistentJournalTest;
+import com.eventsourcing.hlc.HybridTimestamp;
+import com.eventsourcing.repository.Journal;
+import com.google.common.collect.Iterators;
+import com.googlecode.cqengine.index.support.CloseableIterator;
+import lombok.SneakyThrows;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.testng.Assert.*;
+
+public class PersistentLogJournalTest extends PersistentJournalTest<LogJournal> {
+
+    private final File directory;
+
+    public PersistentLogJournalTest() {
+        super(new LogJournal(createDirectory()).segmentSize(16 * 1024));
+        directory = journal.getDirectory();
+    }
+
+    @SneakyThrows
+    private static File createDirectory() {
+        return Files.createTempDirectory("PersistentLogJournalTest").toFile();
+    }
+
+    @Override @SneakyThrows
+    public void reopen() {
+        journal.close();
+        journal.setDirectory(directory);
+        journal.open();
+    }
+
+    @Override @SneakyThrows
+    public void reopenAnother() {
+        journal.close();
+        journal.setDirectory(createDirectory());
+        journal.open();
+    }
+
+    @AfterClass
+    @Override
+    public void tearDownEnv() throws Exception {
+        super.tearDownEnv();
+        Files.walk(directory.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    private TestCommand journal() throws Exception {
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        TestCommand command = TestCommand.builder().events(true).build();
+        journal.journal(command.timestamp(timestamp));
+        return command;
+    }
+
+    @Test
+    @SneakyThrows
+    public void segments() {
+        List<TestCommand> commands = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            commands.add(journal());
+        }
+        assertTrue(Segment.isSealed(directory, 0));
+        assertTrue(Segment.isSealed(directory, 1));
+
+        reopen();
+
+        for (TestCommand command : commands) {
+            assertTrue(journal.get(command.uuid()).isPresent());
+        }
+        assertEquals(journal.size(TestCommand.class), 500);
+        assertEquals(journal.size(TestEvent.class), 500);
+        try (CloseableIterator<EntityHandle<TestCommand>> iterator = journal.commandIterator(TestCommand.class)) {
+            assertEquals(iterator.next().uuid(), commands.get(0).uuid());
+            assertEquals(Iterators.size(iterator), 499);
+        }
+
+        // the journal keeps appending to the last segment
+        TestCommand command = journal();
+        reopen();
+        assertTrue(journal.get(command.uuid()).isPresent());
+    }
+
+    @Test
+    @SneakyThrows
+    public void republishing() {
+        TestCommand command = journal();
+        journal.journal(command);
+        // enough for the command's segment to be sealed
+        for (int i = 0; i < 500; i++) {
+            journal();
+        }
+        assertTrue(Segment.isSealed(directory, 0));
+        assertEquals(journal.size(TestCommand.class), 501);
+        try (CloseableIterator<EntityHandle<TestCommand>> iterator = journal.commandIterator(TestCommand.class)) {
+            assertEquals(Iterators.size(iterator), 501);
+        }
+
+        reopen();
+
+        assertEquals(journal.size(TestCommand.class), 501);
+        try (CloseableIterator<EntityHandle<TestCommand>> iterator = journal.commandIterator(TestCommand.class)) {
+            assertEquals(Iterators.size(iterator), 501);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void timeline() {
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        List<UUID> commands = new ArrayList<>();
+        // journalled in the reverse order of their timestamps, so that the segments' timestamps interleave
+        for (int i = 500; i > 0; i--) {
+            TestCommand command = TestCommand.builder().build();
+            journal.journal(command.timestamp(new HybridTimestamp(timeProvider,
+                                                                  timestamp.timestamp() + ((long) i << 32))));
+            commands.add(0, command.uuid());
+        }
+        assertTrue(Segment.isSealed(directory, 0));
+
+        reopen();
+
+        List<UUID> iterated = new ArrayList<>();
+        try (CloseableIterator<EntityHandle<Entity>> iterator = journal.iterator(Journal.Position.START)) {
+            iterator.forEachRemaining(handle -> iterated.add(handle.uuid()));
+        }
+        assertEquals(iterated, commands);
+
+        Journal.Position position = Journal.Position.of(journal.get(commands.get(99)).get());
+        try (CloseableIterator<EntityHandle<Entity>> iterator = journal.iterator(position)) {
+            assertEquals(iterator.next().uuid(), commands.get(100));
+            assertEquals(Iterators.size(iterator), 399);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void recovery() {
+        TestCommand command = journal();
+        File file = Segment.file(directory, 0, "log");
+        int end = end(file);
+        TestCommand corrupted = journal();
+        assertTrue(end(file) > end);
+        journal.close();
+
+        try (RandomAccessFile segment = new RandomAccessFile(file, "rw")) {
+            segment.seek(end + Segment.ENTITY_HEADER_SIZE);
+            int value = segment.read();
+            segment.seek(end + Segment.ENTITY_HEADER_SIZE);
+            segment.write(value ^ 0xFF);
+        }
+        journal.open();
+
+        assertTrue(journal.get(command.uuid()).isPresent());
+        assertFalse(journal.get(corrupted.uuid()).isPresent());
+        assertEquals(journal.size(TestCommand.class), 1);
+        assertEquals(end(file), end);
+
+        TestCommand next = journal();
+        reopen();
+        assertTrue(journal.get(command.uuid()).isPresent());
+        assertTrue(journal.get(next.uuid()).isPresent());
+        Optional<TestCommand> entity = journal.get(next.uuid());
+        assertEquals(entity.get().uuid(), next.uuid());
+    }
+
+    @Test
+    @SneakyThrows
+    public void recoveryDiscardsTail() {
+        TestCommand command = journal();
+        File file = Segment.file(directory, 0, "log");
+        int end = end(file);
+        journal.close();
+
+        // a torn write back: records past the end of the committed ones, but not right after them
+        try (RandomAccessFile segment = new RandomAccessFile(file, "rw")) {
+            segment.seek(end + 1024);
+            segment.writeInt(Segment.COMMIT_SIZE);
+            segment.write(Segment.COMMIT);
+        }
+        journal.open();
+
+        assertTrue(journal.get(command.uuid()).isPresent());
+        assertTrue(zeroedOut(file, end));
+    }
+
+    /**
+     * @return true if a segment file has nothing but zeroes from an offset on
+     */
+    @SneakyThrows
+    private static boolean zeroedOut(File file, int offset) {
+        try (RandomAccessFile segment = new RandomAccessFile(file, "r")) {
+            segment.seek(offset);
+            int b;
+            while ((b = segment.read()) != -1) {
+                if (b != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return offset of the first zero record length in a segment file
+     */
+    @SneakyThrows
+    private static int end(File file) {
+        try (RandomAccessFile segment = new RandomAccessFile(file, "r")) {
+            int offset = 0;
+            int length;
+            while (offset < segment.length() - 4) {
+                segment.seek(offset);
+                if ((length = segment.readInt()) == 0) {
+                    break;
+                }
+                offset += length;
+            }
+            return offset;
+        }
+    }
+
+}
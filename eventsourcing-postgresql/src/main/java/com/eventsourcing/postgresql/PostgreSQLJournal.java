@@ -19,6 +19,7 @@ import com.eventsourcing.repository.Journal;
 import com.eventsourcing.repository.JournalEntityHandle;
 import com.eventsourcing.repository.LockProvider;
 import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
 import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.AbstractService;
 import com.googlecode.cqengine.index.support.CloseableIterator;
@@ -42,7 +43,6 @@ import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 @Component(property = "type=PostgreSQLJournal")
 public class PostgreSQLJournal extends AbstractService implements Journal {
@@ -74,66 +74,181 @@ public class PostgreSQLJournal extends AbstractService implements Journal {
         events.forEach(new LayoutExtractor());
     }
 
-    @Override @SuppressWarnings("unchecked")
+    @Override
     public long journal(Command<?, ?> command, Journal.Listener listener, LockProvider lockProvider) throws Exception {
-        return journal(command, listener, lockProvider, null);
+        return new BatchEntry(command, listener, lockProvider).journal(this);
     }
 
-    private long journal(Command<?, ?> command, Journal.Listener listener, LockProvider lockProvider, Stream<? extends
-            Event> events)
-            throws Exception {
+    @SneakyThrows
+    @Override public void journal(List<? extends BatchEntry> batch) {
         Connection connection = dataSource.getConnection();
         connection.setAutoCommit(false);
-        Savepoint savepoint = connection.setSavepoint();
+        List<BatchEntry> committed = new ArrayList<>();
+        Set<String> versions = new HashSet<>();
+        // number of entities journalled, by layout hash (sorted, so that concurrent
+        // transactions lock counts in the same order)
+        Map<String, Long> counts = new TreeMap<>();
         try {
-
-            Stream<? extends Event> actualEvents;
-
-            if (events == null) {
-                EventStream<?> eventStream = command.events(repository, lockProvider);
-                listener.onCommandStateReceived(eventStream.getState());
-                actualEvents = eventStream.getStream();
-            } else {
-                actualEvents = events;
+            for (BatchEntry entry : batch) {
+                Command<?, ?> command = entry.getCommand();
+                Journal.Listener listener = entry.getListener();
+                Savepoint savepoint = connection.setSavepoint();
+                Map<String, Long> entryCounts = new HashMap<>();
+                try {
+                    entry.setCount(journal(connection, command, listener, entry, null, versions, entryCounts));
+                    committed.add(entry);
+                } catch (BatchSplitException e) {
+                    connection.rollback(savepoint);
+                    break;
+                } catch (Exception e) {
+                    connection.rollback(savepoint);
+                    listener.onAbort(e);
+                    entry.setException(e);
+                    entryCounts.clear();
+                    try {
+                        entry.setCount(journal(connection, command, listener, entry,
+                                               EventStream.of(new CommandTerminatedExceptionally(command.uuid(), e)),
+                                               versions, entryCounts));
+                        committed.add(entry);
+                    } catch (Exception e1) {
+                        connection.rollback(savepoint);
+                        listener.onAbort(e1);
+                        entry.setException(e1);
+                        entryCounts.clear();
+                    }
+                } finally {
+                    connection.releaseSavepoint(savepoint);
+                }
+                entryCounts.forEach((hash, count) -> counts.merge(hash, count, Long::sum));
+                entry.setJournalled(true);
             }
-
-            EventConsumer eventConsumer = new EventConsumer(connection, command, listener);
-            long count = actualEvents.peek(new Consumer<Event>() {
-                @Override public void accept(Event event) {
-                    eventConsumer.accept(event);
-                    eventConsumer.accept(EventCausalityEstablished.builder()
-                                                                  .event(event.uuid())
-                                                                  .command(command.uuid())
-                                                                  .build());
+            // counts are updated last, so that their rows are locked for as short as possible
+            try (PreparedStatement s = connection.prepareStatement(
+                    "INSERT INTO eventsourcing.counts (layout, count) VALUES (?, ?) " +
+                    "ON CONFLICT (layout) DO UPDATE SET count = counts.count + EXCLUDED.count")) {
+                for (Map.Entry<String, Long> count : counts.entrySet()) {
+                    s.setBytes(1, BaseEncoding.base16().decode(count.getKey()));
+                    s.setLong(2, count.getValue());
+                    s.addBatch();
                 }
-            }).count();
-
-            Layout layout = layoutsByClass.get(command.getClass().getName());
-            String encoded = BaseEncoding.base16().encode(layout.getHash());
-            insertFunctions.get(encoded).apply(command, connection);
-
-            connection.releaseSavepoint(savepoint);
+                s.executeBatch();
+            }
             connection.commit();
+        } catch (Exception e) {
+            connection.rollback();
+            for (BatchEntry entry : committed) {
+                entry.getListener().onAbort(e);
+                entry.setException(e);
+            }
+            return;
+        } finally {
             connection.close();
+        }
+        committed.forEach(entry -> entry.getListener().onCommit());
+    }
 
-            listener.onCommit();
+    private long journal(Connection connection, Command<?, ?> command, Journal.Listener listener,
+                         BatchEntry entry, EventStream<?> events,
+                         Set<String> batchVersions, Map<String, Long> counts) throws Exception {
+        EventStream<?> actualEvents;
+        Set<Object> keys = Collections.emptySet();
+
+        if (events == null) {
+            EventStream<?> eventStream = entry.events(repository);
+            Object conflict;
+            while ((conflict = conflict(connection, eventStream, batchVersions)) != null) {
+                eventStream = entry.retry(repository, conflict);
+            }
+            keys = eventStream.getExpectedVersions().keySet();
+            listener.onCommandStateReceived(eventStream.getState());
+            actualEvents = eventStream;
+        } else {
+            actualEvents = events;
+        }
 
-            return count;
-        } catch (Exception e) {
-            connection.rollback(savepoint);
-            connection.releaseSavepoint(savepoint);
-            listener.onAbort(e);
-            connection.close();
+        EventConsumer eventConsumer = new EventConsumer(connection, command, listener, counts);
+        long count = actualEvents.drainTo(event -> {
+            eventConsumer.accept(event);
+            eventConsumer.accept(EventCausalityEstablished.builder()
+                                                          .event(event.uuid())
+                                                          .command(command.uuid())
+                                                          .build());
+        });
 
-            // if we are having an exception NOT when journalling CommandTerminatedExceptionally
-            if (events == null) {
-                journal(command, listener, lockProvider,
-                        Stream.of(new CommandTerminatedExceptionally(command.uuid(), e)));
+        Layout layout = layoutsByClass.get(command.getClass().getName());
+        String encoded = BaseEncoding.base16().encode(layout.getHash());
+        insertFunctions.get(encoded).apply(command, connection);
+        counts.merge(encoded, 1L, Long::sum);
+
+        if (count > 0 && !keys.isEmpty()) {
+            HybridTimestamp timestamp = command.timestamp();
+            try (PreparedStatement s = connection.prepareStatement(
+                    "INSERT INTO eventsourcing.versions (key, \"logicalTime\", \"logicalCounter\") VALUES (?, ?, ?) " +
+                    "ON CONFLICT (key) DO UPDATE SET \"logicalTime\" = EXCLUDED.\"logicalTime\", " +
+                    "\"logicalCounter\" = EXCLUDED.\"logicalCounter\"")) {
+                for (Object key : keys) {
+                    s.setString(1, key.toString());
+                    s.setLong(2, timestamp.getLogicalTime());
+                    s.setLong(3, timestamp.getLogicalCounter());
+                    s.addBatch();
+                    batchVersions.add(key.toString());
+                }
+                s.executeBatch();
             }
+        }
+
+        return count;
+    }
 
-            throw e;
+    /**
+     * @return the first key which version doesn't match the expected one, or <code>null</code> if all match
+     */
+    private Object conflict(Connection connection, EventStream<?> eventStream,
+                            Set<String> batchVersions) throws SQLException {
+        for (Map.Entry<Object, Optional<HybridTimestamp>> expected : eventStream.getExpectedVersions().entrySet()) {
+            String key = expected.getKey().toString();
+            lockVersion(connection, key);
+            Optional<HybridTimestamp> version = getVersion(connection, key);
+            if (!Journal.isExpectedVersion(expected.getValue(), version.orElse(null))) {
+                if (batchVersions.contains(key)) {
+                    // the key was changed earlier in the same batch and the command
+                    // couldn't have seen this version, journal it in the next batch
+                    throw new BatchSplitException();
+                }
+                return expected.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Locks the version of a key until the transaction is committed or rolled back. An advisory lock
+     * is taken instead of locking the key's row, as there is no row to lock until the key is set
+     * for the first time (and two transactions expecting no version at all would both succeed).
+     */
+    private void lockVersion(Connection connection, String key) throws SQLException {
+        try (PreparedStatement s = connection.prepareStatement("SELECT pg_advisory_xact_lock(hashtext(?))")) {
+            s.setString(1, key);
+            s.execute();
         }
+    }
+
+    private Optional<HybridTimestamp> getVersion(Connection connection, String key) throws SQLException {
+        try (PreparedStatement s = connection.prepareStatement(
+                "SELECT \"logicalTime\", \"logicalCounter\" FROM eventsourcing.versions WHERE key = ?")) {
+            s.setString(1, key);
+            try (ResultSet resultSet = s.executeQuery()) {
+                return resultSet.next() ? Optional.of(new HybridTimestamp(resultSet.getLong(1), resultSet.getLong(2)))
+                                        : Optional.empty();
+            }
+        }
+    }
 
+    @Override @SneakyThrows
+    public Optional<HybridTimestamp> getVersion(Object key) {
+        try (Connection connection = dataSource.getConnection()) {
+            return getVersion(connection, key.toString());
+        }
     }
 
 
@@ -200,6 +315,63 @@ public class PostgreSQLJournal extends AbstractService implements Journal {
         return result;
     }
 
+    @SneakyThrows
+    @Override public <T extends Entity> Map<UUID, T> getAll(Collection<UUID> uuids) {
+        Map<UUID, T> result = new HashMap<>();
+        if (uuids.isEmpty()) {
+            return result;
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            // group the entities by layout first, to retrieve every layout's entities with one query
+            Map<String, List<String>> uuidsByHash = new HashMap<>();
+            try (PreparedStatement s = connection
+                    .prepareStatement("SELECT uuid, layout FROM eventsourcing.layouts WHERE uuid = ANY(?::UUID[])")) {
+                s.setArray(1, connection.createArrayOf("text", uuids.stream().map(UUID::toString).toArray()));
+                try (ResultSet resultSet = s.executeQuery()) {
+                    while (resultSet.next()) {
+                        String hash = BaseEncoding.base16().encode(resultSet.getBytes(2));
+                        uuidsByHash.computeIfAbsent(hash, h -> new ArrayList<>()).add(resultSet.getString(1));
+                    }
+                }
+            }
+            for (Map.Entry<String, List<String>> entry : uuidsByHash.entrySet()) {
+                String hash = entry.getKey();
+                ReaderFunction reader = readerFunctions.get(hash);
+                Layout<?> layout = layoutsByHash.get(hash);
+                List<String> columns = layout.getProperties().stream()
+                                             .map(p -> getParameter(p, true)).collect(Collectors.toList());
+                // uuid goes last, as the reader function reads the properties from the first column on
+                columns.add("uuid");
+                String query = "SELECT " + Joiner.on(", ").join(columns) + " FROM layout_" + hash +
+                        " WHERE uuid = ANY(?::UUID[])";
+                try (PreparedStatement s = connection.prepareStatement(query)) {
+                    s.setArray(1, connection.createArrayOf("text", entry.getValue().toArray()));
+                    try (ResultSet rs = s.executeQuery()) {
+                        while (rs.next()) {
+                            UUID uuid = UUID.fromString(rs.getString("uuid"));
+                            Entity o = (Entity) reader.apply(rs);
+                            o.uuid(uuid);
+                            result.put(uuid, (T) o);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override @SneakyThrows
+    public boolean contains(UUID uuid) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement s = connection
+                     .prepareStatement("SELECT 1 FROM eventsourcing.layouts WHERE uuid = ?::UUID")) {
+            s.setString(1, uuid.toString());
+            try (ResultSet resultSet = s.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
     @Override public <T extends Command<?, ?>> CloseableIterator<EntityHandle<T>> commandIterator(Class<T> klass) {
         return entityIterator(klass);
     }
@@ -219,6 +391,78 @@ public class PostgreSQLJournal extends AbstractService implements Journal {
         return new EntityIterator<>(this, s, connection);
     }
 
+    @SneakyThrows
+    @Override public <T extends Event> CloseableIterator<EntityHandle<T>> eventIterator(Class<T> klass,
+                                                                                        HybridTimestamp from,
+                                                                                        HybridTimestamp to) {
+        Connection connection = dataSource.getConnection();
+
+        Layout layout = layoutsByClass.get(klass.getName());
+
+        PreparedStatement s = connection.prepareStatement(
+                "SELECT uuid FROM eventsourcing.layouts WHERE layout = ? AND \"timestamp\" >= ? " +
+                (to == null ? "" : "AND \"timestamp\" < ? ") + "ORDER BY \"timestamp\", uuid");
+        s.setBytes(1, layout.getHash());
+        s.setLong(2, from == null ? Long.MIN_VALUE : timestamp(from.timestamp()));
+        if (to != null) {
+            s.setLong(3, timestamp(to.timestamp()));
+        }
+        return new EntityIterator<>(this, s, connection);
+    }
+
+    @SneakyThrows
+    @Override public CloseableIterator<EntityHandle<Entity>> iterator(Position from) {
+        Connection connection = dataSource.getConnection();
+
+        PreparedStatement s = connection.prepareStatement(
+                "SELECT uuid FROM eventsourcing.layouts WHERE (\"timestamp\", uuid) > (?, ?::UUID) " +
+                "ORDER BY \"timestamp\", uuid");
+        s.setLong(1, timestamp(from.getTimestamp()));
+        s.setString(2, from.getUuid().toString());
+        return new EntityIterator<>(this, s, connection);
+    }
+
+    /**
+     * @return timestamp with the sign bit flipped, so that timestamps (unsigned) are ordered
+     * as they should be in a <code>BIGINT</code> column
+     */
+    private static long timestamp(long timestamp) {
+        return timestamp ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Fills in the timestamps of entities journalled before timestamps were kept
+     */
+    @SneakyThrows
+    private void fillTimestamps() {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE eventsourcing.layouts SET \"timestamp\" = ? WHERE uuid = ?::UUID")) {
+            for (Class<?> klass : Iterables.concat(repository.getCommands(), repository.getEvents())) {
+                Layout layout = layoutsByClass.get(klass.getName());
+                List<UUID> uuids = new ArrayList<>();
+                try (PreparedStatement s = connection.prepareStatement(
+                        "SELECT uuid FROM eventsourcing.layouts WHERE layout = ? AND \"timestamp\" IS NULL")) {
+                    s.setBytes(1, layout.getHash());
+                    try (ResultSet resultSet = s.executeQuery()) {
+                        while (resultSet.next()) {
+                            uuids.add(UUID.fromString(resultSet.getString(1)));
+                        }
+                    }
+                }
+                for (UUID uuid : uuids) {
+                    Optional<Entity> entity = get(uuid);
+                    if (entity.isPresent()) {
+                        update.setLong(1, timestamp(entity.get().timestamp().timestamp()));
+                        update.setString(2, uuid.toString());
+                        update.addBatch();
+                    }
+                }
+                update.executeBatch();
+            }
+        }
+    }
+
     static private class EntityIterator<R extends Entity> implements CloseableIterator<EntityHandle<R>> {
 
 
@@ -287,6 +531,12 @@ public class PostgreSQLJournal extends AbstractService implements Journal {
                 PreparedStatement s = connection.prepareStatement("DELETE FROM eventsourcing.layouts");
                 s.execute();
                 s.close();
+                s = connection.prepareStatement("DELETE FROM eventsourcing.versions");
+                s.execute();
+                s.close();
+                s = connection.prepareStatement("DELETE FROM eventsourcing.counts");
+                s.execute();
+                s.close();
             }
         }
         check.close();
@@ -296,20 +546,14 @@ public class PostgreSQLJournal extends AbstractService implements Journal {
     @SneakyThrows
     @Override public <T extends Entity> long size(Class<T> klass) {
         Layout layout = layoutsByClass.get(klass.getName());
-        String hash = BaseEncoding.base16().encode(layout.getHash());
-        Connection connection = dataSource.getConnection();
-        PreparedStatement s = connection
-                .prepareStatement("SELECT count(uuid) FROM layout_" + hash);
-
-        long size;
-        try (ResultSet resultSet = s.executeQuery()) {
-            resultSet.next();
-            size = resultSet.getLong(1);
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement s = connection
+                     .prepareStatement("SELECT count FROM eventsourcing.counts WHERE layout = ?")) {
+            s.setBytes(1, layout.getHash());
+            try (ResultSet resultSet = s.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
         }
-
-        s.close();
-        connection.close();
-        return size;
     }
 
     @Override public <T extends Entity> boolean isEmpty(Class<T> klass) {
@@ -329,6 +573,7 @@ public class PostgreSQLJournal extends AbstractService implements Journal {
         repository.getEvents().forEach(new LayoutExtractor());
 
         ensureLatestSchemaVersion();
+        fillTimestamps();
 
         notifyStarted();
     }
@@ -541,8 +786,10 @@ public class PostgreSQLJournal extends AbstractService implements Journal {
                     .prepareStatement("INSERT INTO " + table + " VALUES (?::UUID," + parameters + ")");
             int i = 1;
             UUID uuid;
+            Long timestamp = null;
             if (object instanceof Entity) {
                 uuid = ((Entity) object).uuid();
+                timestamp = timestamp(((Entity) object).timestamp().timestamp());
             } else {
                 uuid = UUID.randomUUID();
             }
@@ -554,11 +801,17 @@ public class PostgreSQLJournal extends AbstractService implements Journal {
             }
             s.execute();
             PreparedStatement layoutsInsertion = connection.prepareStatement("INSERT INTO eventsourcing.layouts " +
-                                                                                     "VALUES (?::UUID, " +
-                                                                                     "?)");
+                                                                                     "(uuid, layout, \"timestamp\") " +
+                                                                                     "VALUES (?::UUID, ?, ?)");
             layoutsInsertion.setString(1, uuid.toString());
             layoutsInsertion.setBytes(2, layout.getHash());
+            if (timestamp == null) {
+                layoutsInsertion.setNull(3, Types.BIGINT);
+            } else {
+                layoutsInsertion.setLong(3, timestamp);
+            }
             layoutsInsertion.execute();
+            layoutsInsertion.close();
             s.close();
             return uuid;
         }
@@ -822,15 +1075,18 @@ public class PostgreSQLJournal extends AbstractService implements Journal {
         throw new RuntimeException("Unsupported type handler " + typeHandler.getClass());
     }
 
-    private class EventConsumer implements Consumer<Event> {
-        private final HybridTimestamp ts;
+    private class EventConsumer implements EventSink {
+        private final HybridTimestamp.Reservation ts;
         private final Journal.Listener listener;
         private final Connection connection;
+        private final Map<String, Long> counts;
 
-        public EventConsumer(Connection connection, Command<?, ?> command, Journal.Listener listener) {
+        public EventConsumer(Connection connection, Command<?, ?> command, Journal.Listener listener,
+                             Map<String, Long> counts) {
             this.connection = connection;
+            this.counts = counts;
             this.listener = listener;
-            this.ts = command.timestamp().clone();
+            this.ts = command.timestamp().clone().reservation();
         }
 
         @Override
@@ -838,16 +1094,16 @@ public class PostgreSQLJournal extends AbstractService implements Journal {
         public void accept(Event event) {
 
             if (event.timestamp() == null) {
-                ts.update();
-                event.timestamp(ts.clone());
+                event.timestamp(ts.next());
             } else {
-                ts.update(event.timestamp().clone());
+                ts.update(event.timestamp());
             }
 
             Layout layout = layoutsByClass.get(event.getClass().getName());
             String encoded = BaseEncoding.base16().encode(layout.getHash());
             InsertFunction insert = insertFunctions.get(encoded);
             insert.apply(event, connection);
+            counts.merge(encoded, 1L, Long::sum);
 
             listener.onEvent(event);
         }
@@ -0,0 +1,13 @@
+--
+-- Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+--
+-- This Source Code Form is subject to the terms of the Mozilla Public
+-- License, v. 2.0. If a copy of the MPL was not distributed with this
+-- file, You can obtain one at http://mozilla.org/MPL/2.0/.
+--
+
+CREATE TABLE versions (
+  key              TEXT PRIMARY KEY,
+  "logicalTime"    BIGINT NOT NULL,
+  "logicalCounter" BIGINT NOT NULL
+)
@@ -0,0 +1,15 @@
+--
+-- Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+--
+-- This Source Code Form is subject to the terms of the Mozilla Public
+-- License, v. 2.0. If a copy of the MPL was not distributed with this
+-- file, You can obtain one at http://mozilla.org/MPL/2.0/.
+--
+
+-- timestamps of entities (with the sign bit flipped, so that they are ordered as unsigned numbers),
+-- filled in by the journal for entities journalled before
+ALTER TABLE layouts ADD COLUMN "timestamp" BIGINT;
+
+CREATE INDEX layouts_timestamp ON layouts ("timestamp", uuid);
+
+CREATE INDEX layouts_layout_timestamp ON layouts (layout, "timestamp", uuid)
@@ -23,6 +23,10 @@ import org.testng.annotations.Test;
 import javax.sql.DataSource;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.apache.commons.lang3.ArrayUtils.toObject;
 import static org.testng.Assert.*;
@@ -323,6 +327,31 @@ public class PostgreSQLJournalTest extends JournalTest<PostgreSQLJournal> {
         assertEquals(serializationResult(TestClass.builder().date(date).build()).date(), date);
     }
 
+    @Test @SneakyThrows
+    public void getAllSerialization() {
+        // timestamps and nested objects are read from more than one column each
+        HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+        timestamp.update();
+        final SerializationEvent[] serializationEvent = new SerializationEvent[1];
+        TestClass t = TestClass.builder().str("test").value(SomeValue.builder().value("value").build()).build();
+        SerializationCommand command = new SerializationCommand(t);
+        journal.journal(command.timestamp(timestamp), new Journal.Listener() {
+            @Override public void onCommandStateReceived(Object state) {
+                serializationEvent[0] = (SerializationEvent) state;
+            }
+        });
+
+        UUID eventUUID = serializationEvent[0].uuid();
+        Map<UUID, Entity> entities = journal.getAll(Arrays.asList(eventUUID, command.uuid(), UUID.randomUUID()));
+        assertEquals(entities.size(), 2);
+        SerializationEvent event = (SerializationEvent) entities.get(eventUUID);
+        assertEquals(event.uuid(), eventUUID);
+        assertEquals(event.timestamp().compareTo(serializationEvent[0].timestamp()), 0);
+        assertEquals(event.getTest().str(), "test");
+        assertEquals(event.getTest().value().value(), "value");
+        assertEquals(entities.get(command.uuid()).uuid(), command.uuid());
+    }
+
     @SneakyThrows
     private TestClass serializationResult(TestClass t) {
         HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
@@ -338,4 +367,60 @@ public class PostgreSQLJournalTest extends JournalTest<PostgreSQLJournal> {
         Optional<SerializationEvent> event = journal.get(serializationEvent[0].uuid());
         return event.get().getTest();
     }
+
+    public static class UnversionedKeyCommand extends StandardCommand<Void, Void> {
+        static CountDownLatch latch;
+
+        @Getter
+        private final String key;
+
+        @Builder
+        public UnversionedKeyCommand(HybridTimestamp timestamp, String key) {
+            super(timestamp);
+            this.key = key == null ? "" : key;
+        }
+
+        @Override
+        public EventStream<Void> events(Repository repository) throws Exception {
+            // let both commands generate their events before either of them is journalled
+            latch.countDown();
+            latch.await();
+            return EventStream.<Void>of(TestEvent.builder().build()).expectVersion(key, Optional.empty());
+        }
+    }
+
+    @Test(timeOut = 10000) @SneakyThrows
+    public void concurrentUnversionedKeyExpectation() {
+        UnversionedKeyCommand.latch = new CountDownLatch(2);
+        String key = UUID.randomUUID().toString();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Exception>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < 2; i++) {
+                HybridTimestamp timestamp = new HybridTimestamp(timeProvider);
+                timestamp.update();
+                UnversionedKeyCommand command = UnversionedKeyCommand.builder().key(key).timestamp(timestamp).build();
+                results.add(executor.submit(() -> {
+                    try {
+                        journal.journal(command);
+                        return null;
+                    } catch (Exception e) {
+                        return e;
+                    }
+                }));
+            }
+            // only one of the commands can have seen the key unversioned
+            List<Exception> exceptions = new ArrayList<>();
+            for (Future<Exception> result : results) {
+                if (result.get() != null) {
+                    exceptions.add(result.get());
+                }
+            }
+            assertEquals(exceptions.size(), 1);
+            assertTrue(exceptions.get(0) instanceof Journal.ConcurrencyConflictException);
+            assertTrue(journal.getVersion(key).isPresent());
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -8,7 +8,7 @@
 package com.eventsourcing.examples.order;
 
 import com.eventsourcing.Repository;
-import com.eventsourcing.hlc.NTPServerTimeProvider;
+import com.eventsourcing.hlc.SystemTimeProvider;
 import com.eventsourcing.index.MemoryIndexEngine;
 import com.eventsourcing.inmem.MemoryJournal;
 import com.eventsourcing.repository.LocalLockProvider;
@@ -31,7 +31,7 @@ public abstract class EventsourcingTest {
     public void setUp() throws Exception {
         repository = Repository.create();
         repository.setJournal(new MemoryJournal());
-        NTPServerTimeProvider timeProvider = new NTPServerTimeProvider(new String[]{"localhost"});
+        SystemTimeProvider timeProvider = new SystemTimeProvider();
         repository.setPhysicalTimeProvider(timeProvider);
         repository.setIndexEngine(new MemoryIndexEngine());
         lockProvider = new LocalLockProvider();
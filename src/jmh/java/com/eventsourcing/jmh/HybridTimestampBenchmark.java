@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.jmh;
+
+import com.eventsourcing.hlc.HybridTimestamp;
+import com.eventsourcing.hlc.PhysicalTimeProvider;
+import com.eventsourcing.hlc.SystemTimeProvider;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Hybrid logical clock benchmarks. Updates are run against a clock shared by all benchmark
+ * threads, so running them with more threads (<code>-t</code>) measures the clock under contention.
+ */
+@State(Scope.Benchmark)
+public class HybridTimestampBenchmark {
+
+    private HybridTimestamp clock;
+    private HybridTimestamp timestamp1;
+    private HybridTimestamp timestamp2;
+
+    @Setup
+    public void setup() {
+        PhysicalTimeProvider timeProvider = new SystemTimeProvider();
+        clock = new HybridTimestamp(timeProvider);
+        clock.update();
+        timestamp1 = clock.next();
+        timestamp2 = clock.next();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Threads(4)
+    public long update() {
+        return clock.update();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Threads(4)
+    public long updateReceived() {
+        return clock.update(timestamp1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Threads(4)
+    public HybridTimestamp next() {
+        return clock.next();
+    }
+
+    /**
+     * Timestamps handed out by a reservation, as done for every event of a command
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public HybridTimestamp reservation(ReservationState state) {
+        return state.reservation.next();
+    }
+
+    @State(Scope.Thread)
+    public static class ReservationState {
+        private HybridTimestamp.Reservation reservation;
+
+        @Setup(Level.Iteration)
+        public void setup(HybridTimestampBenchmark benchmark) {
+            reservation = benchmark.clock.clone().reservation();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int compare() {
+        return timestamp1.compareTo(timestamp2);
+    }
+}
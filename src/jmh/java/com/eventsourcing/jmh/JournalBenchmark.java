@@ -10,7 +10,7 @@ package com.eventsourcing.jmh;
 import com.eventsourcing.Repository;
 import com.eventsourcing.StandardCommand;
 import com.eventsourcing.hlc.HybridTimestamp;
-import com.eventsourcing.hlc.NTPServerTimeProvider;
+import com.eventsourcing.hlc.SystemTimeProvider;
 import com.eventsourcing.index.IndexEngine;
 import com.eventsourcing.index.MemoryIndexEngine;
 import com.eventsourcing.repository.Journal;
@@ -39,7 +39,7 @@ public abstract class JournalBenchmark {
 
         repository.setJournal(journal);
 
-        NTPServerTimeProvider timeProvider = new NTPServerTimeProvider(new String[]{"localhost"});
+        SystemTimeProvider timeProvider = new SystemTimeProvider();
         repository.setPhysicalTimeProvider(timeProvider);
 
         indexEngine = new MemoryIndexEngine();
@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.jmh;
+
+import com.eventsourcing.EventStream;
+import com.eventsourcing.Lock;
+import com.eventsourcing.Repository;
+import com.eventsourcing.StandardCommand;
+import com.eventsourcing.hlc.HybridTimestamp;
+import com.eventsourcing.repository.LockProvider;
+import lombok.Builder;
+
+public class LockingTestCommand extends StandardCommand<Lock, String> {
+    @Builder
+    public LockingTestCommand(HybridTimestamp timestamp) {
+        super(timestamp);
+    }
+
+    @Override
+    public EventStream<Lock> events(Repository repository, LockProvider lockProvider) {
+        Lock lock = lockProvider.lock("test");
+        return EventStream.ofWithState(lock, TestEvent.builder().string("test").build());
+    }
+
+    @Override
+    public String result(Lock lock, Repository repository, LockProvider lockProvider) {
+        lock.unlock();
+        return "hello, world";
+    }
+}
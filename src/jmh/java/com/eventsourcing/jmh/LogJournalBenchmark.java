@@ -0,0 +1,31 @@
+/**
+ * Copyright (c) 2016, All Contributors (see CONTRIBUTORS file)
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.eventsourcing.jmh;
+
+import com.eventsourcing.log.LogJournal;
+import com.eventsourcing.repository.Journal;
+import org.openjdk.jmh.annotations.Param;
+
+import java.io.File;
+
+public class LogJournalBenchmark extends JournalBenchmark {
+
+    @Param({"COMMIT", "INTERVAL", "OS"})
+    private LogJournal.FsyncPolicy fsyncPolicy;
+
+    @Override protected Journal createJournal() {
+        File directory = new File("benchmark_journal_log");
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        return new LogJournal(directory).fsyncPolicy(fsyncPolicy);
+    }
+}
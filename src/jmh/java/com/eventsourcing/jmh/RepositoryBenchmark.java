@@ -8,7 +8,7 @@
 package com.eventsourcing.jmh;
 
 import com.eventsourcing.Repository;
-import com.eventsourcing.hlc.NTPServerTimeProvider;
+import com.eventsourcing.hlc.SystemTimeProvider;
 import com.eventsourcing.index.IndexEngine;
 import com.eventsourcing.repository.Journal;
 import com.eventsourcing.repository.LocalLockProvider;
@@ -18,6 +18,10 @@ import org.openjdk.jmh.annotations.*;
 
 import java.util.concurrent.ExecutionException;
 
+/**
+ * Command publishing benchmarks. To see allocation per published command, run them with
+ * the GC profiler (<code>-prof gc</code>) and compare <code>gc.alloc.rate.norm</code>.
+ */
 @State(Scope.Benchmark)
 public abstract class RepositoryBenchmark {
 
@@ -34,7 +38,7 @@ public abstract class RepositoryBenchmark {
 
         repository.setJournal(journal);
 
-        NTPServerTimeProvider timeProvider = new NTPServerTimeProvider(new String[]{"localhost"});
+        SystemTimeProvider timeProvider = new SystemTimeProvider();
         repository.setPhysicalTimeProvider(timeProvider);
 
         indexEngine = createIndex();
@@ -67,5 +71,11 @@ public abstract class RepositoryBenchmark {
         repository.publish(TestCommand.builder().build()).get();
     }
 
+    @Benchmark
+    @BenchmarkMode(Mode.All)
+    public void lockingPublish() throws ExecutionException, InterruptedException {
+        repository.publish(LockingTestCommand.builder().build()).get();
+    }
+
 
 }